@@ -0,0 +1,273 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static org.zentaur.core.http.serialize.ResponseTemplates.closingConnection;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+import static org.zentaur.http.Response.Status.SERVICE_UNAVAILABLE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zentaur.core.http.CoarseClock;
+import org.slf4j.Logger;
+
+/**
+ * Limits the number of connections handled at the same time, globally and per client address.
+ *
+ * Connections exceeding the limits are rejected with a pre-encoded {@code 503 Service Unavailable} response;
+ * optionally, acceptors stop accepting while the global limit is reached, letting the incoming connections
+ * wait in the listening socket backlog.
+ *
+ * This class is thread-safe: connections are admitted by the acceptors and released by the reactors.
+ * The listening socket keys are modified by their acceptor thread only: acceptors pause themselves
+ * and are resumed through their task queue.
+ */
+final class AdmissionControl
+{
+
+    private static final int DISCARD_BUFFER_SIZE = 512;
+
+    private final Logger logger = getLogger( getClass() );
+
+    private final AtomicInteger connections = new AtomicInteger( 0 );
+
+    private final Map<InetAddress, Integer> clientsConnections = new HashMap<InetAddress, Integer>();
+
+    private final Queue<PausedAcceptor> pausedAcceptors = new ConcurrentLinkedQueue<PausedAcceptor>();
+
+    private final int maxConnections;
+
+    private final int maxConnectionsPerClient;
+
+    private final boolean pauseAccepting;
+
+    private final CoarseClock clock;
+
+    /**
+     * Creates a new admission control instance.
+     *
+     * @param maxConnections the maximum number of connections handled at the same time
+     * @param maxConnectionsPerClient the maximum number of connections per client address handled at the same time
+     * @param pauseAccepting flag to stop accepting connections while the global limit is reached
+     * @param clock the server clock, rejections are dated with
+     */
+    public AdmissionControl( int maxConnections,
+                             int maxConnectionsPerClient,
+                             boolean pauseAccepting,
+                             CoarseClock clock )
+    {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+        this.pauseAccepting = pauseAccepting;
+        this.clock = clock;
+    }
+
+    /**
+     * Verifies the acceptor owning the input listening socket key has to stop accepting connections;
+     * if so, the key accept interest is removed and it will be restored, by a task executed by the acceptor,
+     * once connections are released.
+     *
+     * This method has to be invoked by the acceptor thread.
+     *
+     * @param serverKey the listening socket key
+     * @param acceptor the executor of the acceptor thread that owns the listening socket key
+     * @return true if the acceptor has to stop accepting connections, false otherwise.
+     */
+    public boolean pauseAccepting( SelectionKey serverKey, Executor acceptor )
+    {
+        if ( !pauseAccepting || connections.get() < maxConnections )
+        {
+            return false;
+        }
+
+        serverKey.interestOps( 0 );
+        pausedAcceptors.offer( new PausedAcceptor( serverKey, acceptor ) );
+
+        // connections could have been released in the meanwhile
+        if ( connections.get() < maxConnections )
+        {
+            resumeAcceptors();
+        }
+
+        if ( logger.isWarnEnabled() )
+        {
+            logger.warn( "Maximum number of {} connections reached, accepting paused", maxConnections );
+        }
+
+        return true;
+    }
+
+    /**
+     * Verifies the input accepted connection doesn't exceed the limits, taking it into account if not.
+     *
+     * @param socketChannel the accepted connection
+     * @return true if the connection has been admitted, false if it has to be rejected
+     */
+    public boolean admit( SocketChannel socketChannel )
+    {
+        if ( connections.incrementAndGet() > maxConnections )
+        {
+            connections.decrementAndGet();
+            return false;
+        }
+
+        if ( isLimitingClients() )
+        {
+            InetAddress client = socketChannel.socket().getInetAddress();
+
+            synchronized ( clientsConnections )
+            {
+                Integer clientConnections = clientsConnections.get( client );
+                if ( clientConnections == null )
+                {
+                    clientConnections = 0;
+                }
+
+                if ( clientConnections >= maxConnectionsPerClient )
+                {
+                    connections.decrementAndGet();
+                    return false;
+                }
+
+                clientsConnections.put( client, clientConnections + 1 );
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Rejects the input accepted connection, writing the {@code 503 Service Unavailable} response
+     * before closing it.
+     *
+     * @param socketChannel the accepted connection exceeding the limits
+     */
+    public void reject( SocketChannel socketChannel )
+    {
+        if ( logger.isWarnEnabled() )
+        {
+            logger.warn( "Connection with {} exceeds the limits, rejecting it",
+                         socketChannel.socket().getInetAddress().getHostAddress() );
+        }
+
+        try
+        {
+            socketChannel.configureBlocking( false );
+
+            // the socket send buffer is empty, the response fits in a single write;
+            // the request has not been read, the version is not known
+            socketChannel.write( closingConnection( clock, null, SERVICE_UNAVAILABLE ) );
+            socketChannel.socket().shutdownOutput();
+
+            // discard the request bytes already received, closing with unread bytes would reset the connection
+            ByteBuffer discarded = ByteBuffer.allocate( DISCARD_BUFFER_SIZE );
+            while ( socketChannel.read( discarded ) > 0 )
+            {
+                discarded.clear();
+            }
+        }
+        catch ( IOException e )
+        {
+            // the connection is going to be closed anyway
+        }
+        finally
+        {
+            closeQuietly( socketChannel );
+        }
+    }
+
+    /**
+     * Releases a previously admitted connection.
+     *
+     * @param client the address of the closed connection client
+     */
+    public void release( InetAddress client )
+    {
+        if ( isLimitingClients() )
+        {
+            synchronized ( clientsConnections )
+            {
+                Integer clientConnections = clientsConnections.remove( client );
+                if ( clientConnections != null && clientConnections > 1 )
+                {
+                    clientsConnections.put( client, clientConnections - 1 );
+                }
+            }
+        }
+
+        if ( connections.decrementAndGet() < maxConnections && !pausedAcceptors.isEmpty() )
+        {
+            resumeAcceptors();
+        }
+    }
+
+    private boolean isLimitingClients()
+    {
+        return maxConnectionsPerClient < Integer.MAX_VALUE;
+    }
+
+    private void resumeAcceptors()
+    {
+        PausedAcceptor pausedAcceptor;
+        while ( ( pausedAcceptor = pausedAcceptors.poll() ) != null )
+        {
+            pausedAcceptor.acceptor.execute( pausedAcceptor );
+        }
+    }
+
+    /**
+     * Restores the accept interest of a paused listening socket key, executed by its acceptor thread.
+     */
+    private static final class PausedAcceptor
+        implements Runnable
+    {
+
+        private final SelectionKey serverKey;
+
+        private final Executor acceptor;
+
+        public PausedAcceptor( SelectionKey serverKey, Executor acceptor )
+        {
+            this.serverKey = serverKey;
+            this.acceptor = acceptor;
+        }
+
+        @Override
+        public void run()
+        {
+            // the key is cancelled when the acceptor is shutting down
+            if ( serverKey.isValid() )
+            {
+                serverKey.interestOps( OP_ACCEPT );
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.zentaur.http.Request;
+import org.zentaur.http.RequestHandler;
+import org.zentaur.http.Response;
+
+/**
+ * {@link RequestHandler} that produces responses asynchronously, without holding the request thread
+ * while waiting, i.e. for downstream services, long-polling or fan-out requests.
+ *
+ * The response is serialized to the client once the {@link DeferredResponse} returned by
+ * {@link #handleAsync(Request, Response)} is done; invoked via {@link #handle(Request, Response)},
+ * the handler blocks until then.
+ */
+public abstract class AsyncRequestHandler
+    implements RequestHandler
+{
+
+    /**
+     * Starts handling the input request, the response can be populated after this method returned.
+     *
+     * @param request the request has to be handled
+     * @param response the response has to be populated before the returned handle is completed
+     * @return the handle to be completed once the response has been populated
+     * @throws IOException if any error occurs while starting handling the request
+     */
+    public abstract DeferredResponse handleAsync( Request request, Response response )
+        throws IOException;
+
+    /**
+     * Serves the input request blocking the calling thread until the handle returned by
+     * {@link #handleAsync(Request, Response)} is done, for callers that can't wait asynchronously.
+     *
+     * @param request the request has to be handled
+     * @param response the response has to be populated
+     * @throws IOException if the handle has been failed or is not done within its timeout
+     */
+    @Override
+    public void handle( Request request, Response response )
+        throws IOException
+    {
+        DeferredResponse deferredResponse = handleAsync( request, response );
+        if ( deferredResponse == null )
+        {
+            throw new IllegalStateException( format( "Handler %s returned a null DeferredResponse",
+                                                     getClass().getName() ) );
+        }
+
+        final CountDownLatch done = new CountDownLatch( 1 );
+        deferredResponse.onCompletion( new Runnable()
+        {
+
+            public void run()
+            {
+                done.countDown();
+            }
+
+        } );
+
+        try
+        {
+            // expiring loses against a concurrent completion, checked below
+            if ( !done.await( deferredResponse.getTimeout(), deferredResponse.getTimeUnit() ) )
+            {
+                deferredResponse.expire();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            deferredResponse.expire();
+        }
+
+        if ( deferredResponse.isExpired() )
+        {
+            throw new InterruptedIOException( format( "Response not completed within %s %s",
+                                                      deferredResponse.getTimeout(),
+                                                      deferredResponse.getTimeUnit() ) );
+        }
+
+        Throwable failure = deferredResponse.getFailure();
+        if ( failure instanceof IOException )
+        {
+            throw (IOException) failure;
+        }
+        if ( failure instanceof RuntimeException )
+        {
+            throw (RuntimeException) failure;
+        }
+        if ( failure instanceof Error )
+        {
+            throw (Error) failure;
+        }
+        if ( failure != null )
+        {
+            throw new IOException( failure );
+        }
+    }
+
+}
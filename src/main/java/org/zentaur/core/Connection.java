@@ -0,0 +1,291 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.zentaur.core.http.MessagePool;
+import org.zentaur.core.http.parse.RequestParser;
+import org.zentaur.core.http.parse.RequestStreamingParser;
+import org.zentaur.core.http.parse.TableDrivenRequestParser;
+import org.zentaur.core.io.OutboundBuffers;
+
+/**
+ * Holds the state of a client connection, attached to its {@link SelectionKey} for the whole connection life.
+ *
+ * Pipelined requests responses are kept in the same order requests have been received, only the oldest one
+ * is written to the client; this class is accessed by the reactor thread only.
+ */
+final class Connection
+{
+
+    private final Queue<OutboundBuffers> responses = new LinkedList<OutboundBuffers>();
+
+    private final SelectionKey key;
+
+    private final Reactor reactor;
+
+    private final long lowWatermark;
+
+    private final long highWatermark;
+
+    private final int pipelineDepth;
+
+    private final MessagePool messagePool;
+
+    private final boolean legacyParser;
+
+    private RequestParser requestParser;
+
+    private ByteBuffer pendingInput;
+
+    private TimingWheel.Timeout<Connection> idleTimeout;
+
+    private boolean keepAlive = true;
+
+    /**
+     * Creates a new connection state holder.
+     *
+     * @param key the selection key that holds the client/server connection.
+     * @param reactor the reactor that owns the selection key
+     * @param lowWatermark the pending bytes of a response below which it becomes writable again
+     * @param highWatermark the pending bytes of a response above which it is not writable
+     * @param pipelineDepth the maximum number of responses pending at the same time
+     * @param messagePool the pool the requests are borrowed from
+     * @param legacyParser flag to parse requests with the {@link RequestStreamingParser}
+     */
+    public Connection( SelectionKey key, Reactor reactor, long lowWatermark, long highWatermark, int pipelineDepth,
+                       MessagePool messagePool, boolean legacyParser )
+    {
+        this.key = key;
+        this.reactor = reactor;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.pipelineDepth = pipelineDepth;
+        this.messagePool = messagePool;
+        this.legacyParser = legacyParser;
+    }
+
+    /**
+     * Prepares the connection to parse a new request, the parser is created once and reset for the next requests.
+     */
+    public void newRequest()
+    {
+        if ( requestParser == null )
+        {
+            Socket socket = getSocket();
+            String clientHost = socket.getInetAddress().getHostAddress();
+            String serverHost = socket.getLocalAddress().getHostName();
+
+            if ( legacyParser )
+            {
+                requestParser = new RequestStreamingParser( clientHost, serverHost, socket.getLocalPort(),
+                                                            messagePool.borrowRequest() );
+            }
+            else
+            {
+                requestParser = new TableDrivenRequestParser( clientHost, serverHost, socket.getLocalPort(),
+                                                              messagePool.borrowRequest() );
+            }
+        }
+        else
+        {
+            requestParser.reset( messagePool.borrowRequest() );
+        }
+    }
+
+    public SelectionKey getKey()
+    {
+        return key;
+    }
+
+    public SocketChannel getChannel()
+    {
+        return (SocketChannel) key.channel();
+    }
+
+    public Socket getSocket()
+    {
+        return getChannel().socket();
+    }
+
+    /**
+     * Returns the reactor that owns the connection, the only one allowed to touch its key.
+     *
+     * @return the reactor that owns the connection
+     */
+    public Reactor getReactor()
+    {
+        return reactor;
+    }
+
+    public RequestParser getRequestParser()
+    {
+        return requestParser;
+    }
+
+    /**
+     * Enqueues the buffers of the response to the latest received request, after the previous responses.
+     *
+     * @return the buffers where the response to the latest received request has to be serialized.
+     */
+    public OutboundBuffers newResponse()
+    {
+        OutboundBuffers response = new OutboundBuffers( key, reactor, lowWatermark, highWatermark );
+        responses.offer( response );
+        return response;
+    }
+
+    /**
+     * Returns the oldest response not yet entirely written, i.e. the only one that can be written to the client.
+     *
+     * @return the oldest response not yet entirely written, null if there are no pending responses.
+     */
+    public OutboundBuffers getCurrentResponse()
+    {
+        return responses.peek();
+    }
+
+    /**
+     * Removes the oldest response once it has been entirely written.
+     */
+    public void currentResponseWritten()
+    {
+        responses.poll();
+    }
+
+    /**
+     * Verifies there are responses not yet entirely written.
+     *
+     * @return true if there are responses not yet entirely written, false otherwise.
+     */
+    public boolean hasPendingResponses()
+    {
+        return !responses.isEmpty();
+    }
+
+    /**
+     * Verifies new requests can be read: the connection has to be kept alive, the pipeline is not full
+     * and none of the pending responses exceeded its high watermark.
+     *
+     * @return true if new requests can be read, false otherwise.
+     */
+    public boolean isReadable()
+    {
+        if ( !keepAlive || responses.size() >= pipelineDepth )
+        {
+            return false;
+        }
+
+        for ( OutboundBuffers response : responses )
+        {
+            if ( !response.isWritable() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the received bytes of the requests that couldn't be processed yet.
+     *
+     * @return the received bytes of the requests that couldn't be processed yet, null if there aren't.
+     */
+    public ByteBuffer getPendingInput()
+    {
+        return pendingInput;
+    }
+
+    /**
+     * Keeps the remaining bytes of the input buffer to process them once the connection becomes readable again,
+     * bytes are copied unless the input buffer is the pending input itself.
+     *
+     * @param input the buffer containing the received bytes not yet processed
+     */
+    public void keepPendingInput( ByteBuffer input )
+    {
+        if ( !input.hasRemaining() )
+        {
+            pendingInput = null;
+        }
+        else if ( input != pendingInput )
+        {
+            pendingInput = ByteBuffer.allocate( input.remaining() );
+            pendingInput.put( input );
+            pendingInput.flip();
+        }
+    }
+
+    /**
+     * Enables or disables the input interest operations on the connection key, without altering the other ones.
+     *
+     * @param ops the interest operations have to be enabled or disabled
+     * @param enabled true to enable the interest operations, false to disable them
+     */
+    public void setInterest( int ops, boolean enabled )
+    {
+        key.interestOps( enabled ? key.interestOps() | ops : key.interestOps() & ~ops );
+    }
+
+    /**
+     * Releases all the pending responses and wakes up their producers, no more requests will be read.
+     */
+    public void close()
+    {
+        keepAlive = false;
+
+        for ( OutboundBuffers response : responses )
+        {
+            response.close();
+        }
+        responses.clear();
+        pendingInput = null;
+    }
+
+    public TimingWheel.Timeout<Connection> getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout( TimingWheel.Timeout<Connection> idleTimeout )
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Flag to mark the connection has to be kept alive once the pending responses have been written.
+     *
+     * @return true if the connection has to be kept alive, false otherwise.
+     */
+    public boolean isKeepAlive()
+    {
+        return keepAlive;
+    }
+
+    public void setKeepAlive( boolean keepAlive )
+    {
+        this.keepAlive = keepAlive;
+    }
+
+}
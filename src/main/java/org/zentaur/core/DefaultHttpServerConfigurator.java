@@ -16,23 +16,40 @@ package org.zentaur.core;
  *   limitations under the License.
  */
 
+import static java.lang.Runtime.getRuntime;
+import static java.lang.String.format;
 import static org.zentaur.lang.Preconditions.checkArgument;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
 
 import org.zentaur.DefaultResponseBuilder;
-import org.zentaur.HttpServerConfigurator;
 import org.zentaur.RequestHandlerBuilder;
+import org.zentaur.core.http.serialize.CompressionPolicy;
 import org.zentaur.http.RequestHandler;
 import org.zentaur.http.Response.Status;
 
 /**
- * Default {@link HttpServerConfigurator} implementation
+ * Default {@link SimpleHttpServerConfigurator} implementation
  */
 final class DefaultHttpServerConfigurator
-    implements HttpServerConfigurator
+    implements SimpleHttpServerConfigurator
 {
 
+    private static final int DEFAULT_READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+
+    private static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    private static final int DEFAULT_PIPELINE_DEPTH = 8;
+
+    private static final int DEFAULT_BACKLOG = 1024;
+
+    private static final int DEFAULT_VIRTUAL_THREADS_POOLED_MESSAGES = 256;
+
     private String host;
 
     private int port;
@@ -43,8 +60,39 @@ final class DefaultHttpServerConfigurator
 
     private int keepAliveTimeOut;
 
+    private int reactors = getRuntime().availableProcessors();
+
+    private boolean reusePort;
+
+    private boolean virtualThreads;
+
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    // negative when not configured, depends on the threads serving the requests
+    private int pooledMessages = -1;
+
+    private int maxConnections = Integer.MAX_VALUE;
+
+    private int maxConnectionsPerClient = Integer.MAX_VALUE;
+
+    private boolean pauseAccepting = false;
+
+    private int backlog = DEFAULT_BACKLOG;
+
+    private boolean detectingRetainedMessages = false;
+
+    private boolean legacyParser = false;
+
     private final RequestDispatcher requestDispatcher = new RequestDispatcher();
 
+    private final CompressionPolicy compressionPolicy = new CompressionPolicy();
+
     /**
      * The host name or the textual representation of its IP address.
      *
@@ -121,6 +169,11 @@ final class DefaultHttpServerConfigurator
         this.sessionMaxAge = sessionMaxAge;
     }
 
+    /**
+     * The number of seconds idle keep-alive connections are closed after.
+     *
+     * @return the number of seconds idle keep-alive connections are closed after.
+     */
     public int getKeepAliveTimeOut()
     {
         return keepAliveTimeOut;
@@ -133,7 +186,334 @@ final class DefaultHttpServerConfigurator
     public void keepAliveConnectionsHaveTimeout( int keepAliveTimeOut )
     {
         checkArgument( keepAliveTimeOut >= 0, "Negative connection keep alive timeout not allowed" );
-        this.keepAliveTimeOut = keepAliveTimeOut * 1000;
+        this.keepAliveTimeOut = keepAliveTimeOut;
+    }
+
+    /**
+     * The number of reactors accepted connections will be spread across.
+     *
+     * @return the number of reactors accepted connections will be spread across.
+     */
+    public int getReactors()
+    {
+        return reactors;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleConnectionsWithReactors( int reactors )
+    {
+        checkArgument( reactors > 0, "Impossible to handle connections with negative or none reactors" );
+        this.reactors = reactors;
+    }
+
+    /**
+     * Flag to mark requests are processed in virtual threads.
+     *
+     * @return true if requests are processed in virtual threads, false otherwise.
+     */
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serveRequestsWithVirtualThreads( boolean virtualThreads )
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Flag to mark each reactor binds its own listening socket using the {@code SO_REUSEPORT} option.
+     *
+     * @return true if each reactor binds its own listening socket, false otherwise.
+     */
+    public boolean isReusePort()
+    {
+        return reusePort;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acceptConnectionsWithReusePort( boolean reusePort )
+    {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * The size, in bytes, of the buffers where incoming request bytes are read into.
+     *
+     * @return the size, in bytes, of the buffers where incoming request bytes are read into.
+     */
+    public int getReadBufferSize()
+    {
+        return readBufferSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void readRequestsWithBufferSize( int readBufferSize )
+    {
+        checkArgument( readBufferSize > 0, "Impossible to read requests with negative or empty buffers" );
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * The pending response bytes threshold below which a connection becomes writable again.
+     *
+     * @return the pending response bytes threshold below which a connection becomes writable again.
+     */
+    public int getLowWatermark()
+    {
+        return lowWatermark;
+    }
+
+    /**
+     * The pending response bytes threshold above which a connection is not writable.
+     *
+     * @return the pending response bytes threshold above which a connection is not writable.
+     */
+    public int getHighWatermark()
+    {
+        return highWatermark;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void limitPendingResponseBytes( int lowWatermark, int highWatermark )
+    {
+        checkArgument( lowWatermark >= 0, "Negative low watermark not allowed" );
+        checkArgument( highWatermark > lowWatermark, "High watermark must be greater than the low watermark" );
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * The maximum number of requests per connection processed at the same time.
+     *
+     * @return the maximum number of requests per connection processed at the same time.
+     */
+    public int getPipelineDepth()
+    {
+        return pipelineDepth;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void processPipelinedRequestsUpTo( int pipelineDepth )
+    {
+        checkArgument( pipelineDepth > 0, "Pipeline depth must be a positive number" );
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * The number of requests and responses kept for reuse besides the pipelined ones.
+     *
+     * @return the number of requests and responses kept for reuse besides the pipelined ones.
+     */
+    public int getPooledMessages()
+    {
+        if ( pooledMessages >= 0 )
+        {
+            return pooledMessages;
+        }
+        return virtualThreads ? DEFAULT_VIRTUAL_THREADS_POOLED_MESSAGES : threads;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void poolMessagesUpTo( int pooledMessages )
+    {
+        checkArgument( pooledMessages >= 0, "Negative number of pooled messages not allowed" );
+        this.pooledMessages = pooledMessages;
+    }
+
+    /**
+     * The maximum number of connections handled at the same time.
+     *
+     * @return the maximum number of connections handled at the same time.
+     */
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acceptConnectionsUpTo( int maxConnections )
+    {
+        checkArgument( maxConnections > 0, "Maximum number of connections must be a positive number" );
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * The maximum number of connections from the same client address handled at the same time.
+     *
+     * @return the maximum number of connections from the same client address handled at the same time.
+     */
+    public int getMaxConnectionsPerClient()
+    {
+        return maxConnectionsPerClient;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acceptConnectionsPerClientUpTo( int maxConnectionsPerClient )
+    {
+        checkArgument( maxConnectionsPerClient > 0, "Maximum number of connections per client must be a positive number" );
+        this.maxConnectionsPerClient = maxConnectionsPerClient;
+    }
+
+    /**
+     * Flag to stop accepting connections while the maximum number of connections is reached.
+     *
+     * @return true if accepting connections stops when the limit is reached, false if exceeding ones are rejected.
+     */
+    public boolean isPauseAccepting()
+    {
+        return pauseAccepting;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void pauseAcceptingWhenFull( boolean pauseAccepting )
+    {
+        this.pauseAccepting = pauseAccepting;
+    }
+
+    /**
+     * The listening socket backlog.
+     *
+     * @return the listening socket backlog.
+     */
+    public int getBacklog()
+    {
+        return backlog;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void acceptConnectionsWithBacklog( int backlog )
+    {
+        checkArgument( backlog > 0, "Listening socket backlog must be a positive number" );
+        this.backlog = backlog;
+    }
+
+    public CompressionPolicy getCompressionPolicy()
+    {
+        return compressionPolicy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compressResponsesWithLevel( int level )
+    {
+        checkArgument( level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                       "Compression level must be between %s and %s", Deflater.DEFAULT_COMPRESSION,
+                       Deflater.BEST_COMPRESSION );
+        compressionPolicy.setLevel( level );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compressResponsesLargerThan( int minimumSize )
+    {
+        checkArgument( minimumSize >= 0, "Negative compression minimum size not allowed" );
+        compressionPolicy.setMinimumSize( minimumSize );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compressContentTypes( String...contentTypes )
+    {
+        checkArgument( contentTypes != null, "Null content types not allowed" );
+        compressionPolicy.setCompressedContentTypes( Arrays.asList( contentTypes ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void doNotCompressContentTypes( String...contentTypes )
+    {
+        checkArgument( contentTypes != null, "Null content types not allowed" );
+        compressionPolicy.setUncompressedContentTypes( Arrays.asList( contentTypes ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reduceCompressionLevelUnderLoad( boolean reduceCompressionLevel )
+    {
+        compressionPolicy.setReducingLevelUnderLoad( reduceCompressionLevel );
+    }
+
+    /**
+     * Flag to mark the requests and responses handed to handlers are guarded against accesses after completion.
+     *
+     * @return true if the messages handed to handlers are guarded, false otherwise.
+     */
+    public boolean isDetectingRetainedMessages()
+    {
+        return detectingRetainedMessages;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void detectRetainedMessages( boolean detectRetainedMessages )
+    {
+        this.detectingRetainedMessages = detectRetainedMessages;
+    }
+
+    /**
+     * Flag to mark requests are parsed with the legacy parser.
+     *
+     * @return true if requests are parsed with the legacy parser, false otherwise.
+     */
+    public boolean isLegacyParser()
+    {
+        return legacyParser;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void parseRequestsWithLegacyParser( boolean legacyParser )
+    {
+        this.legacyParser = legacyParser;
     }
 
     public RequestDispatcher getRequestDispatcher()
@@ -182,7 +562,15 @@ final class DefaultHttpServerConfigurator
                 checkArgument( defaultReply.exists(), "Cannot provide defaultReply reply for %s because file %s doesn't exist.", status, defaultReply );
                 checkArgument( defaultReply.isFile(), "Cannot provide defaultReply reply for %s because file %s is not a regular file.", status, defaultReply );
 
-                requestDispatcher.addDefaultResponse( status, defaultReply );
+                try
+                {
+                    requestDispatcher.addDefaultResponse( status, defaultReply );
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalArgumentException( format( "Cannot provide defaultReply reply for %s because file %s cannot be read.",
+                                                                status, defaultReply ), e );
+                }
             }
 
         };
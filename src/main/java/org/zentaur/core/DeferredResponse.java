@@ -0,0 +1,172 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The completion handle of a response produced asynchronously by an {@link AsyncRequestHandler}:
+ * the response is serialized to the client once the handle has been completed, or failed.
+ *
+ * If the handle is not completed within its timeout, the client receives a
+ * {@code 503 Service Unavailable} response instead; the response passed to the handler
+ * must not be modified once the handle is done.
+ *
+ * This class is thread-safe, the handle can be completed by any thread.
+ */
+public final class DeferredResponse
+{
+
+    private final AtomicBoolean done = new AtomicBoolean( false );
+
+    private final AtomicBoolean notified = new AtomicBoolean( false );
+
+    private final long timeout;
+
+    private final TimeUnit unit;
+
+    private volatile Throwable failure;
+
+    private volatile boolean expired;
+
+    private volatile boolean completed;
+
+    private volatile Runnable completionListener;
+
+    /**
+     * Creates a new completion handle.
+     *
+     * @param timeout the maximum time the response can be waited for
+     * @param unit the time unit of the timeout argument
+     */
+    public DeferredResponse( long timeout, TimeUnit unit )
+    {
+        checkArgument( timeout > 0, "Deferred responses timeout must be a positive number" );
+        checkArgument( unit != null, "Null timeout TimeUnit not allowed." );
+        this.timeout = timeout;
+        this.unit = unit;
+    }
+
+    /**
+     * Marks the response as ready to be serialized.
+     *
+     * @return true if the handle has been completed, false if it was already done.
+     */
+    public boolean complete()
+    {
+        return done( null, false );
+    }
+
+    /**
+     * Marks the response as failed, the client receives a {@code 500 Internal Server Error} response.
+     *
+     * @param cause the reason why the response could not be produced
+     * @return true if the handle has been failed, false if it was already done.
+     */
+    public boolean fail( Throwable cause )
+    {
+        checkArgument( cause != null, "Null failure cause not allowed." );
+        return done( cause, false );
+    }
+
+    /**
+     * Verifies the handle has been completed, failed or expired.
+     *
+     * @return true if the handle has been completed, failed or expired, false otherwise.
+     */
+    public boolean isDone()
+    {
+        return completed;
+    }
+
+    long getTimeout()
+    {
+        return timeout;
+    }
+
+    TimeUnit getTimeUnit()
+    {
+        return unit;
+    }
+
+    Throwable getFailure()
+    {
+        return failure;
+    }
+
+    boolean isExpired()
+    {
+        return expired;
+    }
+
+    /**
+     * Marks the response as not produced within the timeout.
+     *
+     * @return true if the handle has been expired, false if it was already done.
+     */
+    boolean expire()
+    {
+        return done( null, true );
+    }
+
+    /**
+     * Sets the listener notified once the handle is done, immediately if it is already done.
+     *
+     * @param completionListener the listener notified once the handle is done
+     */
+    void onCompletion( Runnable completionListener )
+    {
+        this.completionListener = completionListener;
+
+        if ( completed )
+        {
+            notifyCompletion();
+        }
+    }
+
+    private boolean done( Throwable failure, boolean expired )
+    {
+        if ( !done.compareAndSet( false, true ) )
+        {
+            return false;
+        }
+
+        this.failure = failure;
+        this.expired = expired;
+        completed = true;
+
+        if ( completionListener != null )
+        {
+            notifyCompletion();
+        }
+
+        return true;
+    }
+
+    private void notifyCompletion()
+    {
+        // both the completing thread and the listener registering one could notify
+        if ( notified.compareAndSet( false, true ) )
+        {
+            completionListener.run();
+        }
+    }
+
+}
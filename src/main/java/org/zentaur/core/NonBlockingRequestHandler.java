@@ -0,0 +1,34 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.zentaur.http.RequestHandler;
+
+/**
+ * {@link RequestHandler} marker that declares the handler never blocks - it doesn't perform I/O,
+ * doesn't wait on locks and returns quickly, as health checks or in-memory lookups do.
+ *
+ * Handlers implementing this interface and registered via
+ * {@link org.zentaur.HttpServerConfigurator#serve(String)} are executed directly by the reactor thread
+ * that received the request, skipping the hand off to the requests executor; a blocking handler
+ * would stall all the connections owned by the same reactor.
+ */
+public interface NonBlockingRequestHandler
+    extends RequestHandler
+{
+
+}
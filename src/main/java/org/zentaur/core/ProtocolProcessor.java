@@ -18,28 +18,41 @@ package org.zentaur.core;
 
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
-import static org.zentaur.core.http.ResponseFactory.newResponse;
 import static org.zentaur.http.Headers.ACCEPT_ENCODING;
 import static org.zentaur.http.Headers.CONNECTION;
 import static org.zentaur.http.Headers.DATE;
 import static org.zentaur.http.Headers.KEEP_ALIVE;
 import static org.zentaur.http.Headers.SERVER;
+import static org.zentaur.http.Request.Method.GET;
+import static org.zentaur.http.Request.Method.HEAD;
 import static org.zentaur.http.Response.Status.INTERNAL_SERVER_ERROR;
+import static org.zentaur.http.Response.Status.NOT_MODIFIED;
+import static org.zentaur.http.Response.Status.OK;
+import static org.zentaur.http.Response.Status.PARTIAL_CONTENT;
+import static org.zentaur.http.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.zentaur.http.Response.Status.SERVICE_UNAVAILABLE;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.SocketException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.MessagePool;
 import org.zentaur.core.http.SessionManager;
+import org.zentaur.core.http.serialize.CompressionPolicy;
 import org.zentaur.core.http.serialize.ResponseSerializer;
+import org.zentaur.core.io.ByteBufferResponseBodyWriter;
+import org.zentaur.core.io.ByteRange;
+import org.zentaur.core.io.CacheableResponseBodyWriter;
+import org.zentaur.core.io.OutboundBuffers;
+import org.zentaur.core.io.RangeableResponseBodyWriter;
 import org.zentaur.http.Cookie;
 import org.zentaur.http.Request;
 import org.zentaur.http.Response;
@@ -56,9 +69,27 @@ final class ProtocolProcessor
 
     private static final String DEFAULT_SERVER_NAME = "Simple HttpServer";
 
-    private static final String GZIP = "gzip";
+    private static final String ETAG = "ETag";
 
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz" );
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    private static final String IF_NONE_MATCH = "If-None-Match";
+
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String RANGE = "Range";
+
+    private static final String IF_RANGE = "If-Range";
+
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    private static final String BYTES = "bytes";
+
+    private static final String WEAK_ENTITY_TAG_PREFIX = "W/";
+
+    private static final String ANY_ENTITY_TAG = "*";
 
     private final SessionManager sessionManager;
 
@@ -66,22 +97,60 @@ final class ProtocolProcessor
 
     private final Request request;
 
-    private SelectionKey key;
+    private final Connection connection;
+
+    private final OutboundBuffers responseBuffers;
+
+    private final boolean keepAlive;
+
+    private final long keepAliveTimeOut;
+
+    private final boolean inline;
+
+    private final Executor requestsExecutor;
+
+    private final ScheduledExecutorService deferredResponsesTimer;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final MessagePool messagePool;
+
+    private final CoarseClock clock;
+
+    private long start;
 
     public ProtocolProcessor( SessionManager sessionManager,
                               RequestDispatcher requestDispatcher,
                               Request request,
-                              SelectionKey key )
+                              Connection connection,
+                              OutboundBuffers responseBuffers,
+                              boolean keepAlive,
+                              long keepAliveTimeOut,
+                              boolean inline,
+                              Executor requestsExecutor,
+                              ScheduledExecutorService deferredResponsesTimer,
+                              CompressionPolicy compressionPolicy,
+                              MessagePool messagePool,
+                              CoarseClock clock )
     {
         this.sessionManager = sessionManager;
         this.requestDispatcher = requestDispatcher;
         this.request = request;
-        this.key = key;
+        this.connection = connection;
+        this.responseBuffers = responseBuffers;
+        this.keepAlive = keepAlive;
+        this.keepAliveTimeOut = keepAliveTimeOut;
+        this.inline = inline;
+        this.requestsExecutor = requestsExecutor;
+        this.deferredResponsesTimer = deferredResponsesTimer;
+        this.compressionPolicy = compressionPolicy;
+        this.messagePool = messagePool;
+        this.clock = clock;
     }
 
     public void run()
     {
-        long start = currentTimeMillis();
+        start = currentTimeMillis();
 
         // debug the request
         if ( logger.isDebugEnabled() )
@@ -122,32 +191,13 @@ final class ProtocolProcessor
             }
         }
 
-        Response response = newResponse();
-        response.addHeader( DATE, dateFormat.format( new Date() ) );
-        response.addHeader( SERVER, DEFAULT_SERVER_NAME );
-
-        SocketChannel serverChannel = (SocketChannel) key.channel();
-        Socket socket = serverChannel.socket();
-        try
-        {
-            if ( socket.getKeepAlive() )
-            {
-                response.addHeader( KEEP_ALIVE, format( "timeout=%s", socket.getSoTimeout() / 1000 ) );
-                response.addHeader( CONNECTION, KEEP_ALIVE );
-            }
-        }
-        catch ( SocketException e )
-        {
-            // just ignore the Keep-Alive option
-        }
+        Response response = prepareResponse();
+        DeferredResponse deferredResponse = null;
 
         try
         {
             sessionManager.manageSession( request, response );
-            requestDispatcher.dispatch( request, response );
-
-            response.setProtocolName( request.getProtocolName() );
-            response.setProtocolVersion( request.getProtocolVersion() );
+            deferredResponse = requestDispatcher.dispatch( messagePool.guard( request ), messagePool.guard( response ) );
         }
         catch ( IOException e )
         {
@@ -155,86 +205,396 @@ final class ProtocolProcessor
 
             response.setStatus( INTERNAL_SERVER_ERROR );
         }
-        finally
+        catch ( RuntimeException e )
+        {
+            // don't let the handler failure stop the reactor thread, when processed inline
+            logger.error( "Request cannot be satisfied due to an unexpected handler error", e );
+
+            response.setStatus( INTERNAL_SERVER_ERROR );
+        }
+
+        if ( deferredResponse != null )
+        {
+            defer( deferredResponse, response );
+        }
+        else
         {
-            boolean gzipEnabled = request.getHeaders().contains( ACCEPT_ENCODING )
-                                  && request.getHeaders().getValues( ACCEPT_ENCODING ).contains( GZIP );
+            serialize( response, !inline );
 
-            try
+            // the exchange is complete, handlers must not retain the request nor the response
+            messagePool.release( request );
+            messagePool.release( response );
+        }
+    }
+
+    private Response prepareResponse()
+    {
+        Response response = messagePool.borrowResponse();
+        response.addHeader( DATE, clock.getHttpDate() );
+        response.addHeader( SERVER, DEFAULT_SERVER_NAME );
+
+        if ( keepAlive )
+        {
+            if ( keepAliveTimeOut > 0 )
             {
-                new ResponseSerializer( key, gzipEnabled ).serialize( response );
+                response.addHeader( KEEP_ALIVE, format( "timeout=%s", keepAliveTimeOut / 1000 ) );
             }
-            catch ( IOException e )
-            {
-                key.cancel();
+            response.addHeader( CONNECTION, KEEP_ALIVE );
+        }
 
-                logger.error( "Impossible to stream Response to the client", e );
+        return response;
+    }
+
+    /**
+     * Waits the asynchronous handler completes the response, without holding the current thread;
+     * the response is serialized by the requests executor once done.
+     *
+     * @param deferredResponse the handle of the response produced asynchronously
+     * @param response the response populated by the asynchronous handler
+     */
+    private void defer( final DeferredResponse deferredResponse, final Response response )
+    {
+        final Future<?> timeout = deferredResponsesTimer.schedule( new Runnable()
+        {
+
+            public void run()
+            {
+                deferredResponse.expire();
             }
 
-            // debug the response
-            if ( logger.isDebugEnabled() )
+        }, deferredResponse.getTimeout(), deferredResponse.getTimeUnit() );
+
+        deferredResponse.onCompletion( new Runnable()
+        {
+
+            public void run()
             {
-                // protocol
-                logger.debug( "{} > {}/{} {} {}",
-                              new Object[] {
-                                  request.getClientHost(),
-                                  response.getProtocolName(),
-                                  response.getProtocolVersion(),
-                                  response.getStatus().getStatusCode(),
-                                  response.getStatus().getStatusText()
-                              } );
-                // headers
-                for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+                timeout.cancel( false );
+
+                // the response could have been completed by the timer or by the reactor thread, that cannot wait
+                requestsExecutor.execute( new Runnable()
                 {
-                    Formatter headerValues = new Formatter();
 
-                    int counter = 0;
-                    for ( String headerValue : header.getValue() )
+                    public void run()
                     {
-                        headerValues.format( "%s%s", ( counter++ > 0 ? ", " : "" ), headerValue );
+                        serializeDeferred( deferredResponse, response );
                     }
 
-                    logger.debug( "{} > {}: {}", new Object[] {
-                        request.getClientHost(),
-                        header.getKey(),
-                        headerValues.toString()
-                    } );
-                }
-                // cookies
-                for ( Cookie cookie : response.getCookies() )
+                } );
+            }
+
+        } );
+    }
+
+    private void serializeDeferred( DeferredResponse deferredResponse, Response response )
+    {
+        boolean recyclingRequest = true;
+
+        if ( deferredResponse.isExpired() )
+        {
+            if ( logger.isWarnEnabled() )
+            {
+                logger.warn( "Request {} not completed within {} {}", new Object[] {
+                                                                          request.getPath(),
+                                                                          deferredResponse.getTimeout(),
+                                                                          deferredResponse.getTimeUnit()
+                                                                      } );
+            }
+
+            // the handler could still be populating the response, neither it nor the request can be recycled
+            response = prepareResponse();
+            response.setStatus( SERVICE_UNAVAILABLE );
+            recyclingRequest = false;
+        }
+        else if ( deferredResponse.getFailure() != null )
+        {
+            logger.error( "Request cannot be satisfied due to asynchronous handler failure",
+                          deferredResponse.getFailure() );
+
+            response.setStatus( INTERNAL_SERVER_ERROR );
+        }
+
+        requestDispatcher.applyDefaultResponse( response );
+        serialize( response, true );
+
+        if ( recyclingRequest )
+        {
+            messagePool.release( request );
+        }
+        messagePool.release( response );
+    }
+
+    /**
+     * Adds the validators of a cacheable body to the response and, when the client already holds
+     * the current body version, turns it in a {@code 304 Not Modified} response, before the body is written.
+     *
+     * @param response the response has to be serialized
+     */
+    private void evaluatePreconditions( Response response )
+    {
+        if ( OK != response.getStatus() || !( response.getBodyWriter() instanceof CacheableResponseBodyWriter ) )
+        {
+            return;
+        }
+
+        CacheableResponseBodyWriter body = (CacheableResponseBodyWriter) response.getBodyWriter();
+        String entityTag = body.getEntityTag();
+        long lastModified = body.getLastModified();
+
+        if ( entityTag != null )
+        {
+            response.addHeader( ETAG, entityTag );
+        }
+        if ( lastModified >= 0 )
+        {
+            response.addHeader( LAST_MODIFIED, clock.formatHttpDate( lastModified ) );
+        }
+
+        if ( ( GET == request.getMethod() || HEAD == request.getMethod() )
+             && isNotModified( entityTag, lastModified ) )
+        {
+            response.setStatus( NOT_MODIFIED );
+            response.setBody( new ByteBufferResponseBodyWriter( ByteBuffer.allocate( 0 ), null ) );
+        }
+    }
+
+    private boolean isNotModified( String entityTag, long lastModified )
+    {
+        // If-Modified-Since has to be ignored when If-None-Match is present, see RFC 7232 section 3.3
+        if ( request.getHeaders().contains( IF_NONE_MATCH ) )
+        {
+            return entityTag != null && matches( request.getHeaders().getValues( IF_NONE_MATCH ), entityTag );
+        }
+
+        if ( lastModified < 0 || !request.getHeaders().contains( IF_MODIFIED_SINCE ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            long modifiedSince = clock.parseHttpDate( getHeaderValue( request, IF_MODIFIED_SINCE ) );
+            // HTTP dates have seconds precision
+            return lastModified / 1000 <= modifiedSince / 1000;
+        }
+        catch ( ParseException e )
+        {
+            // invalid dates have to be ignored
+            return false;
+        }
+    }
+
+    /**
+     * Advertises files and already encoded bodies can be requested by ranges and, when the request asks for ranges
+     * of the current body version, turns the response in a {@code 206 Partial Content} one that sends them only.
+     *
+     * @param request the request the response has been produced for
+     * @param response the response has to be serialized
+     * @param clock the server clock, that parses the {@code If-Range} dates
+     */
+    static void evaluateRanges( Request request, Response response, CoarseClock clock )
+    {
+        if ( OK != response.getStatus() || !( response.getBodyWriter() instanceof RangeableResponseBodyWriter ) )
+        {
+            return;
+        }
+
+        RangeableResponseBodyWriter body = (RangeableResponseBodyWriter) response.getBodyWriter();
+        long completeLength = body.getLength();
+
+        if ( completeLength < 0 )
+        {
+            // ranges cannot be resolved against an unknown size
+            return;
+        }
+
+        response.addHeader( ACCEPT_RANGES, BYTES );
+
+        if ( GET != request.getMethod()
+             || !request.getHeaders().contains( RANGE )
+             || ( request.getHeaders().contains( IF_RANGE ) && !isCurrent( getHeaderValue( request, IF_RANGE ), body, clock ) ) )
+        {
+            return;
+        }
+
+        List<ByteRange> ranges = ByteRange.parse( getHeaderValue( request, RANGE ), completeLength );
+
+        if ( ranges == null )
+        {
+            // invalid ranges have to be ignored
+            return;
+        }
+
+        if ( ranges.isEmpty() )
+        {
+            response.setStatus( REQUESTED_RANGE_NOT_SATISFIABLE );
+            response.addHeader( CONTENT_RANGE, BYTES + " */" + completeLength );
+            response.setBody( new ByteBufferResponseBodyWriter( ByteBuffer.allocate( 0 ), null ) );
+            return;
+        }
+
+        response.setStatus( PARTIAL_CONTENT );
+        if ( ranges.size() == 1 )
+        {
+            response.addHeader( CONTENT_RANGE, ranges.get( 0 ).toContentRange( completeLength ) );
+        }
+        response.setBody( body.getRanges( ranges, completeLength ) );
+    }
+
+    /**
+     * Verifies the If-Range validator identifies the current body version, using the strong comparison.
+     */
+    private static boolean isCurrent( String validator, CacheableResponseBodyWriter body, CoarseClock clock )
+    {
+        if ( validator.startsWith( "\"" ) || validator.startsWith( WEAK_ENTITY_TAG_PREFIX ) )
+        {
+            return validator.equals( body.getEntityTag() );
+        }
+
+        try
+        {
+            return body.getLastModified() >= 0
+                   && body.getLastModified() / 1000 == clock.parseHttpDate( validator ) / 1000;
+        }
+        catch ( ParseException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the whole value of a request header, the parser splits header values on commas.
+     */
+    private static String getHeaderValue( Request request, String name )
+    {
+        StringBuilder value = new StringBuilder();
+        for ( String headerValue : request.getHeaders().getValues( name ) )
+        {
+            value.append( value.length() > 0 ? ", " : "" ).append( headerValue.trim() );
+        }
+        return value.toString();
+    }
+
+    /**
+     * Verifies the entity tag matches one of the If-None-Match values, using the weak comparison.
+     */
+    private static boolean matches( List<String> values, String entityTag )
+    {
+        String opaqueTag = stripWeakness( entityTag );
+
+        for ( String value : values )
+        {
+            for ( String candidate : value.split( "," ) )
+            {
+                candidate = candidate.trim();
+                if ( ANY_ENTITY_TAG.equals( candidate ) || opaqueTag.equals( stripWeakness( candidate ) ) )
                 {
-                    Formatter cookieFormatter = new Formatter()
-                                             .format( "%s=%s; Path=%s; Domain=%s;",
-                                                      cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() );
+                    return true;
+                }
+            }
+        }
 
-                    if ( !cookie.getPorts().isEmpty() )
-                    {
-                        cookieFormatter.format( " Port=\"" );
-                        int i = 0;
-                        for ( Integer port : cookie.getPorts() )
-                        {
-                            cookieFormatter.format( "%s%s", ( i++ > 0 ? "," : "" ), port );
-                        }
-                        cookieFormatter.format( "\";" );
-                    }
+        return false;
+    }
 
-                    if ( cookie.getMaxAge() != -1 )
-                    {
-                        Date expirationDate = new Date( cookie.getMaxAge() * 1000 + currentTimeMillis() );
-                        String expires = dateFormat.format( expirationDate );
+    private static String stripWeakness( String entityTag )
+    {
+        return entityTag.startsWith( WEAK_ENTITY_TAG_PREFIX )
+                        ? entityTag.substring( WEAK_ENTITY_TAG_PREFIX.length() )
+                        : entityTag;
+    }
 
-                        cookieFormatter.format( " Expires=%s;", expires );
-                    }
+    private void serialize( Response response, boolean awaitWritable )
+    {
+        response.setProtocolName( request.getProtocolName() );
+        response.setProtocolVersion( request.getProtocolVersion() );
+
+        evaluatePreconditions( response );
+        evaluateRanges( request, response, clock );
 
-                    // secure field ignored since HTTPs is not supported in this version
+        String contentEncoding = request.getHeaders().contains( ACCEPT_ENCODING )
+                                 ? compressionPolicy.negotiate( request.getHeaders().getValues( ACCEPT_ENCODING ) )
+                                 : null;
+
+        try
+        {
+            new ResponseSerializer( responseBuffers,
+                                    compressionPolicy,
+                                    contentEncoding,
+                                    compressionPolicy.getLevel( requestsExecutor ),
+                                    awaitWritable,
+                                    clock ).serialize( response );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Impossible to stream Response to the client", e );
 
-                    logger.debug( "{} > Set-Cookie: {} HttpOnly", request.getClientHost(), cookieFormatter.toString() );
+            // the key belongs to the reactor thread, that releases the connection resources too
+            connection.getReactor().close( connection );
+        }
+
+        // debug the response
+        if ( logger.isDebugEnabled() )
+        {
+            // protocol
+            logger.debug( "{} > {}/{} {} {}",
+                          new Object[] {
+                              request.getClientHost(),
+                              response.getProtocolName(),
+                              response.getProtocolVersion(),
+                              response.getStatus().getStatusCode(),
+                              response.getStatus().getStatusText()
+                          } );
+            // headers
+            for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+            {
+                Formatter headerValues = new Formatter();
+
+                int counter = 0;
+                for ( String headerValue : header.getValue() )
+                {
+                    headerValues.format( "%s%s", ( counter++ > 0 ? ", " : "" ), headerValue );
                 }
 
-                if ( logger.isInfoEnabled() )
+                logger.debug( "{} > {}: {}", new Object[] {
+                    request.getClientHost(),
+                    header.getKey(),
+                    headerValues.toString()
+                } );
+            }
+            // cookies
+            for ( Cookie cookie : response.getCookies() )
+            {
+                Formatter cookieFormatter = new Formatter()
+                                         .format( "%s=%s; Path=%s; Domain=%s;",
+                                                  cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() );
+
+                if ( !cookie.getPorts().isEmpty() )
                 {
-                    logger.info( "Request process completed in {}ms", ( currentTimeMillis() - start ) );
+                    cookieFormatter.format( " Port=\"" );
+                    int i = 0;
+                    for ( Integer port : cookie.getPorts() )
+                    {
+                        cookieFormatter.format( "%s%s", ( i++ > 0 ? "," : "" ), port );
+                    }
+                    cookieFormatter.format( "\";" );
+                }
+
+                if ( cookie.getMaxAge() != -1 )
+                {
+                    String expires = clock.formatHttpDate( cookie.getMaxAge() * 1000 + clock.currentTimeMillis() );
+
+                    cookieFormatter.format( " Expires=%s;", expires );
                 }
+
+                // secure field ignored since HTTPs is not supported in this version
+
+                logger.debug( "{} > Set-Cookie: {} HttpOnly", request.getClientHost(), cookieFormatter.toString() );
+            }
+
+            if ( logger.isInfoEnabled() )
+            {
+                logger.info( "Request process completed in {}ms", ( currentTimeMillis() - start ) );
             }
         }
     }
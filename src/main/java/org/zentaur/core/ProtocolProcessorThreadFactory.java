@@ -22,7 +22,8 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Custom {@link ThreadFactory} that creates daemon threads with proper name.
+ * Custom {@link ThreadFactory} that creates daemon threads with proper name,
+ * either platform or virtual threads.
  */
 final class ProtocolProcessorThreadFactory
     implements ThreadFactory
@@ -32,15 +33,44 @@ final class ProtocolProcessorThreadFactory
 
     private final AtomicLong count = new AtomicLong( 0 );
 
+    private final boolean virtualThreads;
+
+    /**
+     * Creates a new factory of platform threads.
+     */
+    public ProtocolProcessorThreadFactory()
+    {
+        this( false );
+    }
+
+    /**
+     * Creates a new thread factory.
+     *
+     * @param virtualThreads flag to create virtual threads instead of platform threads
+     */
+    public ProtocolProcessorThreadFactory( boolean virtualThreads )
+    {
+        this.virtualThreads = virtualThreads;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Thread newThread( Runnable runnable )
     {
-        Thread thread = new Thread( runnable );
+        Thread thread;
+        if ( virtualThreads )
+        {
+            // virtual threads are always daemon
+            thread = VirtualThreads.newThread( runnable );
+        }
+        else
+        {
+            thread = new Thread( runnable );
+            thread.setDaemon( true );
+        }
         thread.setName( format( THREAD_NAME_FORMAT, count.getAndIncrement() ) );
-        thread.setDaemon( true );
         return thread;
     }
 
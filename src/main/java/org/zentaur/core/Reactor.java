@@ -0,0 +1,730 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.zentaur.core.http.serialize.ResponseTemplates.closingConnection;
+import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+import static org.zentaur.http.Headers.CONNECTION;
+import static org.zentaur.http.Headers.KEEP_ALIVE;
+import static org.zentaur.http.Response.Status.BAD_REQUEST;
+import static org.zentaur.http.Response.Status.INTERNAL_SERVER_ERROR;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.MessagePool;
+import org.zentaur.core.http.RequestParseException;
+import org.zentaur.core.http.SessionManager;
+import org.zentaur.core.http.parse.RequestParser;
+import org.zentaur.core.http.serialize.CompressionPolicy;
+import org.zentaur.core.io.ByteBufferPool;
+import org.zentaur.core.io.OutboundBuffers;
+import org.zentaur.http.Request;
+import org.zentaur.http.Response.Status;
+import org.slf4j.Logger;
+
+/**
+ * A reactor owns a {@link Selector} and all the I/O operations - reads, writes and keep-alive
+ * re-registrations - of the connections that have been handed to it.
+ *
+ * Connections are registered from the acceptor thread via {@link #register(SocketChannel)}
+ * or, when listening sockets are sharded via {@code SO_REUSEPORT}, accepted by the reactor itself
+ * from its own listening socket; all the other methods are invoked by the reactor thread only.
+ *
+ * Other threads never touch the selection keys: they {@link #execute(Runnable)} tasks, that are queued
+ * and executed by the reactor thread before selecting again, waking up the selector once per batch.
+ */
+final class Reactor
+    implements Runnable, Executor
+{
+
+    private static final String HTTP_11 = "1.1";
+
+    private static final int READ_BUFFERS_POOL_CAPACITY = 4;
+
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private static final int IDLE_TIMEOUTS_TICKS_PER_WHEEL = 512;
+
+    private static final long IDLE_TIMEOUTS_TICK_DURATION = 100;
+
+    private final Logger logger = getLogger( getClass() );
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicBoolean wakenUp = new AtomicBoolean( false );
+
+    private final AtomicInteger connections = new AtomicInteger( 0 );
+
+    private final Selector selector;
+
+    private final ExecutorService requestsExecutor;
+
+    private final ScheduledExecutorService deferredResponsesTimer;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final RequestDispatcher dispatcher;
+
+    private final SessionManager sessionManager;
+
+    private final AdmissionControl admissionControl;
+
+    private final MessagePool messagePool;
+
+    private final CoarseClock clock;
+
+    private final boolean legacyParser;
+
+    private final long keepAliveTimeOut;
+
+    private final TimingWheel<Connection> idleConnections;
+
+    private final List<Connection> expiredConnections = new ArrayList<Connection>();
+
+    private final ByteBufferPool readBuffers;
+
+    private final int lowWatermark;
+
+    private final int highWatermark;
+
+    private final int pipelineDepth;
+
+    private final ByteBuffer[] gatheringBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+    private volatile boolean running = true;
+
+    private volatile Thread thread;
+
+    private ServerSocketChannel server;
+
+    /**
+     * Creates a new reactor instance.
+     *
+     * @param configurator the server configuration
+     * @param requestsExecutor the executor where requests are processed
+     * @param deferredResponsesTimer the scheduler that expires the asynchronous responses not completed in time
+     * @param sessionManager the HTTP sessions manager
+     * @param admissionControl the connections limits, shared by all the reactors
+     * @param messagePool the pool of the recycled requests and responses, shared by all the reactors
+     * @param clock the server clock, shared by all the reactors
+     * @throws IOException if the selector cannot be opened
+     */
+    public Reactor( DefaultHttpServerConfigurator configurator,
+                    ExecutorService requestsExecutor,
+                    ScheduledExecutorService deferredResponsesTimer,
+                    SessionManager sessionManager,
+                    AdmissionControl admissionControl,
+                    MessagePool messagePool,
+                    CoarseClock clock )
+        throws IOException
+    {
+        this.selector = Selector.open();
+        this.requestsExecutor = requestsExecutor;
+        this.deferredResponsesTimer = deferredResponsesTimer;
+        this.dispatcher = configurator.getRequestDispatcher();
+        this.compressionPolicy = configurator.getCompressionPolicy();
+        this.sessionManager = sessionManager;
+        this.admissionControl = admissionControl;
+        this.messagePool = messagePool;
+        this.clock = clock;
+        this.keepAliveTimeOut = configurator.getKeepAliveTimeOut() * 1000L;
+        this.idleConnections = new TimingWheel<Connection>( IDLE_TIMEOUTS_TICKS_PER_WHEEL,
+                                                            IDLE_TIMEOUTS_TICK_DURATION,
+                                                            currentTimeMillis() );
+        this.readBuffers = new ByteBufferPool( configurator.getReadBufferSize(), READ_BUFFERS_POOL_CAPACITY );
+        this.lowWatermark = configurator.getLowWatermark();
+        this.highWatermark = configurator.getHighWatermark();
+        this.pipelineDepth = configurator.getPipelineDepth();
+        this.legacyParser = configurator.isLegacyParser();
+    }
+
+    /**
+     * Makes this reactor accepting connections from its own listening socket.
+     *
+     * This method has to be invoked before the reactor is started.
+     *
+     * @param server the listening socket, bound with the {@code SO_REUSEPORT} option
+     * @throws IOException if the listening socket cannot be registered
+     */
+    public void listen( ServerSocketChannel server )
+        throws IOException
+    {
+        this.server = server;
+        server.register( selector, OP_ACCEPT );
+    }
+
+    /**
+     * Releases the selector and the listening socket of a reactor that has never been started,
+     * i.e. when the server initialization fails.
+     */
+    public void dispose()
+    {
+        closeQuietly( server );
+        closeQuietly( selector );
+    }
+
+    /**
+     * Hands a new accepted connection to this reactor, that will be in charge of its I/O operations.
+     *
+     * This method can be safely invoked by any thread.
+     *
+     * @param socketChannel the accepted connection
+     */
+    public void register( final SocketChannel socketChannel )
+    {
+        connections.incrementAndGet();
+        execute( new Runnable()
+        {
+
+            public void run()
+            {
+                connect( socketChannel );
+            }
+
+        } );
+    }
+
+    /**
+     * Closes the input connection in the reactor thread, i.e. when its responses cannot be written anymore.
+     *
+     * This method can be safely invoked by any thread.
+     *
+     * @param connection the connection has to be closed
+     */
+    public void close( final Connection connection )
+    {
+        execute( new Runnable()
+        {
+
+            public void run()
+            {
+                close( connection.getKey() );
+            }
+
+        } );
+    }
+
+    /**
+     * Executes the input task in the reactor thread: immediately if invoked by the reactor thread itself,
+     * otherwise it is queued and the selector is woken up, unless a wake up is already pending.
+     *
+     * This method can be safely invoked by any thread.
+     *
+     * @param task the task has to be executed in the reactor thread
+     */
+    @Override
+    public void execute( Runnable task )
+    {
+        if ( Thread.currentThread() == thread )
+        {
+            task.run();
+            return;
+        }
+
+        tasks.offer( task );
+
+        if ( wakenUp.compareAndSet( false, true ) )
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns the number of connections currently handled by this reactor.
+     *
+     * @return the number of connections currently handled by this reactor.
+     */
+    public int getConnections()
+    {
+        return connections.get();
+    }
+
+    /**
+     * Stops this reactor, closing all the connections it owns.
+     */
+    public void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        thread = Thread.currentThread();
+
+        while ( running )
+        {
+            runTasks();
+
+            // tasks queued from now on will wake up the selector
+            wakenUp.set( false );
+
+            try
+            {
+                if ( !tasks.isEmpty() )
+                {
+                    // tasks queued before the flag was reset didn't wake up the selector
+                    selector.selectNow();
+                }
+                else if ( keepAliveTimeOut > 0 )
+                {
+                    // wake up on the next tick at latest, to expire idle connections
+                    selector.select( idleConnections.untilNextTick( currentTimeMillis() ) );
+                }
+                else
+                {
+                    selector.select();
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.error( "Something wrong happened while selecting connections, reactor will be stopped", e );
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while ( keys.hasNext() )
+            {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if ( !key.isValid() )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    if ( key.isAcceptable() )
+                    {
+                        accept( key );
+                    }
+                    else if ( key.isReadable() )
+                    {
+                        read( key );
+                    }
+                    else if ( key.isWritable() )
+                    {
+                        write( key );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    logger.error( "An error occurred wile negotiation", e );
+
+                    if ( server != key.channel() )
+                    {
+                        close( key );
+                    }
+                }
+            }
+
+            closeIdleConnections();
+        }
+
+        // connections registered in the meanwhile have to be closed too
+        runTasks();
+
+        closeQuietly( server );
+        for ( SelectionKey key : selector.keys() )
+        {
+            close( key );
+        }
+        closeQuietly( selector );
+    }
+
+    private void accept( SelectionKey key )
+        throws IOException
+    {
+        SocketChannel socketChannel;
+        while ( !admissionControl.pauseAccepting( key, this ) && ( socketChannel = server.accept() ) != null )
+        {
+            if ( !admissionControl.admit( socketChannel ) )
+            {
+                admissionControl.reject( socketChannel );
+                continue;
+            }
+
+            socketChannel.configureBlocking( false );
+
+            Socket socket = socketChannel.socket();
+
+            if ( logger.isInfoEnabled() )
+            {
+                logger.info( "Accepting new request from {}", socket.getInetAddress().getHostAddress() );
+            }
+
+            connections.incrementAndGet();
+            connect( socketChannel );
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ( ( task = tasks.poll() ) != null )
+        {
+            try
+            {
+                task.run();
+            }
+            catch ( RuntimeException e )
+            {
+                logger.error( "An error occurred while executing a reactor task", e );
+            }
+        }
+    }
+
+    private void closeIdleConnections()
+    {
+        if ( keepAliveTimeOut <= 0 )
+        {
+            return;
+        }
+
+        idleConnections.expire( currentTimeMillis(), expiredConnections );
+
+        for ( Connection connection : expiredConnections )
+        {
+            if ( logger.isInfoEnabled() )
+            {
+                logger.info( "Connection with {} has been idle for more than {}ms, closing it",
+                             connection.getSocket().getInetAddress().getHostAddress(), keepAliveTimeOut );
+            }
+
+            close( connection.getKey() );
+        }
+
+        expiredConnections.clear();
+    }
+
+    /**
+     * Starts tracking the input connection idle time, it will be closed if no activity happens before the timeout.
+     *
+     * @param connection the connection waiting for request bytes
+     */
+    private void trackIdleTime( Connection connection )
+    {
+        if ( keepAliveTimeOut > 0 )
+        {
+            idleConnections.schedule( connection.getIdleTimeout(), keepAliveTimeOut );
+        }
+    }
+
+    /**
+     * Registers the input accepted connection to this reactor selector.
+     *
+     * @param socketChannel the accepted connection
+     */
+    private void connect( SocketChannel socketChannel )
+    {
+        try
+        {
+            SelectionKey key = socketChannel.register( selector, OP_READ );
+            Connection connection = new Connection( key, this, lowWatermark, highWatermark, pipelineDepth,
+                                                   messagePool, legacyParser );
+            connection.setIdleTimeout( idleConnections.newTimeout( connection ) );
+            connection.newRequest();
+            key.attach( connection );
+
+            trackIdleTime( connection );
+        }
+        catch ( IOException e )
+        {
+            logger.error( "Impossible to register the accepted connection", e );
+
+            connections.decrementAndGet();
+            admissionControl.release( socketChannel.socket().getInetAddress() );
+            closeQuietly( socketChannel );
+        }
+    }
+
+    private void read( SelectionKey key )
+        throws IOException
+    {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel serverChannel = connection.getChannel();
+
+        // borrowed for the read only, bytes not yet processed are copied by the connection
+        ByteBuffer data = readBuffers.borrow();
+
+        try
+        {
+            int read = 0;
+            long received = 0;
+            while ( connection.isReadable() && ( read = serverChannel.read( data ) ) > 0 )
+            {
+                received += read;
+
+                data.flip();
+                processRequests( connection, data );
+                data.clear();
+            }
+
+            if ( read == -1 )
+            {
+                // client closed the connection
+                close( key );
+                return;
+            }
+
+            if ( !key.isValid() )
+            {
+                // closed while processing the requests inline
+                return;
+            }
+
+            if ( received > 0 && !connection.hasPendingResponses() )
+            {
+                // some bytes of the next request arrived, restart counting the idle time
+                trackIdleTime( connection );
+            }
+
+            updateReadInterest( connection );
+        }
+        catch ( IOException e )
+        {
+            connection.setKeepAlive( false );
+            respondWithError( connection, INTERNAL_SERVER_ERROR );
+        }
+        finally
+        {
+            readBuffers.release( data );
+        }
+    }
+
+    /**
+     * Parses the received bytes and dispatches the complete requests as long as the connection is readable,
+     * the bytes that cannot be processed yet are kept by the connection.
+     *
+     * @param connection the connection the bytes have been received from
+     * @param data the received bytes
+     * @throws IOException if any error occurs while dispatching the requests
+     */
+    private void processRequests( Connection connection, ByteBuffer data )
+        throws IOException
+    {
+        while ( data.hasRemaining() && connection.isReadable() )
+        {
+            RequestParser requestParser = connection.getRequestParser();
+
+            try
+            {
+                requestParser.onRequestPartRead( data );
+            }
+            catch ( RequestParseException e )
+            {
+                // next requests cannot be recognized, the connection will be closed
+                connection.setKeepAlive( false );
+                respondWithError( connection, BAD_REQUEST );
+                break;
+            }
+
+            if ( requestParser.isRequestMessageComplete() )
+            {
+                dispatch( connection, requestParser.getParsedRequest() );
+                connection.newRequest();
+            }
+        }
+
+        if ( !connection.isKeepAlive() )
+        {
+            // no more requests will be served
+            data.position( data.limit() );
+        }
+
+        connection.keepPendingInput( data );
+    }
+
+    private void dispatch( Connection connection, Request request )
+        throws IOException
+    {
+        // the connection is no longer idle while requests are processed
+        idleConnections.cancel( connection.getIdleTimeout() );
+
+        boolean keepAlive = HTTP_11.equals( request.getProtocolVersion() )
+                        || ( request.getHeaders().contains( CONNECTION )
+                             && KEEP_ALIVE.equals( request.getHeaders().getFirstValue( CONNECTION ) ) );
+        if ( keepAlive )
+        {
+            connection.getSocket().setKeepAlive( true );
+        }
+        else
+        {
+            // the connection will be closed once the response has been written
+            connection.setKeepAlive( false );
+        }
+
+        boolean inline = dispatcher.isNonBlocking( request );
+
+        ProtocolProcessor processor = new ProtocolProcessor( sessionManager, dispatcher, request, connection,
+                                                             connection.newResponse(), keepAlive, keepAliveTimeOut,
+                                                             inline, requestsExecutor, deferredResponsesTimer,
+                                                             compressionPolicy, messagePool, clock );
+
+        if ( inline )
+        {
+            // cheap handlers are cheaper than the hand off to the executor
+            processor.run();
+        }
+        else
+        {
+            requestsExecutor.execute( processor );
+        }
+    }
+
+    /**
+     * Enqueues the pre-encoded bodyless response of the input status, the connection is closed once written.
+     * The response has the protocol version of the request being parsed, if its request line has been read.
+     *
+     * @param connection the connection the response has to be written to
+     * @param status the error status
+     */
+    private void respondWithError( Connection connection, Status status )
+    {
+        Request request = connection.getRequestParser().getParsedRequest();
+        String protocolVersion = request != null ? request.getProtocolVersion() : null;
+
+        OutboundBuffers response = connection.newResponse();
+        response.offer( closingConnection( clock, protocolVersion, status ) );
+        response.offer( EOM );
+        response.startWriting();
+    }
+
+    private void updateReadInterest( Connection connection )
+    {
+        if ( connection.getKey().isValid() )
+        {
+            connection.setInterest( OP_READ, connection.isReadable() );
+        }
+    }
+
+    private void write( SelectionKey key )
+        throws IOException
+    {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel serverChannel = connection.getChannel();
+        Socket socket = serverChannel.socket();
+
+        // responses are written in the same order requests have been received
+        OutboundBuffers response;
+        while ( ( response = connection.getCurrentResponse() ) != null
+                && response.writeTo( serverChannel, gatheringBuffers ) )
+        {
+            connection.currentResponseWritten();
+
+            if ( logger.isInfoEnabled() )
+            {
+                logger.info( "Request with {} satisfied.", socket.getInetAddress().getHostAddress() );
+            }
+        }
+
+        if ( response == null )
+        {
+            if ( !connection.isKeepAlive() )
+            {
+                if ( logger.isInfoEnabled() )
+                {
+                    logger.info( "Terminating connection with {}", socket.getInetAddress().getHostAddress() );
+                }
+
+                close( key );
+                return;
+            }
+
+            if ( logger.isInfoEnabled() )
+            {
+                logger.info( "Connection with {} will kept alive", socket.getInetAddress().getHostAddress() );
+            }
+
+            trackIdleTime( connection );
+            connection.setInterest( OP_WRITE, false );
+        }
+        else if ( response.peek() == null )
+        {
+            // nothing to write until the current response producer enqueues more buffers
+            response.suspendWriting();
+        }
+
+        // written responses could make room for the pending requests
+        if ( connection.getPendingInput() != null )
+        {
+            processRequests( connection, connection.getPendingInput() );
+        }
+
+        updateReadInterest( connection );
+    }
+
+    /**
+     * Cancels the input key and closes the related connection.
+     *
+     * @param key the key of the connection has to be closed
+     */
+    private void close( SelectionKey key )
+    {
+        key.cancel();
+
+        if ( key.attachment() != null )
+        {
+            Connection connection = (Connection) key.attachment();
+
+            idleConnections.cancel( connection.getIdleTimeout() );
+            // wake up the producers still waiting to write
+            connection.close();
+        }
+
+        if ( key.channel().isOpen() )
+        {
+            connections.decrementAndGet();
+
+            if ( key.attachment() != null )
+            {
+                admissionControl.release( ( (Connection) key.attachment() ).getSocket().getInetAddress() );
+            }
+
+            closeQuietly( key.channel() );
+        }
+    }
+
+}
@@ -16,19 +16,26 @@ package org.zentaur.core;
  *   limitations under the License.
  */
 
+import static java.lang.String.format;
+import static org.zentaur.core.http.ResponseFactory.isBodyless;
+import static org.zentaur.core.http.serialize.BareResponseBodyWriter.BARE;
+import static org.zentaur.core.io.FileResponseBodyWriter.getContentType;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
 import static org.zentaur.http.Response.Status.NOT_FOUND;
 import static org.zentaur.http.Response.Status.OK;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.EnumMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import org.zentaur.core.io.FileResponseBodyWriter;
+import org.zentaur.core.io.ByteBufferResponseBodyWriter;
 import org.zentaur.http.Request;
 import org.zentaur.http.RequestHandler;
 import org.zentaur.http.Response;
@@ -45,19 +52,66 @@ final class RequestDispatcher
 
     private final List<MatchingRequestHandler> handlers = new LinkedList<MatchingRequestHandler>();
 
-    private final Map<Status, File> defaultResponses = new EnumMap<Status, File>( Status.class );
+    private final Map<Status, ByteBufferResponseBodyWriter> defaultResponses =
+        new EnumMap<Status, ByteBufferResponseBodyWriter>( Status.class );
 
     public void addRequestHandler( String path, RequestHandler requestHandler )
     {
         handlers.add( new MatchingRequestHandler( path, requestHandler ) );
     }
 
+    /**
+     * Configures the default response for the input status, the file is read once and its bytes are shared
+     * by all the responses.
+     *
+     * @param status the status the default response replies to
+     * @param defaultReply the file has to be sent as body
+     * @throws IOException if any error occurs while reading the file
+     */
     public void addDefaultResponse( Status status, File defaultReply )
+        throws IOException
     {
-        defaultResponses.put( status, defaultReply );
+        FileChannel channel = new FileInputStream( defaultReply ).getChannel();
+        try
+        {
+            ByteBuffer content = ByteBuffer.allocate( (int) channel.size() );
+            while ( content.hasRemaining() && channel.read( content ) != -1 )
+            {
+                // keep reading
+            }
+            content.flip();
+
+            defaultResponses.put( status, new ByteBufferResponseBodyWriter( content,
+                                                                            getContentType( defaultReply.getName() ) ) );
+        }
+        finally
+        {
+            closeQuietly( channel );
+        }
     }
 
-    public void dispatch( Request request, Response response )
+    /**
+     * Verifies the handler that serves the input request is a {@link NonBlockingRequestHandler},
+     * i.e. the request can be processed by the reactor thread.
+     *
+     * @param request the request has to be dispatched
+     * @return true if the request handler never blocks, false otherwise.
+     */
+    public boolean isNonBlocking( Request request )
+    {
+        MatchingRequestHandler handler = lookup( request.getPath() );
+        return handler != null && handler.getRequestHandler() instanceof NonBlockingRequestHandler;
+    }
+
+    /**
+     * Dispatches the input request to the handler that serves its path.
+     *
+     * @param request the request has to be dispatched
+     * @param response the response the handler populates
+     * @return the handle of the response produced asynchronously, null if the response is already complete.
+     * @throws IOException if any error occurs while handling the request
+     */
+    public DeferredResponse dispatch( Request request, Response response )
         throws IOException
     {
         if ( logger.isDebugEnabled() )
@@ -65,32 +119,36 @@ final class RequestDispatcher
             logger.debug( "Choosing the right handler to dispatch {} request...", request.getPath() );
         }
 
-        boolean found = false;
-        Iterator<MatchingRequestHandler> handlersIterator = handlers.iterator();
+        MatchingRequestHandler handler = lookup( request.getPath() );
 
-        while ( !found && handlersIterator.hasNext() )
+        if ( handler != null )
         {
-            MatchingRequestHandler handler = handlersIterator.next();
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "Request {} will be dispatched by {}", request.getPath(),
+                              handler.getRequestHandler().getClass().getName() );
+            }
+
+            // found right handler to address the request
+            response.setStatus( OK );
 
-            if ( handler.shouldServe( request.getPath() ) )
+            // exception can be thrown by the method
+            if ( handler.getRequestHandler() instanceof AsyncRequestHandler )
             {
-                if ( logger.isDebugEnabled() )
+                DeferredResponse deferredResponse =
+                    ( (AsyncRequestHandler) handler.getRequestHandler() ).handleAsync( request, response );
+                if ( deferredResponse == null )
                 {
-                    logger.debug( "Request {} will be dispatched by {}", request.getPath(),
-                                  handler.getRequestHandler().getClass().getName() );
+                    throw new IllegalStateException( format( "Handler %s returned a null DeferredResponse",
+                                                             handler.getRequestHandler().getClass().getName() ) );
                 }
-
-                // found right handler to address the request
-                response.setStatus( OK );
-
-                // exception can be thrown by the method - loop would be blocked anyway
-                handler.getRequestHandler().handle( request, response );
-                // return the server request
-                found = true;
+                // default response will be checked once the response is complete
+                return deferredResponse;
             }
-        }
 
-        if ( !found )
+            handler.getRequestHandler().handle( request, response );
+        }
+        else
         {
             if ( logger.isDebugEnabled() )
             {
@@ -100,13 +158,38 @@ final class RequestDispatcher
             response.setStatus( NOT_FOUND );
         }
 
+        applyDefaultResponse( response );
+        return null;
+    }
+
+    /**
+     * Replaces the complete response body with the default response configured for its status, if any;
+     * bodyless {@code 404 Not Found} responses without a configured default response are served as the bare
+     * pre-encoded template, their headers and cookies are not sent.
+     *
+     * @param response the complete response
+     */
+    public void applyDefaultResponse( Response response )
+    {
         // check a default response has to be provided
 
-        File defaultResponse = defaultResponses.get( response.getStatus() );
+        ByteBufferResponseBodyWriter defaultResponse = defaultResponses.get( response.getStatus() );
         if ( defaultResponse != null )
         {
-            logger.info( "Default response {} configured to reply to status {}", defaultResponse, response.getStatus() );
-            response.setBody( new FileResponseBodyWriter( defaultResponse ) );
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "Default response configured to reply to status {}", response.getStatus() );
+            }
+            response.setBody( defaultResponse );
+        }
+        else if ( NOT_FOUND == response.getStatus() && isBodyless( response ) )
+        {
+            if ( logger.isDebugEnabled() )
+            {
+                logger.debug( "No default response configured to reply to status {}, using the bare template",
+                              response.getStatus() );
+            }
+            response.setBody( BARE );
         }
         else if ( logger.isDebugEnabled() )
         {
@@ -114,6 +197,18 @@ final class RequestDispatcher
         }
     }
 
+    private MatchingRequestHandler lookup( String path )
+    {
+        for ( MatchingRequestHandler handler : handlers )
+        {
+            if ( handler.shouldServe( path ) )
+            {
+                return handler;
+            }
+        }
+        return null;
+    }
+
     /**
      * Matches URIs using the pattern grammar of the Servlet API and web.xml.
      *
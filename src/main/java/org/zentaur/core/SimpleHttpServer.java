@@ -16,34 +16,34 @@ package org.zentaur.core;
  *   limitations under the License.
  */
 
+import static java.lang.String.format;
 import static java.lang.Thread.currentThread;
-import static java.nio.ByteBuffer.allocate;
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
-import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.ServerSocketChannel.open;
 import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static org.zentaur.HttpServer.Status.INITIALIZED;
 import static org.zentaur.HttpServer.Status.RUNNING;
 import static org.zentaur.HttpServer.Status.STOPPED;
-import static org.zentaur.core.http.ResponseFactory.newResponse;
-import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
-import static org.zentaur.http.Headers.CONNECTION;
-import static org.zentaur.http.Headers.KEEP_ALIVE;
-import static org.zentaur.http.Response.Status.BAD_REQUEST;
-import static org.zentaur.http.Response.Status.INTERNAL_SERVER_ERROR;
+import static org.zentaur.core.VirtualThreads.newThreadPerTaskExecutor;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.net.SocketOption;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.zentaur.HttpServer;
@@ -51,38 +51,75 @@ import org.zentaur.HttpServerConfiguration;
 import org.zentaur.InitException;
 import org.zentaur.RunException;
 import org.zentaur.ShutdownException;
-import org.zentaur.core.http.RequestParseException;
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.MessagePool;
 import org.zentaur.core.http.SessionManager;
-import org.zentaur.core.http.parse.RequestStreamingParser;
-import org.zentaur.core.http.serialize.ResponseSerializer;
-import org.zentaur.http.Request;
-import org.zentaur.http.Response;
 import org.slf4j.Logger;
 
 /**
  * A simple {@link HttpServer} implementation.
  *
+ * The thread that invokes {@link #start()} accepts the incoming connections,
+ * that are spread across {@link Reactor}s, each one running in its own thread.
+ *
  * This class must NOT be shared across threads, consider it be used inside main(String...) method.
  */
 public final class SimpleHttpServer
     implements HttpServer
 {
 
-    private static final String HTTP_11 = "1.1";
+    private static final String REACTOR_THREAD_NAME_FORMAT = "reactor-%s";
+
+    private static final String SO_REUSEPORT = "SO_REUSEPORT";
+
+    private static final String DEFERRED_RESPONSES_TIMER_THREAD_NAME = "deferred-responses-timer";
 
     private final Logger logger = getLogger( getClass() );
 
+    private final Queue<Runnable> acceptorTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Executes tasks in the acceptor thread, the only one that touches the listening socket key.
+     */
+    private final Executor acceptor = new Executor()
+    {
+
+        public void execute( Runnable task )
+        {
+            acceptorTasks.offer( task );
+
+            Selector acceptorSelector = selector;
+            if ( acceptorSelector != null )
+            {
+                acceptorSelector.wakeup();
+            }
+        }
+
+    };
+
     private ExecutorService requestsExecutor;
 
+    private ScheduledExecutorService deferredResponsesTimer;
+
     private ServerSocketChannel server;
 
-    private Selector selector;
+    private volatile Selector selector;
 
     private RequestDispatcher dispatcher;
 
     private SessionManager sessionManager;
 
-    private int keepAliveTimeOut;
+    private AdmissionControl admissionControl;
+
+    private MessagePool messagePool;
+
+    private CoarseClock clock;
+
+    private Reactor[] reactors;
+
+    private Thread[] reactorThreads;
+
+    private int nextReactor;
 
     private final AtomicReference<Status> currentStatus = new AtomicReference<Status>();
 
@@ -107,45 +144,225 @@ public final class SimpleHttpServer
         configuratoruration.configure( configurator );
         checkInitParameter( configurator.getHost() != null, "Impossible bind server to a null host" );
         checkInitParameter( configurator.getPort() > 0, "Impossible to listening on port %s, it must be a positive number", configurator.getPort() );
-        checkInitParameter( configurator.getThreads() > 0, "Impossible to serve requests with negative or none threads" );
+        checkInitParameter( configurator.isVirtualThreads() || configurator.getThreads() > 0, "Impossible to serve requests with negative or none threads" );
         checkInitParameter( configurator.getSessionMaxAge() > 0, "Sessions without timelive won't exist" );
         checkInitParameter( configurator.getKeepAliveTimeOut() >= 0, "Negative keep alive timeout not allowed" );
+        checkInitParameter( configurator.getReactors() > 0, "Impossible to handle connections with negative or none reactors" );
 
-        keepAliveTimeOut = configurator.getKeepAliveTimeOut() * 1000;
-
-        logger.info( "Initializing server using {} threads...", configurator.getThreads() );
+        checkInitParameter( !configurator.isVirtualThreads() || VirtualThreads.isSupported(),
+                            "Impossible to serve requests with virtual threads, they are not supported by the running JVM" );
 
         currentThread().setName( "socket-listener" );
-        requestsExecutor = newFixedThreadPool( configurator.getThreads(), new ProtocolProcessorThreadFactory() );
+
+        if ( configurator.isVirtualThreads() )
+        {
+            logger.info( "Initializing server using virtual threads..." );
+        }
+        else
+        {
+            logger.info( "Initializing server using {} threads...", configurator.getThreads() );
+        }
+
+        requestsExecutor = newRequestsExecutor( configurator );
+
+        deferredResponsesTimer = newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, DEFERRED_RESPONSES_TIMER_THREAD_NAME );
+                thread.setDaemon( true );
+                return thread;
+            }
+
+        } );
+
+        clock = new CoarseClock();
+        clock.start();
 
         logger.info( "Done! Initializing the SessionManager ..." );
 
-        sessionManager = new SessionManager( configurator.getSessionMaxAge() * 1000 );
+        sessionManager = new SessionManager( configurator.getSessionMaxAge() * 1000, clock );
+
+        this.dispatcher = configurator.getRequestDispatcher();
+
+        admissionControl = new AdmissionControl( configurator.getMaxConnections(),
+                                                 configurator.getMaxConnectionsPerClient(),
+                                                 configurator.isPauseAccepting(),
+                                                 clock );
+
+        messagePool = new MessagePool( messagePoolCapacity( configurator ), configurator.isDetectingRetainedMessages() );
+
+        logger.info( "Done! Initializing {} reactors ...", configurator.getReactors() );
+
+        reactors = new Reactor[configurator.getReactors()];
+        for ( int i = 0; i < reactors.length; i++ )
+        {
+            try
+            {
+                reactors[i] = new Reactor( configurator, requestsExecutor, deferredResponsesTimer,
+                                           sessionManager, admissionControl, messagePool, clock );
+            }
+            catch ( IOException e )
+            {
+                disposeInitResources();
+                throw new InitException( "Impossible to open the selector of reactor #%s: %s", i, e.getMessage() );
+            }
+        }
 
         logger.info( "Done! Binding host {} listening on port {} ...", configurator.getHost(), configurator.getPort() );
 
+        InetSocketAddress address = new InetSocketAddress( configurator.getHost(), configurator.getPort() );
         try
         {
-            server = open();
-            server.socket().bind( new InetSocketAddress( configurator.getHost(), configurator.getPort() ) );
-            server.configureBlocking( false );
-
             selector = Selector.open();
-            server.register( selector, OP_ACCEPT );
+
+            if ( configurator.isReusePort() )
+            {
+                // the acceptor selector stays empty, each reactor accepts from its own listening socket
+                for ( Reactor reactor : reactors )
+                {
+                    reactor.listen( bind( address, configurator.getBacklog(), true ) );
+                }
+            }
+            else
+            {
+                server = bind( address, configurator.getBacklog(), false );
+                server.register( selector, OP_ACCEPT );
+            }
         }
         catch ( IOException e )
         {
+            disposeInitResources();
             throw new InitException( "Impossible to start server on port %s (with %s threads): %s",
                                      configurator.getPort(), configurator.getThreads(), e.getMessage() );
         }
 
-        this.dispatcher = configurator.getRequestDispatcher();
-
         logger.info( "Done! Server has been successfully initialized, it can be now started" );
 
         currentStatus.set( INITIALIZED );
     }
 
+    /**
+     * Creates the executor where requests are processed: a thread-per-task executor of virtual threads,
+     * when configured, otherwise a fixed pool of platform threads.
+     *
+     * @param configurator the server configuration
+     * @return the executor where requests are processed
+     */
+    static ExecutorService newRequestsExecutor( DefaultHttpServerConfigurator configurator )
+    {
+        if ( configurator.isVirtualThreads() )
+        {
+            return newThreadPerTaskExecutor( new ProtocolProcessorThreadFactory( true ) );
+        }
+        return newFixedThreadPool( configurator.getThreads(), new ProtocolProcessorThreadFactory() );
+    }
+
+    /**
+     * Computes the message pool capacity: the pipelined requests of all the reactors, plus the configured bound,
+     * that doesn't depend on the number of threads when they are virtual.
+     *
+     * @param configurator the server configuration
+     * @return the number of requests and responses the pool keeps for reuse
+     */
+    static int messagePoolCapacity( DefaultHttpServerConfigurator configurator )
+    {
+        return configurator.getReactors() * configurator.getPipelineDepth() + configurator.getPooledMessages();
+    }
+
+    /**
+     * Releases the listening sockets, the selectors and the threads created by a failed initialization,
+     * so the server can be initialized again.
+     */
+    private void disposeInitResources()
+    {
+        for ( Reactor reactor : reactors )
+        {
+            // reactors not yet created when the selector of a previous one couldn't be opened
+            if ( reactor != null )
+            {
+                reactor.dispose();
+            }
+        }
+
+        closeQuietly( server );
+        closeQuietly( selector );
+
+        requestsExecutor.shutdownNow();
+        deferredResponsesTimer.shutdownNow();
+        clock.stop();
+        sessionManager.shutDown();
+
+        requestsExecutor = null;
+        deferredResponsesTimer = null;
+        clock = null;
+        server = null;
+        selector = null;
+        dispatcher = null;
+        sessionManager = null;
+        admissionControl = null;
+        messagePool = null;
+        reactors = null;
+    }
+
+    /**
+     * Opens a new non blocking listening socket bound to the input address.
+     *
+     * @param address the address the listening socket has to be bound to
+     * @param backlog the maximum length of the queue of the incoming connections not yet accepted
+     * @param reusePort flag to enable the {@code SO_REUSEPORT} option, so more sockets can be bound to the same address
+     * @return the bound listening socket
+     * @throws IOException if any error occurs while binding
+     */
+    private static ServerSocketChannel bind( InetSocketAddress address, int backlog, boolean reusePort )
+        throws IOException
+    {
+        ServerSocketChannel serverChannel = open();
+
+        try
+        {
+            if ( reusePort )
+            {
+                serverChannel.setOption( reusePortOption( serverChannel ), true );
+            }
+
+            serverChannel.socket().bind( address, backlog );
+            serverChannel.configureBlocking( false );
+        }
+        catch ( IOException e )
+        {
+            closeQuietly( serverChannel );
+            throw e;
+        }
+
+        return serverChannel;
+    }
+
+    /**
+     * Looks up the {@code SO_REUSEPORT} option among the ones supported by the input listening socket,
+     * since not all the platforms support it.
+     *
+     * @param serverChannel the listening socket
+     * @return the {@code SO_REUSEPORT} option
+     * @throws IOException if the option is not supported by the underlying platform
+     */
+    private static SocketOption<Boolean> reusePortOption( ServerSocketChannel serverChannel )
+        throws IOException
+    {
+        for ( SocketOption<?> option : serverChannel.supportedOptions() )
+        {
+            if ( SO_REUSEPORT.equals( option.name() ) )
+            {
+                @SuppressWarnings( "unchecked" ) // SO_REUSEPORT is a boolean option
+                SocketOption<Boolean> reusePortOption = (SocketOption<Boolean>) option;
+                return reusePortOption;
+            }
+        }
+
+        throw new IOException( "SO_REUSEPORT option is not supported by the underlying platform" );
+    }
+
     /**
      * Verifies a configuration parameter condition, throwing {@link InitException} if not verified.
      *
@@ -175,10 +392,19 @@ public final class SimpleHttpServer
                                     currentStatus );
         }
 
+        reactorThreads = new Thread[reactors.length];
+        for ( int i = 0; i < reactors.length; i++ )
+        {
+            reactorThreads[i] = new Thread( reactors[i], format( REACTOR_THREAD_NAME_FORMAT, i ) );
+            reactorThreads[i].start();
+        }
+
         logger.info( "Server successfully started! Waiting for new requests..." );
 
         currentStatus.set( RUNNING );
 
+        RunException failure = null;
+
         while ( RUNNING == currentStatus.get() )
         {
             try
@@ -187,45 +413,31 @@ public final class SimpleHttpServer
             }
             catch ( Throwable t )
             {
-                throw new RunException( "Something wrong happened while listening for connections", t );
+                // reactor threads are not daemon, resources have to be disposed as when stopped before failing
+                failure = new RunException( "Something wrong happened while listening for connections", t );
+                currentStatus.set( STOPPED );
+                break;
             }
 
+            runAcceptorTasks();
+
             Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
             while ( keys.hasNext() )
             {
                 SelectionKey key = keys.next();
+                keys.remove();
 
-                if ( !key.isValid() )
-                {
-                    continue;
-                }
-
-                if ( !key.isReadable() )
-                {
-                    keys.remove();
-                }
-
-                try
+                if ( key.isValid() && key.isAcceptable() )
                 {
-                    if ( key.isAcceptable() )
+                    try
                     {
                         accept( key );
                     }
-                    else if ( key.isReadable() )
-                    {
-                        read( key, keys );
-                    }
-                    else if ( key.isWritable() )
+                    catch ( IOException e )
                     {
-                        write( key );
+                        logger.error( "An error occurred while accepting a new connection", e );
                     }
                 }
-                catch ( IOException e )
-                {
-                    logger.error( "An error occurred wile negotiation", e );
-
-                    key.cancel();
-                }
             }
         }
 
@@ -257,23 +469,54 @@ public final class SimpleHttpServer
             }
             finally
             {
+                shutdownReactors();
+
+                acceptorTasks.clear();
+
                 requestsExecutor.shutdown();
+                deferredResponsesTimer.shutdownNow();
+                clock.stop();
                 sessionManager.shutDown();
 
                 requestsExecutor = null;
+                deferredResponsesTimer = null;
+                clock = null;
                 server = null;
                 selector = null;
                 dispatcher = null;
                 sessionManager = null;
+                admissionControl = null;
+                messagePool = null;
+                reactors = null;
+                reactorThreads = null;
 
                 logger.info( "Done! Server is now stopped. Bye!" );
             }
         }
+
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+    private void runAcceptorTasks()
+    {
+        Runnable task;
+        while ( ( task = acceptorTasks.poll() ) != null )
+        {
+            task.run();
+        }
     }
 
     private void accept( SelectionKey key )
         throws IOException
     {
+        if ( admissionControl.pauseAccepting( key, acceptor ) )
+        {
+            return;
+        }
+
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         SocketChannel socketChannel = serverChannel.accept();
 
@@ -282,6 +525,12 @@ public final class SimpleHttpServer
             return;
         }
 
+        if ( !admissionControl.admit( socketChannel ) )
+        {
+            admissionControl.reject( socketChannel );
+            return;
+        }
+
         socketChannel.configureBlocking( false );
 
         Socket socket = socketChannel.socket();
@@ -291,144 +540,46 @@ public final class SimpleHttpServer
             logger.info( "Accepting new request from {}", socket.getInetAddress().getHostAddress() );
         }
 
-        switchToRead( socketChannel, socket );
+        chooseReactor().register( socketChannel );
     }
 
-    private void switchToRead( SocketChannel socketChannel, Socket socket )
-        throws IOException
-    {
-        socketChannel.register( selector, OP_READ, new RequestStreamingParser( socket.getInetAddress().getHostAddress(),
-                                                                               socket.getLocalAddress().getHostName(),
-                                                                               socket.getLocalPort() ) );
-    }
-
-    private void read( SelectionKey key, Iterator<SelectionKey> keys )
-        throws IOException
+    /**
+     * Selects the least loaded reactor, starting the scan in round-robin order
+     * so reactors with the same load are equally chosen.
+     *
+     * @return the reactor the accepted connection has to be handed to
+     */
+    private Reactor chooseReactor()
     {
-        SocketChannel serverChannel = (SocketChannel) key.channel();
-
-        RequestStreamingParser requestParser = (RequestStreamingParser) key.attachment();
-
-        ByteBuffer data = allocate( 100 );
-
-        try
+        Reactor chosen = reactors[nextReactor];
+        for ( int i = 1; i < reactors.length; i++ )
         {
-            push: while ( serverChannel.read( data ) != -1 && !requestParser.isRequestMessageComplete() )
+            Reactor candidate = reactors[( nextReactor + i ) % reactors.length];
+            if ( candidate.getConnections() < chosen.getConnections() )
             {
-                data.flip();
-
-                try
-                {
-                    requestParser.onRequestPartRead( data );
-                }
-                catch ( RequestParseException e )
-                {
-                    Response response = newResponse();
-                    response.setStatus( BAD_REQUEST );
-                    keys.remove();
-
-                    try
-                    {
-                        new ResponseSerializer( key ).serialize( response );
-                    }
-                    catch ( IOException ioe )
-                    {
-                        key.cancel();
-
-                        logger.error( "Impossible to stream Response to the client", e );
-                    }
-
-                    break push;
-                }
-
-                data.clear();
-            }
-
-            if ( requestParser.isRequestMessageComplete() )
-            {
-                keys.remove();
-                key.interestOps( 0 );
-
-                Request request = requestParser.getParsedRequest();
-
-                boolean keepAlive = HTTP_11.equals( request.getProtocolVersion() )
-                                || ( request.getHeaders().contains( CONNECTION )
-                                     && KEEP_ALIVE.equals( request.getHeaders().getFirstValue( CONNECTION ) ) );
-                if ( keepAlive )
-                {
-                    Socket socket = serverChannel.socket();
-                    socket.setKeepAlive( true );
-                    socket.setSoTimeout( keepAliveTimeOut );
-                }
-
-                requestsExecutor.execute( new ProtocolProcessor( sessionManager, dispatcher, request, key ) );
-            }
-        }
-        catch ( IOException e )
-        {
-            Response response = newResponse();
-            response.setStatus( INTERNAL_SERVER_ERROR );
-            keys.remove();
-
-            try
-            {
-                new ResponseSerializer( key ).serialize( response );
-            }
-            catch ( IOException ioe )
-            {
-                key.cancel();
-
-                logger.error( "Impossible to stream Response to the client", e );
+                chosen = candidate;
             }
         }
+        nextReactor = ( nextReactor + 1 ) % reactors.length;
+        return chosen;
     }
 
-    private void write( SelectionKey key )
-        throws IOException
+    private void shutdownReactors()
     {
-        SocketChannel serverChannel = (SocketChannel) key.channel();
-
-        @SuppressWarnings( "unchecked" ) // type is driven by the ProtocolProcessor
-        Queue<ByteBuffer> responseBuffers = ( Queue<ByteBuffer> ) key.attachment();
-
-        ByteBuffer current = responseBuffers.poll();
+        for ( Reactor reactor : reactors )
+        {
+            reactor.shutdown();
+        }
 
-        if ( current != null )
+        for ( Thread reactorThread : reactorThreads )
         {
-            if ( EOM == current )
+            try
             {
-                Socket socket = serverChannel.socket();
-
-                if ( logger.isInfoEnabled() )
-                {
-                    logger.info( "Request with {} satisfied.", socket.getInetAddress().getHostAddress() );
-                }
-
-                if ( socket.getKeepAlive() )
-                {
-                    if ( logger.isInfoEnabled() )
-                    {
-                        logger.info( "Connection with {} will kept alive", socket.getInetAddress().getHostAddress() );
-                    }
-
-                    switchToRead( serverChannel, socket );
-                }
-                else
-                {
-                    if ( logger.isInfoEnabled() )
-                    {
-                        logger.info( "Terminating connection with {}", socket.getInetAddress().getHostAddress() );
-                    }
-
-                    socket.close();
-                    key.cancel();
-                }
+                reactorThread.join();
             }
-            else
+            catch ( InterruptedException e )
             {
-                serverChannel.write( current );
-                // free the memory
-                current.clear();
+                currentThread().interrupt();
             }
         }
     }
@@ -446,6 +597,7 @@ public final class SimpleHttpServer
         }
 
         currentStatus.set( STOPPED );
+        selector.wakeup();
     }
 
     /**
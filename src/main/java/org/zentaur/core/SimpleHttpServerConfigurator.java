@@ -0,0 +1,211 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.zentaur.HttpServerConfigurator;
+
+/**
+ * {@link HttpServerConfigurator} extension that exposes the {@link SimpleHttpServer} engine specific options.
+ *
+ * The configurator passed to {@link org.zentaur.HttpServerConfiguration#configure(HttpServerConfigurator)}
+ * by the {@link SimpleHttpServer} always implements this interface.
+ */
+public interface SimpleHttpServerConfigurator
+    extends HttpServerConfigurator
+{
+
+    /**
+     * Sets the number of reactors - the selector threads that own the accepted connections
+     * I/O operations - accepted connections will be spread across.
+     *
+     * @param reactors the number of reactors, must be a positive number.
+     */
+    void handleConnectionsWithReactors( int reactors );
+
+    /**
+     * Processes each request in its own virtual thread instead of a fixed pool of platform threads,
+     * so requests blocked on I/O don't limit the number of requests served at the same time;
+     * the number of threads set via {@link #serveRequestsWithThreads(int)} is then ignored.
+     *
+     * Disabled by default, virtual threads require Java 21 or later.
+     *
+     * @param virtualThreads true to process requests in virtual threads, false to use a pool of platform threads
+     */
+    void serveRequestsWithVirtualThreads( boolean virtualThreads );
+
+    /**
+     * Enables the listener sharding: each reactor binds its own listening socket on the same host and port
+     * using the {@code SO_REUSEPORT} option and accepts its connections by itself, letting the kernel spread
+     * the incoming connections across the reactors; there is no more a single acceptor thread.
+     *
+     * Disabled by default, the {@code SO_REUSEPORT} option has to be supported by the underlying platform.
+     *
+     * @param reusePort true to bind one listening socket per reactor, false to accept connections in a single thread
+     */
+    void acceptConnectionsWithReusePort( boolean reusePort );
+
+    /**
+     * Sets the size of the buffers, pooled by each reactor, where incoming request bytes are read into.
+     *
+     * @param readBufferSize the read buffers size in bytes, must be a positive number.
+     */
+    void readRequestsWithBufferSize( int readBufferSize );
+
+    /**
+     * Sets the per response limits of the bytes pending to be written: when the pending bytes of a response
+     * exceed the high watermark, the connection stops reading new requests and the response producer waits;
+     * once the pending bytes drop below the low watermark, the response is writable again.
+     *
+     * @param lowWatermark the pending bytes threshold below which the connection becomes writable again
+     * @param highWatermark the pending bytes threshold above which the connection is not writable
+     */
+    void limitPendingResponseBytes( int lowWatermark, int highWatermark );
+
+    /**
+     * Sets the maximum number of requests per connection that can be processed at the same time,
+     * when clients pipeline them; responses are always written back in the same order requests were received.
+     *
+     * Once the limit is reached, the connection stops reading new requests until the oldest response has been written,
+     * {@code 1} disables the pipelining, requests will be processed one by one.
+     *
+     * @param pipelineDepth the maximum number of requests processed at the same time per connection,
+     *        must be a positive number.
+     */
+    void processPipelinedRequestsUpTo( int pipelineDepth );
+
+    /**
+     * Sets the number of requests and responses kept for reuse once their exchange completed,
+     * besides the ones each reactor needs for its pipelined requests; messages exceeding the pool
+     * capacity are left to the garbage collector.
+     *
+     * Defaults to the number of threads serving the requests, or to {@code 256} when serving them
+     * with virtual threads, since their number is not bounded.
+     *
+     * @param pooledMessages the number of messages kept for reuse besides the pipelined ones,
+     *        must not be a negative number.
+     */
+    void poolMessagesUpTo( int pooledMessages );
+
+    /**
+     * Sets the maximum number of connections handled at the same time, connections exceeding it are rejected
+     * with a {@code 503 Service Unavailable} response, unless accepting is paused when the limit is reached.
+     *
+     * Unlimited by default.
+     *
+     * @param maxConnections the maximum number of connections handled at the same time, must be a positive number.
+     * @see #pauseAcceptingWhenFull(boolean)
+     */
+    void acceptConnectionsUpTo( int maxConnections );
+
+    /**
+     * Sets the maximum number of connections from the same client address handled at the same time,
+     * connections exceeding it are rejected with a {@code 503 Service Unavailable} response.
+     *
+     * Unlimited by default.
+     *
+     * @param maxConnectionsPerClient the maximum number of connections from the same client address
+     *        handled at the same time, must be a positive number.
+     */
+    void acceptConnectionsPerClientUpTo( int maxConnectionsPerClient );
+
+    /**
+     * Stops accepting connections while the maximum number of connections is reached, instead of rejecting
+     * the exceeding ones: they will wait in the listening socket backlog until connections are closed.
+     *
+     * Disabled by default.
+     *
+     * @param pauseAccepting true to stop accepting connections when the limit is reached, false to reject them
+     */
+    void pauseAcceptingWhenFull( boolean pauseAccepting );
+
+    /**
+     * Sets the maximum length of the queue of the incoming connections not yet accepted,
+     * the actual length could be limited by the underlying platform.
+     *
+     * @param backlog the listening socket backlog, must be a positive number.
+     */
+    void acceptConnectionsWithBacklog( int backlog );
+
+    /**
+     * Sets the deflate level response bodies are compressed with, when the client accepts
+     * the {@code gzip} or {@code deflate} content codings; {@code 0} disables the compression.
+     *
+     * The zlib default level by default.
+     *
+     * @param level the deflate level, from {@code 0} to {@code 9}, {@code -1} for the zlib default level.
+     */
+    void compressResponsesWithLevel( int level );
+
+    /**
+     * Sets the minimum size of the response bodies that are compressed, smaller bodies are sent as they are
+     * since compressing them costs more than the bytes it saves.
+     *
+     * 256 bytes by default.
+     *
+     * @param minimumSize the minimum size, in bytes, of the compressed bodies, must not be negative.
+     */
+    void compressResponsesLargerThan( int minimumSize );
+
+    /**
+     * Compresses the response bodies of the given content types only, i.e. {@code text/html}
+     * or {@code text/*}; once set, the content types that are never compressed are ignored.
+     *
+     * @param contentTypes the only content types that are compressed
+     */
+    void compressContentTypes( String...contentTypes );
+
+    /**
+     * Sets the content types of the response bodies that are never compressed, i.e. {@code image/png}
+     * or {@code video/*}, replacing the default ones, that are the common already compressed formats.
+     *
+     * @param contentTypes the content types that are never compressed
+     */
+    void doNotCompressContentTypes( String...contentTypes );
+
+    /**
+     * Compresses the response bodies with the fastest deflate level while requests wait for a thread
+     * to process them, trading the compression ratio for CPU; ignored when serving requests with virtual threads.
+     *
+     * Disabled by default.
+     *
+     * @param reduceCompressionLevel true to use the fastest level under load, false to always use the configured one
+     */
+    void reduceCompressionLevelUnderLoad( boolean reduceCompressionLevel );
+
+    /**
+     * Requests and responses are recycled once their exchange completed: when detecting retained messages,
+     * handlers receive guards that fail as soon as they are accessed after that, i.e. by a background task
+     * that kept a reference to the request; meant to debug handlers, the guards slow down the processing.
+     *
+     * Disabled by default.
+     *
+     * @param detectRetainedMessages true to guard the messages handed to handlers, false otherwise
+     */
+    void detectRetainedMessages( boolean detectRetainedMessages );
+
+    /**
+     * Parses the requests with the legacy parser, that decodes the received bytes to characters and
+     * dispatches tokens to per-element triggers, instead of the default one, that scans the raw bytes;
+     * both populate the requests the same way, meant to compare them.
+     *
+     * Disabled by default.
+     *
+     * @param legacyParser true to parse requests with the legacy parser, false to use the default one
+     */
+    void parseRequestsWithLegacyParser( boolean legacyParser );
+
+}
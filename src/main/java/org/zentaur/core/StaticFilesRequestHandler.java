@@ -0,0 +1,529 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static org.zentaur.core.io.FileResponseBodyWriter.getContentType;
+import static org.zentaur.core.io.FileResponseBodyWriter.getEntityTag;
+import static org.zentaur.core.io.FileResponseBodyWriter.getLastModified;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+import static org.zentaur.http.Response.Status.NOT_FOUND;
+import static org.zentaur.lang.Preconditions.checkArgument;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zentaur.core.io.ByteBufferResponseBodyWriter;
+import org.zentaur.core.io.CacheableResponseBodyWriter;
+import org.zentaur.core.io.FileResponseBodyWriter;
+import org.zentaur.http.Request;
+import org.zentaur.http.RequestHandler;
+import org.zentaur.http.Response;
+import org.slf4j.Logger;
+
+/**
+ * {@link RequestHandler} that serves the files of a directory, i.e. registered via {@code serve( "/assets/*" )}.
+ *
+ * Served files contents are cached in a LRU: small files are held in heap buffers, large files are memory-mapped,
+ * both are bounded in size; cached entries are invalidated watching the served directories changes,
+ * from a thread started once the first file is cached.
+ * Files too large to be mapped are not cached, they are transferred from the disk.
+ *
+ * This class is thread-safe.
+ */
+public final class StaticFilesRequestHandler
+    implements RequestHandler, Closeable
+{
+
+    private static final long DEFAULT_MAX_CACHED_BYTES = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_MAPPING_THRESHOLD = 64 * 1024;
+
+    private static final long DEFAULT_MAX_MAPPED_SIZE = 64 * 1024 * 1024;
+
+    private static final long DEFAULT_MAX_MAPPED_BYTES = 1024 * 1024 * 1024;
+
+    private static final String WATCHER_THREAD_NAME = "static-files-watcher";
+
+    private final Logger logger = getLogger( getClass() );
+
+    /**
+     * The files contents, both held in the heap and mapped, in access order.
+     */
+    private final LinkedHashMap<String, ByteBufferResponseBodyWriter> entries =
+        new LinkedHashMap<String, ByteBufferResponseBodyWriter>( 16, 0.75f, true );
+
+    /**
+     * The directories already watched, subdirectories are watched once their files are cached.
+     */
+    private final Set<Path> watchedDirectories = new HashSet<Path>();
+
+    /**
+     * Counts the invalidations, contents read while entries were invalidated must not be cached.
+     */
+    private final AtomicLong invalidations = new AtomicLong( 0 );
+
+    private final String pathPrefix;
+
+    private final File directory;
+
+    private final long maxCachedBytes;
+
+    private final long mappingThreshold;
+
+    private final long maxMappedSize;
+
+    private final long maxMappedBytes;
+
+    /**
+     * Guarded by the watched directories, created when the first directory is watched.
+     */
+    private WatchService watchService;
+
+    private boolean closed = false;
+
+    /**
+     * Guarded by the entries, the bytes of the files held in the heap.
+     */
+    private long cachedBytes = 0;
+
+    /**
+     * Guarded by the entries, the bytes of the mapped files.
+     */
+    private long mappedBytes = 0;
+
+    /**
+     * Creates a new handler with default cache limits.
+     *
+     * @param pathPrefix the requests path prefix, stripped to obtain the served file path
+     * @param directory the directory where files are served from
+     * @throws IOException if the served directory path cannot be resolved
+     */
+    public StaticFilesRequestHandler( String pathPrefix, File directory )
+        throws IOException
+    {
+        this( pathPrefix, directory, DEFAULT_MAX_CACHED_BYTES, DEFAULT_MAPPING_THRESHOLD );
+    }
+
+    /**
+     * Creates a new handler, large files are mapped up to the default size.
+     *
+     * @param pathPrefix the requests path prefix, stripped to obtain the served file path
+     * @param directory the directory where files are served from
+     * @param maxCachedBytes the maximum number of bytes of the small files held in the heap
+     * @param mappingThreshold the size, in bytes, above which files are memory-mapped instead of held in the heap
+     * @throws IOException if the served directory path cannot be resolved
+     */
+    public StaticFilesRequestHandler( String pathPrefix, File directory, long maxCachedBytes, long mappingThreshold )
+        throws IOException
+    {
+        this( pathPrefix, directory, maxCachedBytes, mappingThreshold,
+              Math.max( mappingThreshold, DEFAULT_MAX_MAPPED_SIZE ) );
+    }
+
+    /**
+     * Creates a new handler, mapped files are cached up to the default number of bytes.
+     *
+     * @param pathPrefix the requests path prefix, stripped to obtain the served file path
+     * @param directory the directory where files are served from
+     * @param maxCachedBytes the maximum number of bytes of the small files held in the heap
+     * @param mappingThreshold the size, in bytes, above which files are memory-mapped instead of held in the heap
+     * @param maxMappedSize the size, in bytes, above which files are transferred from the disk instead of mapped
+     * @throws IOException if the served directory path cannot be resolved
+     */
+    public StaticFilesRequestHandler( String pathPrefix,
+                                      File directory,
+                                      long maxCachedBytes,
+                                      long mappingThreshold,
+                                      long maxMappedSize )
+        throws IOException
+    {
+        this( pathPrefix, directory, maxCachedBytes, mappingThreshold, maxMappedSize,
+              Math.max( maxMappedSize, DEFAULT_MAX_MAPPED_BYTES ) );
+    }
+
+    /**
+     * Creates a new handler.
+     *
+     * @param pathPrefix the requests path prefix, stripped to obtain the served file path
+     * @param directory the directory where files are served from
+     * @param maxCachedBytes the maximum number of bytes of the small files held in the heap
+     * @param mappingThreshold the size, in bytes, above which files are memory-mapped instead of held in the heap
+     * @param maxMappedSize the size, in bytes, above which files are transferred from the disk instead of mapped
+     * @param maxMappedBytes the maximum number of bytes of the large files kept mapped
+     * @throws IOException if the served directory path cannot be resolved
+     */
+    public StaticFilesRequestHandler( String pathPrefix,
+                                      File directory,
+                                      long maxCachedBytes,
+                                      long mappingThreshold,
+                                      long maxMappedSize,
+                                      long maxMappedBytes )
+        throws IOException
+    {
+        checkArgument( pathPrefix != null, "Null path prefix not allowed." );
+        checkArgument( directory != null, "Null directory cannot be served." );
+        checkArgument( directory.isDirectory(), "Cannot serve files from %s, it is not a directory.", directory );
+        checkArgument( maxCachedBytes >= 0, "Negative cache size not allowed." );
+        checkArgument( mappingThreshold >= 0, "Negative mapping threshold not allowed." );
+        checkArgument( maxMappedSize >= mappingThreshold, "Max mapped size must not be less than mapping threshold." );
+        // a single mapping can't exceed 2GB
+        checkArgument( maxMappedSize <= Integer.MAX_VALUE, "Max mapped size must not exceed %s bytes.",
+                       Integer.MAX_VALUE );
+        checkArgument( maxMappedBytes >= 0, "Negative mapped bytes limit not allowed." );
+        this.pathPrefix = pathPrefix;
+        this.directory = directory.getCanonicalFile();
+        this.maxCachedBytes = maxCachedBytes;
+        this.mappingThreshold = mappingThreshold;
+        this.maxMappedSize = maxMappedSize;
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handle( Request request, Response response )
+        throws IOException
+    {
+        File file = resolve( request.getPath() );
+        if ( file == null )
+        {
+            response.setStatus( NOT_FOUND );
+            return;
+        }
+
+        response.setBody( getBody( file ) );
+    }
+
+    /**
+     * Stops watching the served directories, files served from now on are no longer cached.
+     */
+    @Override
+    public void close()
+    {
+        synchronized ( watchedDirectories )
+        {
+            closed = true;
+            closeQuietly( watchService );
+        }
+    }
+
+    /**
+     * Resolves the file the input request path refers to.
+     *
+     * @param path the request path
+     * @return the requested file, null if it is not a file in the served directory.
+     * @throws IOException if the requested file path cannot be resolved
+     */
+    private File resolve( String path )
+        throws IOException
+    {
+        if ( path == null || !path.startsWith( pathPrefix ) )
+        {
+            return null;
+        }
+
+        File file = new File( directory, path.substring( pathPrefix.length() ) ).getCanonicalFile();
+
+        // don't serve files outside the served directory, i.e. via '..' segments
+        if ( !file.getPath().startsWith( directory.getPath() + File.separator ) || !file.isFile() )
+        {
+            return null;
+        }
+
+        return file;
+    }
+
+    private CacheableResponseBodyWriter getBody( File file )
+        throws IOException
+    {
+        String key = file.getPath();
+
+        synchronized ( entries )
+        {
+            ByteBufferResponseBodyWriter body = entries.get( key );
+            if ( body != null )
+            {
+                return body;
+            }
+        }
+
+        // file changes after the directory is watched will invalidate the entry
+        boolean watched = watch( file.getParentFile() );
+        long invalidation = invalidations.get();
+
+        CacheableResponseBodyWriter body = load( file );
+
+        if ( watched && body instanceof ByteBufferResponseBodyWriter )
+        {
+            synchronized ( entries )
+            {
+                if ( invalidation == invalidations.get() )
+                {
+                    cache( key, (ByteBufferResponseBodyWriter) body );
+                }
+            }
+        }
+
+        return body;
+    }
+
+    private CacheableResponseBodyWriter load( File file )
+        throws IOException
+    {
+        FileChannel channel = new FileInputStream( file ).getChannel();
+        try
+        {
+            // validators are taken once opened, before reading, a concurrent change will invalidate them
+            long size = channel.size();
+            long lastModified = getLastModified( file );
+            ByteBuffer content;
+
+            if ( size > maxMappedSize )
+            {
+                return new FileResponseBodyWriter( file, size, lastModified );
+            }
+
+            if ( size > mappingThreshold )
+            {
+                // the mapping is still valid once the channel has been closed
+                content = channel.map( MapMode.READ_ONLY, 0, size );
+            }
+            else
+            {
+                content = ByteBuffer.allocate( (int) size );
+                while ( content.hasRemaining() && channel.read( content ) != -1 )
+                {
+                    // keep reading
+                }
+                content.flip();
+            }
+
+            return new ByteBufferResponseBodyWriter( content,
+                                                     getContentType( file.getName() ),
+                                                     getEntityTag( lastModified, size ),
+                                                     lastModified );
+        }
+        finally
+        {
+            closeQuietly( channel );
+        }
+    }
+
+    private void cache( String key, ByteBufferResponseBodyWriter body )
+    {
+        if ( getSize( body ) > ( isMapped( body ) ? maxMappedBytes : maxCachedBytes ) )
+        {
+            return;
+        }
+
+        ByteBufferResponseBodyWriter previous = entries.put( key, body );
+        if ( previous != null )
+        {
+            account( previous, -1 );
+        }
+        account( body, 1 );
+
+        // evict the least recently used entries of the kind exceeding its limit
+        Iterator<ByteBufferResponseBodyWriter> bodies = entries.values().iterator();
+        while ( ( cachedBytes > maxCachedBytes || mappedBytes > maxMappedBytes ) && bodies.hasNext() )
+        {
+            ByteBufferResponseBodyWriter eldest = bodies.next();
+            if ( isMapped( eldest ) ? mappedBytes > maxMappedBytes : cachedBytes > maxCachedBytes )
+            {
+                account( eldest, -1 );
+                bodies.remove();
+            }
+        }
+    }
+
+    /**
+     * Adds or subtracts the input body size to the bytes of its kind.
+     *
+     * @param body the cached body
+     * @param sign 1 if the body has been cached, -1 if it has been removed
+     */
+    private void account( ByteBufferResponseBodyWriter body, int sign )
+    {
+        if ( isMapped( body ) )
+        {
+            mappedBytes += sign * getSize( body );
+        }
+        else
+        {
+            cachedBytes += sign * getSize( body );
+        }
+    }
+
+    private boolean isMapped( ByteBufferResponseBodyWriter body )
+    {
+        return getSize( body ) > mappingThreshold;
+    }
+
+    private static long getSize( ByteBufferResponseBodyWriter body )
+    {
+        return body.getContent().capacity();
+    }
+
+    private void invalidate( String key )
+    {
+        invalidations.incrementAndGet();
+
+        synchronized ( entries )
+        {
+            ByteBufferResponseBodyWriter previous = entries.remove( key );
+            if ( previous != null )
+            {
+                account( previous, -1 );
+            }
+        }
+    }
+
+    private void invalidateAll()
+    {
+        invalidations.incrementAndGet();
+
+        synchronized ( entries )
+        {
+            entries.clear();
+            cachedBytes = 0;
+            mappedBytes = 0;
+        }
+    }
+
+    /**
+     * Watches the input directory changes, starting the watcher thread the first time.
+     *
+     * @param watchedDirectory the directory has to be watched
+     * @return true if the directory is watched, false if the handler has been closed.
+     * @throws IOException if the directory cannot be watched
+     */
+    private boolean watch( File watchedDirectory )
+        throws IOException
+    {
+        Path path = watchedDirectory.toPath();
+
+        synchronized ( watchedDirectories )
+        {
+            if ( closed )
+            {
+                return false;
+            }
+
+            if ( watchService == null )
+            {
+                watchService = FileSystems.getDefault().newWatchService();
+                startWatcher( watchService );
+            }
+
+            if ( !watchedDirectories.contains( path ) )
+            {
+                path.register( watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY );
+                watchedDirectories.add( path );
+            }
+        }
+
+        return true;
+    }
+
+    private void startWatcher( final WatchService watchService )
+    {
+        Thread watcher = new Thread( new Runnable()
+        {
+
+            public void run()
+            {
+                invalidateChangedFiles( watchService );
+            }
+
+        }, WATCHER_THREAD_NAME );
+        watcher.setDaemon( true );
+        watcher.start();
+    }
+
+    private void invalidateChangedFiles( WatchService watchService )
+    {
+        while ( true )
+        {
+            WatchKey watchKey;
+            try
+            {
+                watchKey = watchService.take();
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+            catch ( ClosedWatchServiceException e )
+            {
+                return;
+            }
+
+            Path watchedDirectory = (Path) watchKey.watchable();
+
+            for ( WatchEvent<?> event : watchKey.pollEvents() )
+            {
+                if ( OVERFLOW == event.kind() )
+                {
+                    invalidateAll();
+                    continue;
+                }
+
+                Path changed = watchedDirectory.resolve( (Path) event.context() );
+
+                if ( logger.isDebugEnabled() )
+                {
+                    logger.debug( "File {} changed, invalidating its cached content", changed );
+                }
+
+                invalidate( changed.toString() );
+            }
+
+            if ( !watchKey.reset() )
+            {
+                // the directory is no longer accessible
+                synchronized ( watchedDirectories )
+                {
+                    watchedDirectories.remove( watchedDirectory );
+                }
+                invalidateAll();
+            }
+        }
+    }
+
+}
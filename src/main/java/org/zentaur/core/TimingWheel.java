@@ -0,0 +1,218 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.util.Collection;
+
+/**
+ * A hashed timing wheel, as described by George Varghese and Tony Lauck in
+ * <a href="http://www.cs.columbia.edu/~nahum/w6998/papers/sosp87-timing-wheels.pdf">Hashed and Hierarchical Timing Wheels</a>,
+ * that allows scheduling and cancelling timeouts in O(1).
+ *
+ * Timeouts are kept in doubly linked lists, one per wheel slot, and expire with a {@code tickDuration} precision.
+ *
+ * This class is not thread-safe, it is meant to be owned by a single thread.
+ *
+ * @param <T> the type of the objects the timeouts refer to.
+ */
+final class TimingWheel<T>
+{
+
+    private final Timeout<T>[] wheel;
+
+    private final int mask;
+
+    private final long tickDuration;
+
+    private long currentTick;
+
+    private long lastTickTime;
+
+    /**
+     * Creates a new timing wheel instance.
+     *
+     * @param ticksPerWheel the number of wheel slots, it will be rounded up to the next power of two
+     * @param tickDuration the duration, in milliseconds, between two ticks
+     * @param now the current time, in milliseconds
+     */
+    @SuppressWarnings( "unchecked" ) // generic arrays creation is not allowed
+    public TimingWheel( int ticksPerWheel, long tickDuration, long now )
+    {
+        checkArgument( ticksPerWheel > 0, "Ticks per wheel must be a positive number" );
+        checkArgument( tickDuration > 0, "Tick duration must be a positive number" );
+
+        int slots = 1;
+        while ( slots < ticksPerWheel )
+        {
+            slots <<= 1;
+        }
+
+        wheel = new Timeout[slots];
+        mask = slots - 1;
+        this.tickDuration = tickDuration;
+        this.lastTickTime = now;
+    }
+
+    /**
+     * Creates a new, not scheduled, timeout that can be scheduled and cancelled as many times as needed.
+     *
+     * @param target the object the timeout refers to
+     * @return a new, not scheduled, timeout
+     */
+    public Timeout<T> newTimeout( T target )
+    {
+        return new Timeout<T>( target );
+    }
+
+    /**
+     * Schedules the input timeout, cancelling it first if already scheduled.
+     *
+     * @param timeout the timeout has to be scheduled
+     * @param delay the delay, in milliseconds, after which the timeout expires
+     */
+    public void schedule( Timeout<T> timeout, long delay )
+    {
+        cancel( timeout );
+
+        // ticks are counted from the last one, so the timeout expires with a tick duration precision
+        long ticks = Math.max( 1, ( delay + tickDuration - 1 ) / tickDuration );
+
+        int slot = (int) ( ( currentTick + ticks ) & mask );
+        timeout.remainingRounds = ( ticks - 1 ) / wheel.length;
+        timeout.slot = slot;
+
+        timeout.next = wheel[slot];
+        if ( timeout.next != null )
+        {
+            timeout.next.previous = timeout;
+        }
+        wheel[slot] = timeout;
+    }
+
+    /**
+     * Cancels the input timeout, if scheduled.
+     *
+     * @param timeout the timeout has to be cancelled
+     */
+    public void cancel( Timeout<T> timeout )
+    {
+        if ( !timeout.isScheduled() )
+        {
+            return;
+        }
+
+        if ( timeout.previous != null )
+        {
+            timeout.previous.next = timeout.next;
+        }
+        else
+        {
+            wheel[timeout.slot] = timeout.next;
+        }
+
+        if ( timeout.next != null )
+        {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    /**
+     * Advances the wheel up to the input time, collecting the targets of the expired timeouts.
+     *
+     * @param now the current time, in milliseconds
+     * @param expired the collection where expired timeouts targets are added
+     */
+    public void expire( long now, Collection<T> expired )
+    {
+        while ( now - lastTickTime >= tickDuration )
+        {
+            lastTickTime += tickDuration;
+            currentTick++;
+
+            Timeout<T> timeout = wheel[(int) ( currentTick & mask )];
+            while ( timeout != null )
+            {
+                Timeout<T> next = timeout.next;
+
+                if ( timeout.remainingRounds == 0 )
+                {
+                    cancel( timeout );
+                    expired.add( timeout.target );
+                }
+                else
+                {
+                    timeout.remainingRounds--;
+                }
+
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the milliseconds left before the next tick.
+     *
+     * @param now the current time, in milliseconds
+     * @return the milliseconds left before the next tick, at least 1.
+     */
+    public long untilNextTick( long now )
+    {
+        return Math.max( 1, lastTickTime + tickDuration - now );
+    }
+
+    /**
+     * A timeout node, linked in the wheel slot list where it has been scheduled.
+     *
+     * @param <T> the type of the object the timeout refers to.
+     */
+    public static final class Timeout<T>
+    {
+
+        private final T target;
+
+        private Timeout<T> previous;
+
+        private Timeout<T> next;
+
+        private long remainingRounds;
+
+        private int slot = -1;
+
+        private Timeout( T target )
+        {
+            this.target = target;
+        }
+
+        /**
+         * Verifies this timeout is currently scheduled.
+         *
+         * @return true if this timeout is currently scheduled, false otherwise.
+         */
+        public boolean isScheduled()
+        {
+            return slot != -1;
+        }
+
+    }
+
+}
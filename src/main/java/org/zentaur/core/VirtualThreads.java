@@ -0,0 +1,139 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads support, looked up via reflection since they are available on Java 21 and later only.
+ */
+final class VirtualThreads
+{
+
+    private static final Method OF_VIRTUAL = lookupMethod( Thread.class, "ofVirtual" );
+
+    private static final Method UNSTARTED = lookupMethod( lookupClass( "java.lang.Thread$Builder" ),
+                                                          "unstarted", Runnable.class );
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = lookupMethod( Executors.class,
+                                                                             "newThreadPerTaskExecutor",
+                                                                             ThreadFactory.class );
+
+    /**
+     * Hidden constructor, this class cannot be instantiated.
+     */
+    private VirtualThreads()
+    {
+        // do nothing
+    }
+
+    /**
+     * Verifies the running JVM supports virtual threads.
+     *
+     * @return true if the running JVM supports virtual threads, false otherwise.
+     */
+    public static boolean isSupported()
+    {
+        return OF_VIRTUAL != null && UNSTARTED != null && NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates a new, not yet started, virtual thread.
+     *
+     * @param runnable the task the thread has to execute
+     * @return a new, not yet started, virtual thread
+     */
+    public static Thread newThread( Runnable runnable )
+    {
+        return (Thread) invoke( UNSTARTED, invoke( OF_VIRTUAL, null ), runnable );
+    }
+
+    /**
+     * Creates an executor that starts a new thread for each task.
+     *
+     * @param threadFactory the factory of the threads that execute the tasks
+     * @return an executor that starts a new thread for each task
+     */
+    public static ExecutorService newThreadPerTaskExecutor( ThreadFactory threadFactory )
+    {
+        return (ExecutorService) invoke( NEW_THREAD_PER_TASK_EXECUTOR, null, threadFactory );
+    }
+
+    private static Class<?> lookupClass( String name )
+    {
+        try
+        {
+            return Class.forName( name );
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return null;
+        }
+    }
+
+    private static Method lookupMethod( Class<?> type, String name, Class<?>...parameterTypes )
+    {
+        if ( type == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return type.getMethod( name, parameterTypes );
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+    private static Object invoke( Method method, Object target, Object...args )
+    {
+        if ( !isSupported() )
+        {
+            throw new UnsupportedOperationException( "Virtual threads are not supported by the running JVM" );
+        }
+
+        try
+        {
+            return method.invoke( target, args );
+        }
+        catch ( IllegalAccessException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        catch ( InvocationTargetException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException( cause );
+        }
+    }
+
+}
@@ -81,6 +81,14 @@ public final class SimpleMultiValued<K, V>
         return null;
     }
 
+    /**
+     * Removes all the mappings, so the data structure can be reused.
+     */
+    public void clear()
+    {
+        adaptedMap.clear();
+    }
+
     /**
      * Allows adding a value in the data structure.
      *
@@ -0,0 +1,290 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A server-wide clock that ticks every 100 milliseconds, once started, publishing the current time
+ * together with its RFC 1123 representation and the pre-encoded {@code Date} header line,
+ * so responses, sessions and cookies don't need to read the system clock and format dates each time.
+ *
+ * Dates are formatted once per second, when the tick enters a new one.
+ * The clock is owned by the server, that starts it when initialized and stops it once stopped;
+ * this class is thread-safe, the time can be read by any thread.
+ */
+public final class CoarseClock
+{
+
+    private static final long TICK_MILLIS = 100;
+
+    private static final String CLOCK_THREAD_NAME = "coarse-clock";
+
+    private static final String HTTP_DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+    /**
+     * Date formats are not thread-safe, each thread formats and parses dates with its own one.
+     */
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMATS = new ThreadLocal<SimpleDateFormat>()
+    {
+
+        @Override
+        protected SimpleDateFormat initialValue()
+        {
+            return newHttpDateFormat();
+        }
+
+    };
+
+    private volatile Tick current = new Tick( System.currentTimeMillis(), null );
+
+    /**
+     * The latest date formatted on demand, cookies expiration dates are usually the same within a second.
+     */
+    private volatile Tick lastFormatted = current;
+
+    /**
+     * The latest date parsed, conditional requests usually carry the validators of the same resources.
+     */
+    private volatile ParsedDate lastParsed = new ParsedDate( getHttpDate(), currentTimeMillis() / 1000 * 1000 );
+
+    private ScheduledExecutorService ticker;
+
+    /**
+     * Starts ticking, in a dedicated daemon thread, unless the clock is already ticking.
+     */
+    public synchronized void start()
+    {
+        if ( ticker != null )
+        {
+            return;
+        }
+
+        ticker = newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, CLOCK_THREAD_NAME );
+                thread.setDaemon( true );
+                return thread;
+            }
+
+        } );
+        ticker.scheduleAtFixedRate( new Runnable()
+        {
+
+            public void run()
+            {
+                tick( System.currentTimeMillis() );
+            }
+
+        }, TICK_MILLIS, TICK_MILLIS, MILLISECONDS );
+    }
+
+    /**
+     * Stops ticking, the time read from now on is the one of the last tick.
+     */
+    public synchronized void stop()
+    {
+        if ( ticker != null )
+        {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Advances the clock to the input time.
+     *
+     * @param millis the current time in milliseconds since the epoch
+     */
+    void tick( long millis )
+    {
+        current = new Tick( millis, current );
+    }
+
+    /**
+     * Returns the current time, with the clock tick precision.
+     *
+     * @return the current time in milliseconds since the epoch.
+     */
+    public long currentTimeMillis()
+    {
+        return current.millis;
+    }
+
+    /**
+     * Returns the current date in the RFC 1123 format, as required by the HTTP {@code Date} header.
+     *
+     * @return the current date in the RFC 1123 format.
+     */
+    public String getHttpDate()
+    {
+        return current.httpDate;
+    }
+
+    /**
+     * Returns the encoded {@code Date} header line of the current date, shared across responses.
+     *
+     * @return the encoded {@code Date} header line of the current date.
+     */
+    public byte[] getDateHeaderLine()
+    {
+        return current.dateHeaderLine;
+    }
+
+    /**
+     * Returns the encoded {@code Date} header line of the current date, shared across responses.
+     *
+     * @param httpDate the date the line has to contain, as returned by {@link #getHttpDate()}
+     * @return the encoded {@code Date} header line of the input date, null if it is not the current one.
+     */
+    public byte[] getDateHeaderLine( String httpDate )
+    {
+        Tick tick = current;
+        return tick.httpDate.equals( httpDate ) ? tick.dateHeaderLine : null;
+    }
+
+    /**
+     * Formats the input time in the RFC 1123 format.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the input time in the RFC 1123 format.
+     */
+    public String formatHttpDate( long millis )
+    {
+        Tick tick = current;
+        if ( tick.isSameSecond( millis ) )
+        {
+            return tick.httpDate;
+        }
+
+        tick = lastFormatted;
+        if ( tick.isSameSecond( millis ) )
+        {
+            return tick.httpDate;
+        }
+
+        tick = new Tick( millis, null );
+        lastFormatted = tick;
+        return tick.httpDate;
+    }
+
+    /**
+     * Parses the input date in the RFC 1123 format, as sent in the {@code If-Modified-Since}
+     * and {@code If-Range} headers.
+     *
+     * @param httpDate the date in the RFC 1123 format
+     * @return the input date in milliseconds since the epoch.
+     * @throws ParseException if the input date is not in the RFC 1123 format
+     */
+    public long parseHttpDate( String httpDate )
+        throws ParseException
+    {
+        ParsedDate parsed = lastParsed;
+        if ( parsed.httpDate.equals( httpDate ) )
+        {
+            return parsed.millis;
+        }
+
+        parsed = new ParsedDate( httpDate, HTTP_DATE_FORMATS.get().parse( httpDate ).getTime() );
+        lastParsed = parsed;
+        return parsed.millis;
+    }
+
+    /**
+     * Creates a new RFC 1123 dates format, that is not thread-safe.
+     *
+     * @return a new RFC 1123 dates format.
+     */
+    public static SimpleDateFormat newHttpDateFormat()
+    {
+        SimpleDateFormat httpDateFormat = new SimpleDateFormat( HTTP_DATE_PATTERN, Locale.US );
+        httpDateFormat.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return httpDateFormat;
+    }
+
+    /**
+     * An immutable clock reading, dates are formatted only when entering a new second.
+     */
+    private static final class Tick
+    {
+
+        private final long millis;
+
+        private final String httpDate;
+
+        private final byte[] dateHeaderLine;
+
+        public Tick( long millis, Tick previous )
+        {
+            this.millis = millis;
+
+            if ( previous != null && previous.isSameSecond( millis ) )
+            {
+                httpDate = previous.httpDate;
+                dateHeaderLine = previous.dateHeaderLine;
+            }
+            else
+            {
+                httpDate = HTTP_DATE_FORMATS.get().format( new Date( millis ) );
+
+                String line = "Date: " + httpDate + "\r\n";
+                dateHeaderLine = new byte[line.length()];
+                for ( int i = 0; i < line.length(); i++ )
+                {
+                    dateHeaderLine[i] = (byte) line.charAt( i );
+                }
+            }
+        }
+
+        public boolean isSameSecond( long otherMillis )
+        {
+            return millis / 1000 == otherMillis / 1000;
+        }
+
+    }
+
+    /**
+     * An immutable parsed date, together with its RFC 1123 representation.
+     */
+    private static final class ParsedDate
+    {
+
+        private final String httpDate;
+
+        private final long millis;
+
+        public ParsedDate( String httpDate, long millis )
+        {
+            this.httpDate = httpDate;
+            this.millis = millis;
+        }
+
+    }
+
+}
@@ -35,13 +35,15 @@ import org.zentaur.io.ResponseBodyWriter;
  * Basic {@link Response} implementation.
  */
 final class DefaultResponse
-    implements Response
+    implements Response, Recyclable
 {
 
     private static final String DEFAULT_PROTOCOL_NAME = "HTTP";
 
     private static final String DEFAULT_PROTOCOL_VERSION = "1.1";
 
+    static final ResponseBodyWriter NO_BODY = new NoOpResponseBodyWriter();
+
     private Status status;
 
     private String protocolName = DEFAULT_PROTOCOL_NAME;
@@ -52,7 +54,9 @@ final class DefaultResponse
 
     private final Collection<Cookie> cookies = new LinkedList<Cookie>();
 
-    private ResponseBodyWriter bodyWriter = new NoOpResponseBodyWriter();
+    private ResponseBodyWriter bodyWriter = NO_BODY;
+
+    private volatile int generation;
 
     public void setStatus( Status status )
     {
@@ -122,6 +126,30 @@ final class DefaultResponse
         this.bodyWriter = bodyWriter;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recycle()
+    {
+        status = null;
+        protocolName = DEFAULT_PROTOCOL_NAME;
+        protocolVersion = DEFAULT_PROTOCOL_VERSION;
+        headers.clear();
+        cookies.clear();
+        bodyWriter = NO_BODY;
+        generation++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getGeneration()
+    {
+        return generation;
+    }
+
     @Override
     public String toString()
     {
@@ -38,12 +38,26 @@ final class DefaultSession
 
     private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<String, Object>();
 
-    private final Date creationTime = new Date();
+    private final CoarseClock clock;
 
-    private Date lastAccessedTime = creationTime;
+    private final long creationTime;
+
+    private long lastAccessedTime;
 
     private boolean isNew = true;
 
+    /**
+     * Creates a new session, created and last accessed at the current time of the input clock.
+     *
+     * @param clock the server clock, sessions are accessed too often to read the system time
+     */
+    public DefaultSession( CoarseClock clock )
+    {
+        this.clock = clock;
+        this.creationTime = clock.currentTimeMillis();
+        this.lastAccessedTime = creationTime;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -94,7 +108,7 @@ final class DefaultSession
     @Override
     public Date getCreationTime()
     {
-        return creationTime;
+        return new Date( creationTime );
     }
 
     /**
@@ -102,7 +116,7 @@ final class DefaultSession
      */
     public synchronized void updateLastAccessedTime()
     {
-        lastAccessedTime = new Date();
+        lastAccessedTime = clock.currentTimeMillis();
         isNew = false;
     }
 
@@ -112,7 +126,7 @@ final class DefaultSession
     @Override
     public synchronized Date getLastAccessedTime()
     {
-        return lastAccessedTime;
+        return new Date( lastAccessedTime );
     }
 
     /**
@@ -128,7 +142,7 @@ final class DefaultSession
     public String toString()
     {
         return format( "Session[id=%s, attributes=%s, creationTime=%s, lastAccessedTime=%s, isNew=%s]",
-                       id, attributes, creationTime, lastAccessedTime, isNew );
+                       id, attributes, getCreationTime(), getLastAccessedTime(), isNew );
     }
 
 }
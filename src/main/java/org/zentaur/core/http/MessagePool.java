@@ -0,0 +1,236 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.String.format;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zentaur.http.Request;
+import org.zentaur.http.Response;
+
+/**
+ * Bounded pool of the requests and responses recycled across exchanges, shared by reactors and workers.
+ *
+ * Messages are given back once their response has been serialized; the pool never blocks nor grows above
+ * its capacity, and messages that are never given back - i.e. dropped with a closed connection or still held
+ * by an expired asynchronous handler - are just garbage collected.
+ *
+ * When detecting retained messages, handlers receive guards that fail as soon as they are accessed
+ * after their exchange completed.
+ *
+ * This class is thread-safe.
+ */
+public final class MessagePool
+{
+
+    private final Pool<MutableRequest> requests;
+
+    private final Pool<DefaultResponse> responses;
+
+    private final boolean detectingRetained;
+
+    /**
+     * Creates a new messages pool.
+     *
+     * @param capacity the maximum number of requests, and responses, kept in the pool
+     * @param detectingRetained flag to guard the messages handed to handlers against accesses after completion
+     */
+    public MessagePool( int capacity, boolean detectingRetained )
+    {
+        this.requests = new Pool<MutableRequest>( capacity );
+        this.responses = new Pool<DefaultResponse>( capacity );
+        this.detectingRetained = detectingRetained;
+    }
+
+    /**
+     * Borrows an empty request from the pool, creating a new one if the pool is empty.
+     *
+     * @return an empty request
+     */
+    public MutableRequest borrowRequest()
+    {
+        MutableRequest request = requests.poll();
+        return request != null ? request : new MutableRequest();
+    }
+
+    /**
+     * Borrows an empty response from the pool, creating a new one if the pool is empty.
+     *
+     * @return an empty response
+     */
+    public Response borrowResponse()
+    {
+        DefaultResponse response = responses.poll();
+        return response != null ? response : new DefaultResponse();
+    }
+
+    /**
+     * Gives back a request once its exchange completed, it must not be used anymore.
+     *
+     * @param request the request has to be recycled
+     */
+    public void release( Request request )
+    {
+        if ( request instanceof MutableRequest )
+        {
+            MutableRequest mutableRequest = (MutableRequest) request;
+            mutableRequest.recycle();
+            requests.offer( mutableRequest );
+        }
+    }
+
+    /**
+     * Gives back a response once it has been serialized, it must not be used anymore.
+     *
+     * @param response the response has to be recycled
+     */
+    public void release( Response response )
+    {
+        if ( response instanceof DefaultResponse )
+        {
+            DefaultResponse defaultResponse = (DefaultResponse) response;
+            defaultResponse.recycle();
+            responses.offer( defaultResponse );
+        }
+    }
+
+    /**
+     * Returns the request has to be handed to handlers: the request itself or,
+     * when detecting retained messages, a guard that fails once it has been released.
+     *
+     * @param request the borrowed request
+     * @return the request has to be handed to handlers
+     */
+    public Request guard( Request request )
+    {
+        return detectingRetained ? newGuard( Request.class, request ) : request;
+    }
+
+    /**
+     * Returns the response has to be handed to handlers: the response itself or,
+     * when detecting retained messages, a guard that fails once it has been released.
+     *
+     * @param response the borrowed response
+     * @return the response has to be handed to handlers
+     */
+    public Response guard( Response response )
+    {
+        return detectingRetained ? newGuard( Response.class, response ) : response;
+    }
+
+    private static <T> T newGuard( Class<T> type, T message )
+    {
+        if ( !( message instanceof Recyclable ) )
+        {
+            return message;
+        }
+
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(),
+                                                  new Class<?>[] { type },
+                                                  new RetentionGuard( type.getSimpleName(), (Recyclable) message ) ) );
+    }
+
+    /**
+     * A bounded lock-free free list.
+     */
+    private static final class Pool<T>
+    {
+
+        private final Queue<T> pooled = new ConcurrentLinkedQueue<T>();
+
+        private final AtomicInteger size = new AtomicInteger( 0 );
+
+        private final int capacity;
+
+        public Pool( int capacity )
+        {
+            this.capacity = capacity;
+        }
+
+        public T poll()
+        {
+            T instance = pooled.poll();
+            if ( instance != null )
+            {
+                size.decrementAndGet();
+            }
+            return instance;
+        }
+
+        public void offer( T instance )
+        {
+            if ( size.incrementAndGet() > capacity )
+            {
+                size.decrementAndGet();
+                return;
+            }
+            pooled.offer( instance );
+        }
+
+    }
+
+    /**
+     * Delegates to the guarded message as long as it has not been recycled.
+     */
+    private static final class RetentionGuard
+        implements InvocationHandler
+    {
+
+        private final String messageType;
+
+        private final Recyclable message;
+
+        private final int generation;
+
+        public RetentionGuard( String messageType, Recyclable message )
+        {
+            this.messageType = messageType;
+            this.message = message;
+            this.generation = message.getGeneration();
+        }
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args )
+            throws Throwable
+        {
+            if ( message.getGeneration() != generation )
+            {
+                throw new IllegalStateException( format( "%s.%s() invoked after the exchange completed, "
+                                                         + "handlers must not retain the %s",
+                                                         messageType, method.getName(), messageType ) );
+            }
+
+            try
+            {
+                return method.invoke( message, args );
+            }
+            catch ( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+        }
+
+    }
+
+}
@@ -39,7 +39,7 @@ import org.zentaur.io.StreamAlreadyConsumedException;
  * Basic {@link Request} implementation.
  */
 public final class MutableRequest
-    implements Request
+    implements Request, Recyclable
 {
 
     private String clientHost;
@@ -70,6 +70,8 @@ public final class MutableRequest
 
     private final List<Cookie> cookies = new LinkedList<Cookie>();
 
+    private volatile int generation;
+
     /**
      * {@inheritDoc}
      */
@@ -371,6 +373,38 @@ public final class MutableRequest
         this.session = session;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recycle()
+    {
+        clientHost = null;
+        serverHost = null;
+        serverPort = 0;
+        method = null;
+        path = null;
+        protocolName = null;
+        protocolVersion = null;
+        contentLength = -1;
+        requestBody = null;
+        session = null;
+        headers.clear();
+        queryStringParameters.clear();
+        parameters.clear();
+        cookies.clear();
+        generation++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getGeneration()
+    {
+        return generation;
+    }
+
     /**
      * {@inheritDoc}
      */
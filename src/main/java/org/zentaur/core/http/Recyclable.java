@@ -0,0 +1,38 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+/**
+ * A message whose instances are reused across exchanges, see {@link MessagePool}.
+ */
+interface Recyclable
+{
+
+    /**
+     * Clears the message state, so the instance can be populated again by the next exchange.
+     */
+    void recycle();
+
+    /**
+     * Returns how many times the message has been recycled, references taken before
+     * the latest recycle are stale.
+     *
+     * @return how many times the message has been recycled.
+     */
+    int getGeneration();
+
+}
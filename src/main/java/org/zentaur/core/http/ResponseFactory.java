@@ -34,6 +34,17 @@ public final class ResponseFactory
         return new DefaultResponse();
     }
 
+    /**
+     * Verifies no body has been set to the input response, since it has been created or recycled.
+     *
+     * @param response the response to check
+     * @return true if no body has been set to the response, false otherwise.
+     */
+    public static boolean isBodyless( Response response )
+    {
+        return DefaultResponse.NO_BODY == response.getBodyWriter();
+    }
+
     /**
      * Hidden constructor, this class cannot be instantiated.
      */
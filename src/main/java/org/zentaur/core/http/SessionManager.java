@@ -17,13 +17,16 @@ package org.zentaur.core.http;
  */
 
 import static java.util.UUID.fromString;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.zentaur.lang.Preconditions.checkArgument;
 
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.zentaur.http.Cookie;
 import org.zentaur.http.Request;
@@ -37,28 +40,49 @@ public final class SessionManager
 
     private static final String SESSION_NAME = "SHSSESSIONID";
 
+    private static final String SESSIONS_CLEANER_THREAD_NAME = "sessions-cleaner";
+
     /**
      * The registry where sessions have to be stored.
      */
     private final ConcurrentMap<UUID, DefaultSession> sessionsRegistry = new ConcurrentHashMap<UUID, DefaultSession>();
 
     /**
-     * The timer delegated to clean the expired sessions.
+     * The scheduler delegated to clean the expired sessions,
+     * lock based rather than monitor based as the {@link java.util.Timer}, so virtual threads are not pinned.
      */
-    private final Timer sessionsCleaner = new Timer( true );
+    private final ScheduledExecutorService sessionsCleaner = newSingleThreadScheduledExecutor( new ThreadFactory()
+    {
+
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, SESSIONS_CLEANER_THREAD_NAME );
+            thread.setDaemon( true );
+            return thread;
+        }
+
+    } );
 
     /**
      * The sessions max age (in milliseconds).
      */
     private final int sessionMaxAge;
 
+    /**
+     * The server clock, sessions access times are read from.
+     */
+    private final CoarseClock clock;
+
     /**
      *
      * @param sessionMaxAge the max
+     * @param clock the server clock, sessions access times are read from
      */
-    public SessionManager( int sessionMaxAge )
+    public SessionManager( int sessionMaxAge, CoarseClock clock )
     {
+        checkArgument( clock != null, "Null CoarseClock not allowed." );
         this.sessionMaxAge = sessionMaxAge;
+        this.clock = clock;
     }
 
     /**
@@ -94,11 +118,11 @@ public final class SessionManager
 
         if ( session == null )
         {
-            session = new DefaultSession();
+            session = new DefaultSession( clock );
 
             sessionsRegistry.put( session.getId(), session );
 
-            sessionsCleaner.schedule( new SessionRemoverTimerTask( sessionsRegistry, session.getId() ), sessionMaxAge );
+            sessionsCleaner.schedule( new SessionRemover( sessionsRegistry, session.getId() ), sessionMaxAge, MILLISECONDS );
 
             response.addCookie( new CookieBuilder()
                                     .setDomain( request.getServerHost() )
@@ -114,18 +138,18 @@ public final class SessionManager
     }
 
     /**
-     * Turns off the timer to clean the registered sessions.
+     * Turns off the scheduler to clean the registered sessions.
      */
     public void shutDown()
     {
-        sessionsCleaner.cancel();
+        sessionsCleaner.shutdownNow();
     }
 
     /**
-     * A timer task to remove sessions from registry when expired.
+     * A task to remove sessions from registry when expired.
      */
-    private static final class SessionRemoverTimerTask
-        extends TimerTask
+    private static final class SessionRemover
+        implements Runnable
     {
 
         /**
@@ -144,7 +168,7 @@ public final class SessionManager
          * @param sessionsRegistry the registry where session has to be removed from
          * @param sessionId the session id to remove
          */
-        public SessionRemoverTimerTask( ConcurrentMap<UUID, DefaultSession> sessionsRegistry, UUID sessionId )
+        public SessionRemover( ConcurrentMap<UUID, DefaultSession> sessionsRegistry, UUID sessionId )
         {
             this.sessionsRegistry = sessionsRegistry;
             this.sessionId = sessionId;
@@ -0,0 +1,65 @@
+package org.zentaur.core.http.parse;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+import org.zentaur.core.http.MutableRequest;
+import org.zentaur.core.http.RequestParseException;
+import org.zentaur.http.Request;
+
+/**
+ * A {@link Request} pull parser that incrementally rebuilds the HTTP Requests received by a connection.
+ */
+public interface RequestParser
+{
+
+    /**
+     * Prepares the parser to parse the next request of the same connection, reusing its own state:
+     * the previously parsed request is no longer referenced by the parser.
+     *
+     * @param request the empty request has to be populated
+     */
+    void reset( MutableRequest request );
+
+    /**
+     * Invoked as soon as the server receives a chunk of the request.
+     *
+     * Bytes are consumed up to the end of the current request only: once the request is complete,
+     * the buffer position is left on the first byte of the next (pipelined) request, if any.
+     *
+     * @param messageBuffer the buffer containing the request chunk
+     * @throws RequestParseException if any parse error occurs
+     */
+    void onRequestPartRead( ByteBuffer messageBuffer )
+        throws RequestParseException;
+
+    /**
+     * Verifies the request has been entirely processed.
+     *
+     * @return true, if the request has been entirely processed, false otherwise.
+     */
+    boolean isRequestMessageComplete();
+
+    /**
+     * Returns the parsed {@link Request} object from the textual representation.
+     *
+     * @return the parsed {@link Request} object from the textual representation.
+     */
+    Request getParsedRequest();
+
+}
@@ -16,6 +16,7 @@ package org.zentaur.core.http.parse;
  *   limitations under the License.
  */
 
+import static java.nio.charset.CodingErrorAction.REPLACE;
 import static org.zentaur.core.http.parse.ParserStatus.BODY_CONSUMING;
 import static org.zentaur.core.http.parse.ParserStatus.COMPLETE;
 import static org.zentaur.core.http.parse.ParserStatus.COOKIE_NAME;
@@ -38,6 +39,8 @@ import static org.slf4j.LoggerFactory.getLogger;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.util.EnumMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -55,6 +58,7 @@ import org.slf4j.Logger;
  * This class is not thread-safe!
  */
 public final class RequestStreamingParser
+    implements RequestParser
 {
 
     private static final Logger logger = getLogger( RequestStreamingParser.class );
@@ -81,20 +85,33 @@ public final class RequestStreamingParser
 
     private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
 
-    private final MutableRequest request = new MutableRequest();
-
     private final Map<ParserStatus, ParserTrigger> parserTriggers = new EnumMap<ParserStatus, ParserTrigger>( ParserStatus.class );
 
-    private StringBuilder accumulator = new StringBuilder();
+    private final StringBuilder accumulator = new StringBuilder();
+
+    /**
+     * Replaces malformed input as {@link Charset#decode(ByteBuffer)} does, to find where decoded chars end.
+     */
+    private final CharsetDecoder decoder = Charset.forName( "UTF-8" ).newDecoder()
+                                                  .onMalformedInput( REPLACE )
+                                                  .onUnmappableCharacter( REPLACE );
+
+    private final String clientHost;
+
+    private final String serverHost;
 
-    private ParserStatus status = ParserStatus.METHOD;
+    private final int serverPort;
+
+    private MutableRequest request;
+
+    private ParserStatus status;
 
     /**
      * Used only when when method == POST and Content-Type == application/x-www-form-urlencoded
      */
     private long bodyConsumingCounter = -1; // -1 because the first will be triggered by \n
 
-    private final Queue<ByteBuffer> requestBody = new LinkedList<ByteBuffer>();
+    private Queue<ByteBuffer> requestBody;
 
     private ByteBufferEnqueuerOutputStream bodyConsumerOutputStream;
 
@@ -108,9 +125,25 @@ public final class RequestStreamingParser
      */
     public RequestStreamingParser( String clientHost, String serverHost, int serverPort )
     {
-        request.setClientHost( clientHost );
-        request.setServerHost( serverHost );
-        request.setServerPort( serverPort );
+        this( clientHost, serverHost, serverPort, new MutableRequest() );
+    }
+
+    /**
+     * Creates a new parser instance, which will populate the given empty {@link Request}
+     * from the textual representation, initialized with constructor arguments.
+     *
+     * @param clientHost the client with sent the request.
+     * @param serverHost the running server host
+     * @param serverPort the running server port
+     * @param request the empty request has to be populated
+     */
+    public RequestStreamingParser( String clientHost, String serverHost, int serverPort, MutableRequest request )
+    {
+        this.clientHost = clientHost;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+
+        reset( request );
 
         registerTrigger( new MethodParserTrigger(), METHOD );
         registerTrigger( new PathParserTrigger(), PATH );
@@ -130,9 +163,32 @@ public final class RequestStreamingParser
         }
     }
 
+    /**
+     * Prepares the parser to parse the next request of the same connection, reusing its own state:
+     * the previously parsed request is no longer referenced by the parser.
+     *
+     * @param request the empty request has to be populated
+     */
+    public void reset( MutableRequest request )
+    {
+        request.setClientHost( clientHost );
+        request.setServerHost( serverHost );
+        request.setServerPort( serverPort );
+
+        this.request = request;
+        accumulator.setLength( 0 );
+        status = METHOD;
+        bodyConsumingCounter = -1;
+        requestBody = null;
+        bodyConsumerOutputStream = null;
+    }
+
     /**
      * Invoked as soon as the server receives a chunk of the request.
      *
+     * Bytes are consumed up to the end of the current request only: once the request is complete,
+     * the buffer position is left on the first byte of the next (pipelined) request, if any.
+     *
      * @param messageBuffer the buffer containing the request chunk
      * @throws RequestParseException if any parse error occurs
      */
@@ -150,8 +206,10 @@ public final class RequestStreamingParser
         }
         else
         {
+            int start = messageBuffer.position();
+
             CharBuffer charBuffer = toUtf8CharBuffer( messageBuffer );
-            dance: while ( charBuffer.hasRemaining() )
+            while ( !isRequestMessageComplete() && charBuffer.hasRemaining() )
             {
                 char current = charBuffer.get();
 
@@ -160,11 +218,6 @@ public final class RequestStreamingParser
                     logger.debug( "{} consuming char: `{}'", status, current );
                 }
 
-                if ( isRequestMessageComplete() )
-                {
-                    break dance;
-                }
-
                 switch ( current )
                 {
                     case CARRIAGE_RETURN:
@@ -272,10 +325,10 @@ public final class RequestStreamingParser
                             {
                                 forceSwitch( current, BODY_CONSUMING );
 
-                                messageBuffer.position( charBuffer.position() );
+                                messageBuffer.position( endOfDecoded( messageBuffer, start, charBuffer.position() ) );
 
                                 consumeBody( messageBuffer );
-                                break dance;
+                                return;
                             }
                         }
                         else
@@ -316,9 +369,36 @@ public final class RequestStreamingParser
                     }
                 }
             }
+
+            if ( isRequestMessageComplete() )
+            {
+                // leave the bytes of the next request in the buffer
+                messageBuffer.position( endOfDecoded( messageBuffer, start, charBuffer.position() ) );
+            }
         }
     }
 
+    /**
+     * Returns the buffer position following the bytes the input number of chars has been decoded from:
+     * malformed bytes are decoded as replacement chars, the bytes count cannot be inferred from the chars,
+     * the chars are decoded again up to the input number and the bytes are counted by the buffer position.
+     *
+     * @param messageBuffer the buffer the chars have been decoded from
+     * @param start the position of the first decoded byte
+     * @param chars the number of consumed chars
+     * @return the buffer position following the bytes of the consumed chars.
+     */
+    private int endOfDecoded( ByteBuffer messageBuffer, int start, int chars )
+    {
+        ByteBuffer decoded = messageBuffer.duplicate();
+        decoded.position( start );
+
+        decoder.reset();
+        // stops once the output is full
+        decoder.decode( decoded, CharBuffer.allocate( chars ), true );
+        return decoded.position();
+    }
+
     private void forceSwitch( char trigger, ParserStatus newStatus )
     {
         if ( logger.isDebugEnabled() )
@@ -349,7 +429,7 @@ public final class RequestStreamingParser
             logger.debug( "{} consuming token: `{}' -> next status {}", new Object[] { status, token, newStatus } );
         }
 
-        accumulator = new StringBuilder();
+        accumulator.setLength( 0 );
         status = newStatus;
     }
 
@@ -359,10 +439,11 @@ public final class RequestStreamingParser
         // lazy load the body bytes consumer
         if ( bodyConsumerOutputStream == null )
         {
+            requestBody = new LinkedList<ByteBuffer>();
             bodyConsumerOutputStream = new ByteBufferEnqueuerOutputStream( requestBody );
         }
 
-        while ( buffer.hasRemaining() && bodyConsumerOutputStream.getWrittenBytes() <= request.getContentLength() )
+        while ( buffer.hasRemaining() && bodyConsumerOutputStream.getWrittenBytes() < request.getContentLength() )
         {
             try
             {
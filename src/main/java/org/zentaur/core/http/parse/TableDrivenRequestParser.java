@@ -0,0 +1,961 @@
+package org.zentaur.core.http.parse;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
+import static org.zentaur.core.io.IOUtils.utf8URLDecode;
+import static org.zentaur.http.Headers.ACCEPT;
+import static org.zentaur.http.Headers.ACCEPT_CHARSET;
+import static org.zentaur.http.Headers.ACCEPT_ENCODING;
+import static org.zentaur.http.Headers.ACCEPT_LANGUAGE;
+import static org.zentaur.http.Headers.CONNECTION;
+import static org.zentaur.http.Headers.CONTENT_LENGTH;
+import static org.zentaur.http.Headers.CONTENT_TYPE;
+import static org.zentaur.http.Headers.COOKIE;
+import static org.zentaur.http.Headers.KEEP_ALIVE;
+import static org.zentaur.http.Headers.REFERER;
+import static org.zentaur.http.Headers.USER_AGENT;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Queue;
+
+import org.zentaur.core.http.CookieBuilder;
+import org.zentaur.core.http.MutableRequest;
+import org.zentaur.core.http.RequestParseException;
+import org.zentaur.http.Request;
+import org.zentaur.http.Request.Method;
+
+/**
+ * A {@link Request} pull parser that scans the raw request bytes, classified through a lookup table,
+ * without decoding them to characters first: HTTP heads are ASCII, so strings are created for complete tokens
+ * only and well-known header names are not created at all.
+ *
+ * Populates the request as the {@link RequestStreamingParser} does: header values are split on commas,
+ * except the {@code User-Agent} ones, cookies are parsed from the {@code Cookie} header and
+ * url-encoded form bodies are parsed as parameters.
+ *
+ * Header and cookie values, that can be kilobytes long, are scanned 8 bytes at a time looking for their delimiters
+ * and copied in bulk.
+ *
+ * Heads are bounded in size and number of headers, carriage returns are accepted only before a new line.
+ *
+ * This class is not thread-safe!
+ */
+public final class TableDrivenRequestParser
+    implements RequestParser
+{
+
+    private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+    private static final int INITIAL_TOKEN_CAPACITY = 256;
+
+    /**
+     * Tokens longer than that, i.e. huge paths or headers, are rejected.
+     */
+    private static final int MAX_TOKEN_LENGTH = 64 * 1024;
+
+    /**
+     * Heads longer than that, as a whole, are rejected: the token limit alone doesn't bound many long headers.
+     */
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    /**
+     * Heads with more header lines than that are rejected.
+     */
+    private static final int MAX_HEADERS = 100;
+
+    // byte classes
+
+    /**
+     * Any other byte, the default class.
+     */
+    private static final byte TOKEN = 0;
+
+    private static final byte SPACE = 1;
+
+    private static final byte CARRIAGE_RETURN = 2;
+
+    private static final byte NEW_LINE = 3;
+
+    private static final byte COLON = 4;
+
+    private static final byte QUESTION_MARK = 5;
+
+    private static final byte AMPERSAND = 6;
+
+    private static final byte EQUALS = 7;
+
+    private static final byte SLASH = 8;
+
+    private static final byte SEMICOLON = 9;
+
+    private static final byte COMMA = 10;
+
+    /**
+     * {@code %} and {@code +}, the token has to be url-decoded.
+     */
+    private static final byte ESCAPE = 11;
+
+    /**
+     * Bytes of UTF-8 encoded characters, the token is not ASCII.
+     */
+    private static final byte NON_ASCII = 12;
+
+    private static final byte[] CLASSES = new byte[256];
+
+    // SWAR (SIMD within a register) masks, to compare the 8 bytes of a long at once
+
+    private static final int WORD_BYTES = 8;
+
+    private static final long ONES = 0x0101010101010101L;
+
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final long CARRIAGE_RETURNS = ONES * '\r';
+
+    private static final long NEW_LINES = ONES * '\n';
+
+    private static final long COMMAS = ONES * ',';
+
+    private static final long SEMICOLONS = ONES * ';';
+
+    // parser states
+
+    private static final int METHOD = 0;
+
+    private static final int PATH = 1;
+
+    private static final int QS_PARAM_NAME = 2;
+
+    private static final int QS_PARAM_VALUE = 3;
+
+    private static final int PROTOCOL_NAME = 4;
+
+    private static final int PROTOCOL_VERSION = 5;
+
+    /**
+     * Begin of a head line: a header name or the empty line that ends the head.
+     */
+    private static final int LINE_START = 6;
+
+    private static final int HEADER_NAME = 7;
+
+    private static final int HEADER_VALUE = 8;
+
+    private static final int COOKIE_NAME = 9;
+
+    private static final int COOKIE_VALUE = 10;
+
+    private static final int PARAM_NAME = 11;
+
+    private static final int PARAM_VALUE = 12;
+
+    private static final int BODY = 13;
+
+    private static final int COMPLETE = 14;
+
+    private static final String[] KNOWN_HEADER_NAMES =
+    {
+        ACCEPT, ACCEPT_CHARSET, ACCEPT_ENCODING, ACCEPT_LANGUAGE, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, COOKIE,
+        KEEP_ALIVE, REFERER, USER_AGENT, "Host", "Cache-Control", "Pragma", "Origin", "Range", "If-Range",
+        "If-None-Match", "If-Modified-Since", "Upgrade-Insecure-Requests", "X-Forwarded-For"
+    };
+
+    /**
+     * The well-known header names, lower case ASCII encoded.
+     */
+    private static final byte[][] KNOWN_HEADER_NAMES_BYTES = new byte[KNOWN_HEADER_NAMES.length][];
+
+    private static final Method[] METHODS = Method.values();
+
+    static
+    {
+        for ( int i = 0x80; i < CLASSES.length; i++ )
+        {
+            CLASSES[i] = NON_ASCII;
+        }
+        CLASSES[' '] = SPACE;
+        CLASSES['\t'] = SPACE;
+        CLASSES['\r'] = CARRIAGE_RETURN;
+        CLASSES['\n'] = NEW_LINE;
+        CLASSES[':'] = COLON;
+        CLASSES['?'] = QUESTION_MARK;
+        CLASSES['&'] = AMPERSAND;
+        CLASSES['='] = EQUALS;
+        CLASSES['/'] = SLASH;
+        CLASSES[';'] = SEMICOLON;
+        CLASSES[','] = COMMA;
+        CLASSES['%'] = ESCAPE;
+        CLASSES['+'] = ESCAPE;
+
+        for ( int i = 0; i < KNOWN_HEADER_NAMES.length; i++ )
+        {
+            KNOWN_HEADER_NAMES_BYTES[i] = KNOWN_HEADER_NAMES[i].toLowerCase( Locale.US ).getBytes( US_ASCII );
+        }
+    }
+
+    private final String clientHost;
+
+    private final String serverHost;
+
+    private final int serverPort;
+
+    private MutableRequest request;
+
+    private int state;
+
+    private byte[] token = new byte[INITIAL_TOKEN_CAPACITY];
+
+    private int tokenLength;
+
+    private boolean tokenEscaped;
+
+    private boolean tokenNonAscii;
+
+    /**
+     * The pending parameter or cookie name, the current header name.
+     */
+    private String name;
+
+    private boolean splittingHeaderValues;
+
+    /**
+     * Flag to mark the previous head byte was a carriage return, that has to be followed by a new line.
+     */
+    private boolean carriageReturn;
+
+    private int headSize;
+
+    private int headers;
+
+    private long remainingBodyBytes;
+
+    private Queue<ByteBuffer> requestBody;
+
+    /**
+     * Creates a new parser instance, which will populate the given empty {@link Request}
+     * from the raw bytes, initialized with constructor arguments.
+     *
+     * @param clientHost the client with sent the request.
+     * @param serverHost the running server host
+     * @param serverPort the running server port
+     * @param request the empty request has to be populated
+     */
+    public TableDrivenRequestParser( String clientHost, String serverHost, int serverPort, MutableRequest request )
+    {
+        this.clientHost = clientHost;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+
+        reset( request );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset( MutableRequest request )
+    {
+        request.setClientHost( clientHost );
+        request.setServerHost( serverHost );
+        request.setServerPort( serverPort );
+
+        this.request = request;
+        state = METHOD;
+        clearToken();
+        name = null;
+        carriageReturn = false;
+        headSize = 0;
+        headers = 0;
+        remainingBodyBytes = 0;
+        requestBody = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onRequestPartRead( ByteBuffer messageBuffer )
+        throws RequestParseException
+    {
+        int position = messageBuffer.position();
+        int limit = messageBuffer.limit();
+
+        while ( position < limit && state < BODY )
+        {
+            if ( !carriageReturn && ( ( HEADER_VALUE == state && tokenLength > 0 ) || COOKIE_VALUE == state ) )
+            {
+                position = appendValueSpan( messageBuffer, position, limit );
+                if ( position == limit )
+                {
+                    break;
+                }
+            }
+
+            byte current = messageBuffer.get( position++ );
+
+            if ( state < PARAM_NAME )
+            {
+                onHeadByte( current );
+            }
+            else
+            {
+                onFormByte( current );
+            }
+        }
+
+        messageBuffer.position( position );
+
+        if ( BODY == state )
+        {
+            consumeBody( messageBuffer );
+        }
+    }
+
+    /**
+     * Appends to the current value the bytes preceding the first one that has to be classified,
+     * i.e. a line terminator, a delimiter or a non ASCII byte: the buffer is scanned a long at a time
+     * and the whole span is copied at once.
+     *
+     * @return the position of the first byte has to be classified
+     */
+    private int appendValueSpan( ByteBuffer messageBuffer, int position, int limit )
+        throws RequestParseException
+    {
+        long delimiters;
+        if ( COOKIE_VALUE == state )
+        {
+            delimiters = SEMICOLONS;
+        }
+        else if ( splittingHeaderValues )
+        {
+            delimiters = COMMAS;
+        }
+        else
+        {
+            // User-Agent values are not split: new lines are searched twice
+            delimiters = NEW_LINES;
+        }
+
+        boolean bigEndian = ByteOrder.BIG_ENDIAN == messageBuffer.order();
+
+        int end = position;
+        while ( end + WORD_BYTES <= limit )
+        {
+            long word = messageBuffer.getLong( end );
+            long stops = zeroBytes( word ^ CARRIAGE_RETURNS )
+                         | zeroBytes( word ^ NEW_LINES )
+                         | zeroBytes( word ^ delimiters )
+                         | ( word & HIGH_BITS );
+
+            if ( stops != 0 )
+            {
+                // stop bits are the high ones of their byte: the first stop is the lowest addressed byte
+                end += ( bigEndian ? Long.numberOfLeadingZeros( stops )
+                                   : Long.numberOfTrailingZeros( stops ) ) >>> 3;
+                break;
+            }
+            end += WORD_BYTES;
+        }
+
+        int length = end - position;
+        if ( length > 0 )
+        {
+            countHeadBytes( length );
+            ensureTokenCapacity( tokenLength + length );
+
+            messageBuffer.position( position );
+            messageBuffer.get( token, tokenLength, length );
+            tokenLength += length;
+        }
+        return end;
+    }
+
+    /**
+     * Sets the high bit of the bytes that are zero, and of those only.
+     */
+    private static long zeroBytes( long word )
+    {
+        return ~( ( ( word & LOW_SEVEN_BITS ) + LOW_SEVEN_BITS ) | word | LOW_SEVEN_BITS );
+    }
+
+    private void onHeadByte( byte current )
+        throws RequestParseException
+    {
+        byte byteClass = CLASSES[current & 0xFF];
+
+        countHeadBytes( 1 );
+
+        // lines end with the new line, optionally preceded by a carriage return: bare ones are not allowed
+        if ( carriageReturn && NEW_LINE != byteClass )
+        {
+            throw new RequestParseException( "Carriage return not followed by a new line in the request head" );
+        }
+        carriageReturn = CARRIAGE_RETURN == byteClass;
+        if ( carriageReturn )
+        {
+            return;
+        }
+
+        switch ( state )
+        {
+            case METHOD:
+                if ( SPACE == byteClass )
+                {
+                    if ( tokenLength > 0 )
+                    {
+                        request.setMethod( method() );
+                        state = PATH;
+                    }
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    // empty lines preceding the request line have to be ignored
+                    checkEmptyToken( "Request line" );
+                }
+                else
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case PATH:
+                if ( SPACE == byteClass )
+                {
+                    if ( tokenLength > 0 )
+                    {
+                        request.setPath( urlDecodedToken() );
+                        state = PROTOCOL_NAME;
+                    }
+                }
+                else if ( QUESTION_MARK == byteClass )
+                {
+                    request.setPath( urlDecodedToken() );
+                    state = QS_PARAM_NAME;
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    throw new RequestParseException( "Request line without protocol" );
+                }
+                else
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case QS_PARAM_NAME:
+            case QS_PARAM_VALUE:
+                if ( SPACE == byteClass )
+                {
+                    addQueryStringParameter();
+                    state = PROTOCOL_NAME;
+                }
+                else if ( AMPERSAND == byteClass )
+                {
+                    addQueryStringParameter();
+                    state = QS_PARAM_NAME;
+                }
+                else if ( EQUALS == byteClass && QS_PARAM_NAME == state )
+                {
+                    name = urlDecodedToken();
+                    state = QS_PARAM_VALUE;
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    throw new RequestParseException( "Request line without protocol" );
+                }
+                else
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case PROTOCOL_NAME:
+                if ( SLASH == byteClass )
+                {
+                    request.setProtocolName( token() );
+                    state = PROTOCOL_VERSION;
+                }
+                else if ( SPACE == byteClass )
+                {
+                    checkEmptyToken( "Protocol name" );
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    throw new RequestParseException( "Request line without protocol version" );
+                }
+                else
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case PROTOCOL_VERSION:
+                if ( NEW_LINE == byteClass )
+                {
+                    request.setProtocolVersion( token() );
+                    state = LINE_START;
+                }
+                else if ( SPACE != byteClass )
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case LINE_START:
+                if ( NEW_LINE == byteClass )
+                {
+                    onHeadComplete();
+                }
+                else if ( SPACE != byteClass )
+                {
+                    append( current, byteClass );
+                    state = HEADER_NAME;
+                }
+                break;
+
+            case HEADER_NAME:
+                if ( COLON == byteClass )
+                {
+                    if ( ++headers > MAX_HEADERS )
+                    {
+                        throw new RequestParseException( "Requests with more than %s headers are not supported",
+                                                         MAX_HEADERS );
+                    }
+                    name = headerName();
+                    if ( COOKIE.equals( name ) )
+                    {
+                        state = COOKIE_NAME;
+                    }
+                    else
+                    {
+                        splittingHeaderValues = !USER_AGENT.equals( name );
+                        state = HEADER_VALUE;
+                    }
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    throw new RequestParseException( "Header line without name separator" );
+                }
+                else if ( SPACE != byteClass )
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case HEADER_VALUE:
+                if ( NEW_LINE == byteClass )
+                {
+                    addHeaderValue();
+                    state = LINE_START;
+                }
+                else if ( COMMA == byteClass && splittingHeaderValues )
+                {
+                    addHeaderValue();
+                }
+                else if ( SPACE != byteClass || tokenLength > 0 )
+                {
+                    // leading spaces are skipped, trailing ones are trimmed once the value is complete
+                    append( current, byteClass );
+                }
+                break;
+
+            case COOKIE_NAME:
+                if ( EQUALS == byteClass )
+                {
+                    name = token();
+                    state = COOKIE_VALUE;
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    // a cookie name without value is discarded
+                    clearToken();
+                    state = LINE_START;
+                }
+                else if ( SPACE != byteClass && SEMICOLON != byteClass )
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            case COOKIE_VALUE:
+                if ( SEMICOLON == byteClass )
+                {
+                    addCookie();
+                    state = COOKIE_NAME;
+                }
+                else if ( NEW_LINE == byteClass )
+                {
+                    addCookie();
+                    state = LINE_START;
+                }
+                else
+                {
+                    append( current, byteClass );
+                }
+                break;
+
+            default:
+                throw new IllegalStateException( "Unexpected parser state " + state );
+        }
+    }
+
+    private void countHeadBytes( int count )
+        throws RequestParseException
+    {
+        headSize += count;
+        if ( headSize > MAX_HEAD_SIZE )
+        {
+            throw new RequestParseException( "Request heads longer than %s bytes are not supported", MAX_HEAD_SIZE );
+        }
+    }
+
+    private void onFormByte( byte current )
+        throws RequestParseException
+    {
+        byte byteClass = CLASSES[current & 0xFF];
+
+        if ( AMPERSAND == byteClass )
+        {
+            addParameter();
+            state = PARAM_NAME;
+        }
+        else if ( EQUALS == byteClass && PARAM_NAME == state )
+        {
+            name = urlDecodedToken();
+            state = PARAM_VALUE;
+        }
+        else
+        {
+            append( current, byteClass );
+        }
+
+        if ( --remainingBodyBytes == 0 )
+        {
+            addParameter();
+            state = COMPLETE;
+        }
+    }
+
+    private void onHeadComplete()
+    {
+        if ( request.getContentLength() <= 0 )
+        {
+            state = COMPLETE;
+            return;
+        }
+
+        remainingBodyBytes = request.getContentLength();
+
+        if ( request.getHeaders().contains( CONTENT_TYPE )
+             && request.getHeaders().getFirstValue( CONTENT_TYPE ).contains( FORM_URLENCODED ) )
+        {
+            state = PARAM_NAME;
+        }
+        else
+        {
+            requestBody = new LinkedList<ByteBuffer>();
+            state = BODY;
+        }
+    }
+
+    private void consumeBody( ByteBuffer buffer )
+    {
+        int length = (int) Math.min( buffer.remaining(), remainingBodyBytes );
+
+        if ( length > 0 )
+        {
+            ByteBuffer source = buffer.duplicate();
+            source.limit( source.position() + length );
+
+            ByteBuffer chunk = ByteBuffer.allocate( length );
+            chunk.put( source );
+            chunk.flip();
+            requestBody.offer( chunk );
+
+            buffer.position( buffer.position() + length );
+            remainingBodyBytes -= length;
+        }
+
+        if ( remainingBodyBytes == 0 )
+        {
+            requestBody.offer( EOM );
+            request.setRequestBody( requestBody );
+            state = COMPLETE;
+        }
+    }
+
+    private void addQueryStringParameter()
+        throws RequestParseException
+    {
+        if ( QS_PARAM_VALUE == state )
+        {
+            request.addQueryStringParameter( name, urlDecodedToken() );
+        }
+        else if ( tokenLength > 0 )
+        {
+            request.addQueryStringParameter( urlDecodedToken(), "" );
+        }
+    }
+
+    private void addParameter()
+        throws RequestParseException
+    {
+        if ( PARAM_VALUE == state )
+        {
+            request.addParameter( name, urlDecodedToken() );
+        }
+        else if ( tokenLength > 0 )
+        {
+            request.addParameter( urlDecodedToken(), "" );
+        }
+    }
+
+    private void addHeaderValue()
+        throws RequestParseException
+    {
+        while ( tokenLength > 0 && SPACE == CLASSES[token[tokenLength - 1] & 0xFF] )
+        {
+            tokenLength--;
+        }
+
+        if ( tokenLength == 0 )
+        {
+            return;
+        }
+
+        String value = token();
+        request.addHeader( name, value );
+
+        if ( CONTENT_LENGTH.equals( name ) )
+        {
+            long contentLength;
+            try
+            {
+                contentLength = Long.parseLong( value );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new RequestParseException( "%s header value %s is not a numeric format", CONTENT_LENGTH, value );
+            }
+
+            if ( contentLength < 0 )
+            {
+                throw new RequestParseException( "%s header value %s is negative", CONTENT_LENGTH, value );
+            }
+            request.setContentLength( contentLength );
+        }
+    }
+
+    private void addCookie()
+    {
+        // as a cookie name without value, a cookie with an empty value is discarded
+        if ( tokenLength > 0 )
+        {
+            request.addCookie( new CookieBuilder().setName( name ).setValue( token() ).build() );
+        }
+    }
+
+    private Method method()
+        throws RequestParseException
+    {
+        for ( Method method : METHODS )
+        {
+            if ( matches( method.name() ) )
+            {
+                clearToken();
+                return method;
+            }
+        }
+
+        throw new RequestParseException( "Custom method '%s' is not supported, only %s supported",
+                                         token(), Arrays.toString( METHODS ) );
+    }
+
+    /**
+     * Returns the header name, well-known names are matched ignoring the case and returned in their canonical form.
+     */
+    private String headerName()
+    {
+        if ( !tokenNonAscii )
+        {
+            for ( int i = 0; i < KNOWN_HEADER_NAMES_BYTES.length; i++ )
+            {
+                if ( matchesIgnoreCase( KNOWN_HEADER_NAMES_BYTES[i] ) )
+                {
+                    clearToken();
+                    return KNOWN_HEADER_NAMES[i];
+                }
+            }
+        }
+
+        return token();
+    }
+
+    private boolean matches( String value )
+    {
+        if ( value.length() != tokenLength )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < tokenLength; i++ )
+        {
+            if ( token[i] != value.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesIgnoreCase( byte[] lowerCase )
+    {
+        if ( lowerCase.length != tokenLength )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < tokenLength; i++ )
+        {
+            // sets the lower case bit, header names are letters, digits and dashes
+            if ( ( token[i] | 0x20 ) != lowerCase[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append( byte current, byte byteClass )
+        throws RequestParseException
+    {
+        ensureTokenCapacity( tokenLength + 1 );
+
+        token[tokenLength++] = current;
+
+        if ( ESCAPE == byteClass )
+        {
+            tokenEscaped = true;
+        }
+        else if ( NON_ASCII == byteClass )
+        {
+            tokenNonAscii = true;
+        }
+    }
+
+    private void ensureTokenCapacity( int capacity )
+        throws RequestParseException
+    {
+        if ( capacity <= token.length )
+        {
+            return;
+        }
+
+        if ( capacity > MAX_TOKEN_LENGTH )
+        {
+            throw new RequestParseException( "Request tokens longer than %s bytes are not supported",
+                                             MAX_TOKEN_LENGTH );
+        }
+
+        int newCapacity = token.length;
+        while ( newCapacity < capacity )
+        {
+            newCapacity *= 2;
+        }
+        token = Arrays.copyOf( token, Math.min( newCapacity, MAX_TOKEN_LENGTH ) );
+    }
+
+    private void checkEmptyToken( String element )
+        throws RequestParseException
+    {
+        if ( tokenLength > 0 )
+        {
+            throw new RequestParseException( "%s is malformed", element );
+        }
+    }
+
+    /**
+     * Creates the string of the current token, decoding it as UTF-8 only if it contains non ASCII bytes.
+     */
+    private String token()
+    {
+        String value = new String( token, 0, tokenLength, tokenNonAscii ? UTF_8 : US_ASCII );
+        clearToken();
+        return value;
+    }
+
+    /**
+     * Creates the string of the current token, url-decoding it only if it contains escapes.
+     */
+    private String urlDecodedToken()
+        throws RequestParseException
+    {
+        boolean escaped = tokenEscaped;
+        String value = token();
+        if ( !escaped )
+        {
+            return value;
+        }
+
+        try
+        {
+            return utf8URLDecode( value );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            throw new RequestParseException( "'%s' contains malformed escapes", value );
+        }
+    }
+
+    private void clearToken()
+    {
+        tokenLength = 0;
+        tokenEscaped = false;
+        tokenNonAscii = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRequestMessageComplete()
+    {
+        return COMPLETE == state;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Request getParsedRequest()
+    {
+        return request;
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import org.zentaur.io.ResponseBodyWriter;
+
+/**
+ * Marks a bodyless response has to be served as its pre-encoded template, see
+ * {@link ResponseTemplates#bare(org.zentaur.core.http.CoarseClock, String, org.zentaur.http.Response.Status, boolean)}:
+ * only the status, the protocol version and the connection persistence of the response are sent,
+ * other headers and cookies are not.
+ */
+public final class BareResponseBodyWriter
+    implements ResponseBodyWriter
+{
+
+    /**
+     * The shared instance, the writer has no state.
+     */
+    public static final BareResponseBodyWriter BARE = new BareResponseBodyWriter();
+
+    /**
+     * Hidden constructor, use the shared instance.
+     */
+    private BareResponseBodyWriter()
+    {
+        // do nothing
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String contentType()
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( WritableByteChannel output )
+        throws IOException
+    {
+        // do nothing
+    }
+
+}
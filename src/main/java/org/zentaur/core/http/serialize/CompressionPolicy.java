@@ -0,0 +1,312 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.Double.parseDouble;
+import static java.util.Arrays.asList;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether and how response bodies are compressed: the content coding negotiated with the client,
+ * the deflate level, the minimum body size and the content types worth compressing.
+ *
+ * The policy is configured before the server starts and only read afterwards.
+ */
+public final class CompressionPolicy
+{
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    private static final String X_GZIP = "x-gzip";
+
+    private static final String ANY_CODING = "*";
+
+    private static final String QUALITY_PARAMETER = "q=";
+
+    private static final int DEFAULT_MINIMUM_SIZE = 256;
+
+    /**
+     * Enough deflaters for the responses compressed at the same time by the reactors and the busy requests threads,
+     * bursts above it create deflaters that are ended once done.
+     */
+    private static final int DEFLATERS_POOL_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Already compressed formats, compressing them again wastes CPU for no gain.
+     */
+    private static final List<String> DEFAULT_UNCOMPRESSED_CONTENT_TYPES = asList( "image/gif",
+                                                                                   "image/jpeg",
+                                                                                   "image/png",
+                                                                                   "image/webp",
+                                                                                   "audio/*",
+                                                                                   "video/*",
+                                                                                   "application/zip",
+                                                                                   "application/gzip",
+                                                                                   "application/x-gzip",
+                                                                                   "application/x-compress",
+                                                                                   "application/java-archive",
+                                                                                   "application/ogg" );
+
+    private final DeflaterPool gzipDeflaters = new DeflaterPool( true, DEFLATERS_POOL_CAPACITY );
+
+    private final DeflaterPool zlibDeflaters = new DeflaterPool( false, DEFLATERS_POOL_CAPACITY );
+
+    private final Set<String> compressedContentTypes = new HashSet<String>();
+
+    private final Set<String> uncompressedContentTypes = new HashSet<String>();
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private int minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    private boolean reducingLevelUnderLoad = false;
+
+    public CompressionPolicy()
+    {
+        setUncompressedContentTypes( DEFAULT_UNCOMPRESSED_CONTENT_TYPES );
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Verifies response bodies are compressed for the clients that accept it, so responses vary
+     * according to the {@code Accept-Encoding} request header.
+     *
+     * @return true if response bodies can be compressed, false otherwise.
+     */
+    public boolean isEnabled()
+    {
+        return level != Deflater.NO_COMPRESSION;
+    }
+
+    public void setLevel( int level )
+    {
+        this.level = level;
+    }
+
+    public int getMinimumSize()
+    {
+        return minimumSize;
+    }
+
+    public void setMinimumSize( int minimumSize )
+    {
+        this.minimumSize = minimumSize;
+    }
+
+    public boolean isReducingLevelUnderLoad()
+    {
+        return reducingLevelUnderLoad;
+    }
+
+    public void setReducingLevelUnderLoad( boolean reducingLevelUnderLoad )
+    {
+        this.reducingLevelUnderLoad = reducingLevelUnderLoad;
+    }
+
+    /**
+     * Sets the only content types that are compressed, i.e. {@code text/html} or {@code text/*}.
+     *
+     * @param contentTypes the only content types that are compressed, empty to compress all of them
+     */
+    public void setCompressedContentTypes( Collection<String> contentTypes )
+    {
+        setContentTypes( compressedContentTypes, contentTypes );
+    }
+
+    /**
+     * Sets the content types that are never compressed, i.e. {@code image/png} or {@code video/*}.
+     *
+     * @param contentTypes the content types that are never compressed
+     */
+    public void setUncompressedContentTypes( Collection<String> contentTypes )
+    {
+        setContentTypes( uncompressedContentTypes, contentTypes );
+    }
+
+    private static void setContentTypes( Set<String> target, Collection<String> contentTypes )
+    {
+        target.clear();
+        for ( String contentType : contentTypes )
+        {
+            target.add( contentType.trim().toLowerCase( Locale.US ) );
+        }
+    }
+
+    /**
+     * Negotiates the content coding of the response body, according to the {@code Accept-Encoding} values
+     * quality; gzip is preferred over deflate when the client accepts both with the same quality.
+     *
+     * @param acceptEncodingValues the {@code Accept-Encoding} request header values
+     * @return {@link #GZIP}, {@link #DEFLATE} or null if the body has not to be compressed.
+     */
+    public String negotiate( List<String> acceptEncodingValues )
+    {
+        if ( !isEnabled() || acceptEncodingValues == null )
+        {
+            return null;
+        }
+
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double anyQuality = -1;
+
+        for ( String acceptEncodingValue : acceptEncodingValues )
+        {
+            for ( String coding : acceptEncodingValue.split( "," ) )
+            {
+                int parametersSeparator = coding.indexOf( ';' );
+                String name = ( parametersSeparator < 0 ? coding : coding.substring( 0, parametersSeparator ) ).trim();
+                double quality = parametersSeparator < 0 ? 1 : parseQuality( coding.substring( parametersSeparator + 1 ) );
+
+                if ( GZIP.equalsIgnoreCase( name ) || X_GZIP.equalsIgnoreCase( name ) )
+                {
+                    gzipQuality = quality;
+                }
+                else if ( DEFLATE.equalsIgnoreCase( name ) )
+                {
+                    deflateQuality = quality;
+                }
+                else if ( ANY_CODING.equals( name ) )
+                {
+                    anyQuality = quality;
+                }
+            }
+        }
+
+        // codings not explicitly listed get the wildcard quality
+        if ( gzipQuality < 0 )
+        {
+            gzipQuality = anyQuality;
+        }
+        if ( deflateQuality < 0 )
+        {
+            deflateQuality = anyQuality;
+        }
+
+        if ( gzipQuality > 0 && gzipQuality >= deflateQuality )
+        {
+            return GZIP;
+        }
+        if ( deflateQuality > 0 )
+        {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    private static double parseQuality( String parameters )
+    {
+        for ( String parameter : parameters.split( ";" ) )
+        {
+            parameter = parameter.trim();
+            if ( parameter.startsWith( QUALITY_PARAMETER ) )
+            {
+                try
+                {
+                    return parseDouble( parameter.substring( QUALITY_PARAMETER.length() ) );
+                }
+                catch ( NumberFormatException e )
+                {
+                    // an invalid quality doesn't make the coding acceptable
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Verifies bodies of the input content type are worth compressing.
+     *
+     * @param contentType the body content type, can be null.
+     * @return true if bodies of the input content type have to be compressed, false otherwise.
+     */
+    public boolean isCompressible( String contentType )
+    {
+        if ( contentType == null )
+        {
+            return compressedContentTypes.isEmpty();
+        }
+
+        int parametersSeparator = contentType.indexOf( ';' );
+        String mediaType = ( parametersSeparator < 0 ? contentType : contentType.substring( 0, parametersSeparator ) )
+                           .trim().toLowerCase( Locale.US );
+
+        if ( !compressedContentTypes.isEmpty() )
+        {
+            return matches( compressedContentTypes, mediaType );
+        }
+        return !matches( uncompressedContentTypes, mediaType );
+    }
+
+    private static boolean matches( Set<String> contentTypes, String mediaType )
+    {
+        if ( contentTypes.contains( mediaType ) )
+        {
+            return true;
+        }
+
+        int subtypeSeparator = mediaType.indexOf( '/' );
+        return subtypeSeparator > 0 && contentTypes.contains( mediaType.substring( 0, subtypeSeparator + 1 ) + '*' );
+    }
+
+    /**
+     * Returns the pool of the deflaters suitable for the input content coding.
+     *
+     * @param contentEncoding {@link #GZIP} or {@link #DEFLATE}
+     * @return the pool of the deflaters suitable for the input content coding.
+     */
+    DeflaterPool getDeflaters( String contentEncoding )
+    {
+        return GZIP.equals( contentEncoding ) ? gzipDeflaters : zlibDeflaters;
+    }
+
+    /**
+     * Returns the deflate level bodies have to be compressed with: when enabled and the requests executor
+     * queue backs up, the fastest level is used, trading the compression ratio for CPU.
+     *
+     * @param requestsExecutor the executor that processes the requests
+     * @return the deflate level bodies have to be compressed with.
+     */
+    public int getLevel( Executor requestsExecutor )
+    {
+        if ( reducingLevelUnderLoad && requestsExecutor instanceof ThreadPoolExecutor )
+        {
+            ThreadPoolExecutor threadPool = (ThreadPoolExecutor) requestsExecutor;
+            if ( threadPool.getQueue().size() > threadPool.getMaximumPoolSize() )
+            {
+                return Deflater.BEST_SPEED;
+            }
+        }
+        return level;
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of reusable {@link Deflater}s, that hold native zlib memory released only once
+ * they are ended: reusing them avoids allocating it for each compressed response and leaving it
+ * to the finalization.
+ *
+ * Deflaters are lazily created when the pool is empty; released deflaters exceeding
+ * the pool capacity are ended.
+ *
+ * This class is thread-safe, responses are compressed by the reactors and by the requests threads.
+ */
+final class DeflaterPool
+{
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+
+    private final AtomicInteger size = new AtomicInteger( 0 );
+
+    private final boolean nowrap;
+
+    private final int capacity;
+
+    /**
+     * Creates a new pool instance.
+     *
+     * @param nowrap true to pool deflaters that produce raw deflate data, as required by gzip,
+     *        false to pool deflaters that produce the zlib format
+     * @param capacity the maximum number of deflaters kept in the pool
+     */
+    public DeflaterPool( boolean nowrap, int capacity )
+    {
+        checkArgument( capacity > 0, "Pool capacity must be a positive integer" );
+        this.nowrap = nowrap;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Borrows a deflater from the pool, creating a new one if the pool is empty.
+     *
+     * @param level the compression level the deflater has to use
+     * @return a deflater ready to compress a new stream
+     */
+    public Deflater borrow( int level )
+    {
+        Deflater deflater = deflaters.poll();
+        if ( deflater == null )
+        {
+            return new Deflater( level, nowrap );
+        }
+
+        size.decrementAndGet();
+        // the new level is applied to the first input of the new stream
+        deflater.setLevel( level );
+        return deflater;
+    }
+
+    /**
+     * Gives back a previously borrowed deflater to the pool, it is reset or ended if the pool is full.
+     *
+     * @param deflater the deflater has to be released
+     */
+    public void release( Deflater deflater )
+    {
+        checkArgument( deflater != null, "Null deflater cannot be released" );
+
+        if ( size.incrementAndGet() > capacity )
+        {
+            size.decrementAndGet();
+            deflater.end();
+            return;
+        }
+
+        deflater.reset();
+        deflaters.offer( deflater );
+    }
+
+}
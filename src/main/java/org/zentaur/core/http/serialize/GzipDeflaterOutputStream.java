@@ -0,0 +1,83 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * {@link DeflaterOutputStream} that writes the gzip format using the {@link Deflater} provided by the caller,
+ * that has to be created with {@code nowrap} enabled; unlike {@link java.util.zip.GZIPOutputStream},
+ * the deflater can be configured with any level and it is never ended by the stream.
+ */
+final class GzipDeflaterOutputStream
+    extends DeflaterOutputStream
+{
+
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final CRC32 crc = new CRC32();
+
+    public GzipDeflaterOutputStream( OutputStream out, Deflater deflater, int size )
+        throws IOException
+    {
+        super( out, deflater, size );
+        out.write( HEADER );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( byte[] b, int off, int len )
+        throws IOException
+    {
+        super.write( b, off, len );
+        crc.update( b, off, len );
+    }
+
+    /**
+     * Completes the compressed data and writes the gzip trailer, without closing the underlying stream.
+     */
+    @Override
+    public void finish()
+        throws IOException
+    {
+        if ( def.finished() )
+        {
+            return;
+        }
+
+        super.finish();
+        writeInt( (int) crc.getValue() );
+        writeInt( (int) def.getBytesRead() );
+    }
+
+    private void writeInt( int value )
+        throws IOException
+    {
+        // gzip integers are little endian
+        out.write( value & 0xff );
+        out.write( ( value >> 8 ) & 0xff );
+        out.write( ( value >> 16 ) & 0xff );
+        out.write( ( value >> 24 ) & 0xff );
+    }
+
+}
@@ -0,0 +1,369 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.Arrays.asList;
+import static org.zentaur.http.Headers.CONNECTION;
+import static org.zentaur.http.Headers.CONTENT_ENCODING;
+import static org.zentaur.http.Headers.CONTENT_LENGTH;
+import static org.zentaur.http.Headers.CONTENT_TYPE;
+import static org.zentaur.http.Headers.DATE;
+import static org.zentaur.http.Headers.KEEP_ALIVE;
+import static org.zentaur.http.Headers.SERVER;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.io.PooledBuffer;
+import org.zentaur.http.Cookie;
+import org.zentaur.http.Response.Status;
+
+/**
+ * Encodes the response head - status line, headers and cookies - as ASCII bytes directly in a single array,
+ * well-known header names and status lines come already encoded.
+ *
+ * Encoders are pooled and reused across responses together with their array: the encoded head is enqueued
+ * to the connection without copying it and the connection releases the encoder once the head has been written;
+ * this class is not thread-safe, an encoder is owned by the thread that borrowed it until it is released.
+ */
+final class HeadEncoder
+    implements PooledBuffer
+{
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Encoders grown above this size, because of unusually large heads, are not pooled.
+     */
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+    /**
+     * Encoders are held until their heads have been written, more than the threads encoding them.
+     */
+    private static final int POOL_CAPACITY = 16 * Runtime.getRuntime().availableProcessors();
+
+    private static final Queue<HeadEncoder> POOL = new ConcurrentLinkedQueue<HeadEncoder>();
+
+    private static final AtomicInteger POOLED = new AtomicInteger( 0 );
+
+    private static final byte[] CRLF = ascii( "\r\n" );
+
+    private static final byte[] HEADER_SEPARATOR = ascii( ": " );
+
+    private static final byte[] VALUES_SEPARATOR = ascii( ", " );
+
+    private static final byte[] SET_COOKIE = ascii( "Set-Cookie: " );
+
+    /**
+     * The well-known header names followed by the separator, i.e. {@code "Content-Length: "}.
+     */
+    private static final Map<String, byte[]> HEADER_NAMES = new HashMap<String, byte[]>();
+
+    static
+    {
+        for ( String headerName : asList( CONNECTION, CONTENT_ENCODING, CONTENT_LENGTH, CONTENT_TYPE, DATE,
+                                          KEEP_ALIVE, SERVER, "Transfer-Encoding", "ETag", "Last-Modified",
+                                          "Accept-Ranges", "Content-Range", "Vary" ) )
+        {
+            HEADER_NAMES.put( headerName, ascii( headerName + ": " ) );
+        }
+    }
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * The view over the encoded head, enqueued to the connection.
+     */
+    private ByteBuffer head = ByteBuffer.wrap( bytes );
+
+    /**
+     * The clock the current {@code Date} header line is taken from, while borrowed.
+     */
+    private CoarseClock clock;
+
+    /**
+     * Borrows an empty encoder from the pool, creating a new one if the pool is empty.
+     *
+     * @param clock the server clock, whose current {@code Date} header line is already encoded
+     * @return an empty encoder
+     */
+    public static HeadEncoder borrow( CoarseClock clock )
+    {
+        HeadEncoder encoder = POOL.poll();
+        if ( encoder == null )
+        {
+            encoder = new HeadEncoder();
+        }
+        else
+        {
+            POOLED.decrementAndGet();
+        }
+
+        encoder.clock = clock;
+        return encoder;
+    }
+
+    /**
+     * Gives back this encoder to the pool, it must not be used anymore.
+     */
+    @Override
+    public void release()
+    {
+        size = 0;
+        clock = null;
+
+        if ( bytes.length > MAX_POOLED_CAPACITY )
+        {
+            return;
+        }
+
+        if ( POOLED.incrementAndGet() > POOL_CAPACITY )
+        {
+            POOLED.decrementAndGet();
+            return;
+        }
+
+        POOL.offer( this );
+    }
+
+    /**
+     * Encodes the status line.
+     *
+     * @param protocolName the protocol name, i.e. {@code HTTP}
+     * @param protocolVersion the protocol version, i.e. {@code 1.1}
+     * @param status the response status
+     * @return this encoder
+     */
+    public HeadEncoder statusLine( String protocolName, String protocolVersion, Status status )
+    {
+        byte[] statusLine = ResponseTemplates.getStatusLine( protocolName, protocolVersion, status );
+        if ( statusLine != null )
+        {
+            write( statusLine );
+            return this;
+        }
+
+        write( protocolName );
+        write( (byte) '/' );
+        write( protocolVersion );
+        write( (byte) ' ' );
+        write( String.valueOf( status.getStatusCode() ) );
+        write( (byte) ' ' );
+        write( status.getStatusText() );
+        write( CRLF );
+        return this;
+    }
+
+    /**
+     * Encodes a header line, its values separated by commas.
+     *
+     * @param name the header name
+     * @param values the header values, must not be null
+     * @return this encoder
+     */
+    public HeadEncoder header( String name, List<String> values )
+    {
+        for ( String value : values )
+        {
+            checkArgument( value != null, "Null value of header %s not allowed.", name );
+        }
+
+        if ( DATE.equals( name ) && values.size() == 1 )
+        {
+            // the current date line is encoded once per second
+            byte[] dateHeaderLine = clock.getDateHeaderLine( values.get( 0 ) );
+            if ( dateHeaderLine != null )
+            {
+                write( dateHeaderLine );
+                return this;
+            }
+        }
+
+        byte[] encodedName = HEADER_NAMES.get( name );
+        if ( encodedName != null )
+        {
+            write( encodedName );
+        }
+        else
+        {
+            write( name );
+            write( HEADER_SEPARATOR );
+        }
+
+        for ( int i = 0; i < values.size(); i++ )
+        {
+            if ( i > 0 )
+            {
+                write( VALUES_SEPARATOR );
+            }
+            write( values.get( i ) );
+        }
+
+        write( CRLF );
+        return this;
+    }
+
+    /**
+     * Encodes a {@code Set-Cookie} header line.
+     *
+     * @param cookie the cookie has to be set
+     * @param expires the cookie expiration date, null if the cookie has no max age.
+     * @return this encoder
+     */
+    public HeadEncoder cookie( Cookie cookie, String expires )
+    {
+        write( SET_COOKIE );
+        write( cookie.getName() );
+        write( (byte) '=' );
+        write( cookie.getValue() );
+        write( (byte) ';' );
+
+        // the attributes are omitted when not set, rather than sent as "null"
+        if ( cookie.getPath() != null )
+        {
+            write( " Path=" );
+            write( cookie.getPath() );
+            write( (byte) ';' );
+        }
+        if ( cookie.getDomain() != null )
+        {
+            write( " Domain=" );
+            write( cookie.getDomain() );
+            write( (byte) ';' );
+        }
+
+        if ( !cookie.getPorts().isEmpty() )
+        {
+            write( " Port=\"" );
+            int i = 0;
+            for ( Integer port : cookie.getPorts() )
+            {
+                if ( i++ > 0 )
+                {
+                    write( (byte) ',' );
+                }
+                write( String.valueOf( port ) );
+            }
+            write( "\";" );
+        }
+
+        if ( expires != null )
+        {
+            write( " Expires=" );
+            write( expires );
+            write( (byte) ';' );
+        }
+
+        // secure field ignored since HTTPs is not supported in this version
+
+        write( " HttpOnly" );
+        write( CRLF );
+        return this;
+    }
+
+    /**
+     * Encodes the empty line that separates the head from the body, the encoded head is ready to be written.
+     *
+     * @return this encoder
+     */
+    public HeadEncoder end()
+    {
+        write( CRLF );
+
+        // the view is reallocated only when the array grew
+        if ( head.array() != bytes )
+        {
+            head = ByteBuffer.wrap( bytes );
+        }
+        head.clear();
+        head.limit( size );
+        return this;
+    }
+
+    /**
+     * Returns the encoded head once ended, a view over the encoder array: the encoder must not be used
+     * until it is released, once the head has been written.
+     *
+     * @return the encoded head.
+     */
+    @Override
+    public ByteBuffer getBuffer()
+    {
+        return head;
+    }
+
+    private void write( byte b )
+    {
+        ensureCapacity( 1 );
+        bytes[size++] = b;
+    }
+
+    private void write( byte[] encoded )
+    {
+        ensureCapacity( encoded.length );
+        System.arraycopy( encoded, 0, bytes, size, encoded.length );
+        size += encoded.length;
+    }
+
+    private void write( String value )
+    {
+        ensureCapacity( value.length() );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            if ( c >= 0x80 )
+            {
+                // heads are ASCII, anything else is kept UTF-8 encoded as it was
+                write( value.substring( i ).getBytes( UTF_8 ) );
+                return;
+            }
+            bytes[size++] = (byte) c;
+        }
+    }
+
+    private void ensureCapacity( int length )
+    {
+        if ( size + length > bytes.length )
+        {
+            bytes = Arrays.copyOf( bytes, Math.max( 2 * bytes.length, size + length ) );
+        }
+    }
+
+    private static byte[] ascii( String value )
+    {
+        byte[] encoded = new byte[value.length()];
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            encoded[i] = (byte) value.charAt( i );
+        }
+        return encoded;
+    }
+
+}
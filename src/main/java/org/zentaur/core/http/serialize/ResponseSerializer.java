@@ -16,77 +16,124 @@ package org.zentaur.core.http.serialize;
  *   limitations under the License.
  */
 
-import static java.lang.String.format;
-import static java.lang.System.currentTimeMillis;
+import static java.lang.Long.toHexString;
 import static java.nio.channels.Channels.newChannel;
-import static java.nio.channels.SelectionKey.OP_WRITE;
-import static java.util.Locale.US;
+import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
 import static org.zentaur.core.io.IOUtils.utf8ByteBuffer;
+import static org.zentaur.http.Headers.ACCEPT_ENCODING;
+import static org.zentaur.http.Headers.CONNECTION;
 import static org.zentaur.http.Headers.CONTENT_ENCODING;
 import static org.zentaur.http.Headers.CONTENT_LENGTH;
 import static org.zentaur.http.Headers.CONTENT_TYPE;
+import static org.zentaur.http.Headers.KEEP_ALIVE;
 import static org.zentaur.lang.Preconditions.checkArgument;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Formatter;
+import java.nio.charset.Charset;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
+import org.zentaur.core.http.CoarseClock;
 import org.zentaur.core.io.ByteBufferEnqueuerOutputStream;
+import org.zentaur.core.io.ByteBufferResponseBodyWriter;
+import org.zentaur.core.io.ByteRangesResponseBodyWriter;
+import org.zentaur.core.io.FileRegion;
+import org.zentaur.core.io.FileResponseBodyWriter;
+import org.zentaur.core.io.OutboundBuffers;
 import org.zentaur.http.Cookie;
 import org.zentaur.http.Response;
 
 /**
  * Serializes an HTTP {@link Response} to the target output stream
  *
+ * The body is buffered to compute its {@code Content-Length}; when it exceeds the connection outbound budget,
+ * i.e. the high watermark, and the client speaks HTTP/1.1, the head is sent and the body is streamed
+ * with the {@code chunked} transfer coding while the body writer produces it.
+ *
  * This class is not thread safe, create a new instance for each serialization.
  */
 public final class ResponseSerializer
 {
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", US ); // RFC1123
-
     private static final String END_PADDING = "\r\n";
 
-    private static final String GZIP = "gzip";
+    private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+
+    private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    private static final String CHUNKED = "chunked";
+
+    private static final String VARY = "Vary";
+
+    private static final String CHUNKING_PROTOCOL_VERSION = "1.1";
+
+    private static final ByteBuffer CHUNK_END = utf8ByteBuffer( END_PADDING ).asReadOnlyBuffer();
 
-    private final Queue<ByteBuffer> responseBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final int COMPRESSION_BUFFER_SIZE = 8 * 1024;
 
-    private final SelectionKey key;
+    private static final ByteBuffer LAST_CHUNK = utf8ByteBuffer( "0" + END_PADDING + END_PADDING ).asReadOnlyBuffer();
 
-    private final boolean gzipSupported;
+    private final OutboundBuffers responseBuffers;
+
+    private final CompressionPolicy compressionPolicy;
+
+    private final String contentEncoding;
+
+    private final int compressionLevel;
+
+    private final boolean awaitWritable;
+
+    private final CoarseClock clock;
 
     private Response response;
 
     /**
      * Creates a new serializer instance.
      *
-     * @param key the selection key that currently holds the client/server connection.
+     * @param responseBuffers the buffers queue of the connection where the response has to be written to.
+     * @param clock the server clock, dates are read from.
      */
-    public ResponseSerializer( SelectionKey key )
+    public ResponseSerializer( OutboundBuffers responseBuffers, CoarseClock clock )
     {
-        this( key, false );
+        this( responseBuffers, null, null, Deflater.DEFAULT_COMPRESSION, true, clock );
     }
 
     /**
      * Creates a new serializer instance.
      *
-     * @param key the selection key that currently holds the client/server connection.
-     * @param gzipSupported flag to mark the client supports gzip compression.
+     * @param responseBuffers the buffers queue of the connection where the response has to be written to.
+     * @param compressionPolicy the policy that decides which bodies are compressed, can be null
+     *        if the content encoding is null.
+     * @param contentEncoding the content coding negotiated with the client, null if the body has not to be compressed.
+     * @param compressionLevel the deflate level bodies are compressed with.
+     * @param awaitWritable flag to mark the body has to be enqueued waiting the connection is writable,
+     *        false when serializing from the reactor thread, that is the one that drains the buffers.
+     * @param clock the server clock, dates are read from.
      */
-    public ResponseSerializer( SelectionKey key, boolean gzipSupported )
+    public ResponseSerializer( OutboundBuffers responseBuffers,
+                               CompressionPolicy compressionPolicy,
+                               String contentEncoding,
+                               int compressionLevel,
+                               boolean awaitWritable,
+                               CoarseClock clock )
     {
-        checkArgument( key != null, "Null SelectionKey not allowd." );
-        this.key = key;
-        this.gzipSupported = gzipSupported;
+        checkArgument( responseBuffers != null, "Null OutboundBuffers not allowd." );
+        checkArgument( clock != null, "Null CoarseClock not allowed." );
+        checkArgument( contentEncoding == null || compressionPolicy != null,
+                       "Null CompressionPolicy not allowed when compressing." );
+        this.responseBuffers = responseBuffers;
+        this.compressionPolicy = compressionPolicy;
+        this.contentEncoding = contentEncoding;
+        this.compressionLevel = compressionLevel;
+        this.awaitWritable = awaitWritable;
+        this.clock = clock;
     }
 
     /**
@@ -101,115 +148,276 @@ public final class ResponseSerializer
         checkArgument( response != null, "Null Response cannot be serialized." );
         this.response = response;
 
-        // print the body, so it will calculate the response size and populate the right HTTP header
-        Queue<ByteBuffer> body = createBodyBuffer();
+        if ( response.getBodyWriter() instanceof BareResponseBodyWriter )
+        {
+            serializeBare();
+            return;
+        }
+
+        if ( response.getBodyWriter() instanceof ByteRangesResponseBodyWriter )
+        {
+            // ranges refer to the identity encoded file, they are never compressed
+            serializeByteRanges( (ByteRangesResponseBodyWriter) response.getBodyWriter() );
+            return;
+        }
+
+        if ( isNegotiated() )
+        {
+            // compressed or not, the body depends on the client accepted codings: shared caches have to know it
+            addVaryAcceptEncoding();
+        }
+
+        if ( response.getBodyWriter() instanceof FileResponseBodyWriter )
+        {
+            FileResponseBodyWriter file = (FileResponseBodyWriter) response.getBodyWriter();
+
+            // files don't need to be copied in the heap, unless they are compressed
+            if ( !isCompressing( file.getLength() ) )
+            {
+                serializeFileRegion( file.openRegion() );
+                return;
+            }
+        }
 
-        // emit the protocol first
-        emitProtocol();
+        if ( response.getBodyWriter() instanceof ByteBufferResponseBodyWriter )
+        {
+            ByteBuffer content = ( (ByteBufferResponseBodyWriter) response.getBodyWriter() ).getContent();
 
-        // key can start writing the protocol first
-        key.attach( responseBuffers );
-        key.interestOps( OP_WRITE );
+            // already encoded bodies don't need to be copied, unless they are compressed
+            if ( !isCompressing( content.remaining() ) )
+            {
+                serializeContent( content );
+                return;
+            }
+        }
 
-        // headers are now complete
-        emitHeaders();
+        // print the body, so it will calculate the response size and populate the right HTTP header
+        Queue<ByteBuffer> body = createBodyBuffer();
 
-        // cookies can go safety out
-        emitCookies();
+        if ( body == null )
+        {
+            // the body has been already streamed
+            return;
+        }
 
-        // separate the head from the body
-        responseBuffers.offer( utf8ByteBuffer( END_PADDING ) );
+        emitHead();
 
         // re-enqeue the body one piece at time
-        // responseBuffers is under producer/consumer pattern
+        // responseBuffers is under producer/consumer pattern, wait while the client is slower than the producer
+        // the reactor thread cannot wait, it enqueues the whole body and stops reading until it has been written
         while ( !body.isEmpty() )
         {
+            if ( awaitWritable )
+            {
+                responseBuffers.awaitWritable();
+            }
             responseBuffers.offer( body.remove() );
         }
     }
 
     /**
-     * Writes the protocol reply.
+     * Enqueues the head followed by the file region, that will be transferred directly to the connection.
      *
+     * @param region the region of the file to be sent as body
      * @throws IOException if any error occurs while streaming
      */
-    private void emitProtocol()
+    private void serializeFileRegion( FileRegion region )
         throws IOException
     {
-        emit( "%s/%s %s %s%n",
-               response.getProtocolName(),
-               response.getProtocolVersion(),
-               response.getStatus().getStatusCode(),
-               response.getStatus().getStatusText() );
+        try
+        {
+            if ( response.getBodyWriter().contentType() != null )
+            {
+                response.addHeader( CONTENT_TYPE, response.getBodyWriter().contentType() );
+            }
+
+            if ( region.getRemaining() > 0 )
+            {
+                response.addHeader( CONTENT_LENGTH, String.valueOf( region.getRemaining() ) );
+            }
+
+            emitHead();
+        }
+        catch ( IOException e )
+        {
+            region.close();
+            throw e;
+        }
+
+        responseBuffers.offer( region );
+        responseBuffers.offer( EOM );
     }
 
     /**
-     * Writes the HTTP Headers.
+     * Verifies the body coding is negotiated with the client, i.e. the body is compressed
+     * for the clients that accept it, whether the current one does or not.
      *
+     * @return true if the body coding is negotiated with the client, false otherwise.
+     */
+    private boolean isNegotiated()
+    {
+        return compressionPolicy != null
+               && compressionPolicy.isEnabled()
+               && compressionPolicy.isCompressible( response.getBodyWriter().contentType() );
+    }
+
+    private void addVaryAcceptEncoding()
+    {
+        if ( response.getHeaders().contains( VARY ) )
+        {
+            for ( String value : response.getHeaders().getValues( VARY ) )
+            {
+                if ( ACCEPT_ENCODING.equalsIgnoreCase( value.trim() ) )
+                {
+                    return;
+                }
+            }
+        }
+        response.addHeader( VARY, ACCEPT_ENCODING );
+    }
+
+    /**
+     * Verifies the body, whose size is already known, has to be compressed.
+     *
+     * @param contentLength the body size
+     * @return true if the body has to be compressed, false otherwise.
+     */
+    private boolean isCompressing( long contentLength )
+    {
+        return contentEncoding != null
+               && contentLength > 0
+               && contentLength >= compressionPolicy.getMinimumSize()
+               && compressionPolicy.isCompressible( response.getBodyWriter().contentType() );
+    }
+
+    /**
+     * Enqueues the head followed by the ranges regions, or slices, preceded by their part heads when there are more ranges.
+     *
+     * @param byteRanges the ranges to be sent as body
      * @throws IOException if any error occurs while streaming
      */
-    private void emitHeaders()
+    private void serializeByteRanges( ByteRangesResponseBodyWriter byteRanges )
         throws IOException
     {
-        for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+        if ( byteRanges.contentType() != null )
         {
-            Formatter formatter = new Formatter().format( "%s: ", header.getKey() );
+            response.addHeader( CONTENT_TYPE, byteRanges.contentType() );
+        }
+        response.addHeader( CONTENT_LENGTH, String.valueOf( byteRanges.getContentLength() ) );
+
+        emitHead();
 
-            int counter = 0;
-            for ( String headerValue : header.getValue() )
+        for ( int i = 0; i < byteRanges.getRanges().size(); i++ )
+        {
+            if ( byteRanges.isMultipart() )
+            {
+                responseBuffers.offer( byteRanges.getPartHead( i ) );
+            }
+            if ( byteRanges.isFileBacked() )
             {
-                formatter.format( "%s%s", ( counter++ > 0 ? ", " : "" ), headerValue );
+                responseBuffers.offer( byteRanges.openRegion( i ) );
             }
+            else
+            {
+                responseBuffers.offer( byteRanges.getRangeContent( i ) );
+            }
+        }
 
-            formatter.format( "%n" );
+        if ( byteRanges.isMultipart() )
+        {
+            responseBuffers.offer( byteRanges.getCloseDelimiter() );
+        }
+        responseBuffers.offer( EOM );
+    }
+
+    /**
+     * Enqueues the pre-encoded bare response of the response status, nothing is encoded.
+     */
+    private void serializeBare()
+    {
+        boolean keepAlive = KEEP_ALIVE.equals( response.getHeaders().getFirstValue( CONNECTION ) );
 
-            emit( formatter.toString() );
+        responseBuffers.offer( ResponseTemplates.bare( clock, response.getProtocolVersion(), response.getStatus(),
+                                                       keepAlive ) );
+        responseBuffers.offer( EOM );
+        responseBuffers.startWriting();
+    }
+
+    /**
+     * Enqueues the head followed by the already encoded body.
+     *
+     * @param content the bytes to be sent as body
+     * @throws IOException if any error occurs while streaming
+     */
+    private void serializeContent( ByteBuffer content )
+        throws IOException
+    {
+        if ( response.getBodyWriter().contentType() != null )
+        {
+            response.addHeader( CONTENT_TYPE, response.getBodyWriter().contentType() );
+        }
+
+        if ( content.hasRemaining() )
+        {
+            response.addHeader( CONTENT_LENGTH, String.valueOf( content.remaining() ) );
         }
+
+        emitHead();
+
+        responseBuffers.offer( content );
+        responseBuffers.offer( EOM );
     }
 
     /**
-     * Writes the HTTP Cookies.
+     * Writes the response status line, headers and cookies, encoded in a single buffer.
      *
      * @throws IOException if any error occurs while streaming
      */
-    private void emitCookies()
+    private void emitHead()
         throws IOException
     {
-        for ( Cookie cookie : response.getCookies() )
+        HeadEncoder head = HeadEncoder.borrow( clock );
+        boolean enqueued = false;
+        try
         {
-            Formatter formatter = new Formatter()
-                                     .format( "Set-Cookie: %s=%s; Path=%s; Domain=%s;",
-                                              cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() );
+            head.statusLine( response.getProtocolName(), response.getProtocolVersion(), response.getStatus() );
+
+            for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+            {
+                head.header( header.getKey(), header.getValue() );
+            }
 
-            if ( !cookie.getPorts().isEmpty() )
+            for ( Cookie cookie : response.getCookies() )
             {
-                formatter.format( " Port=\"" );
-                int i = 0;
-                for ( Integer port : cookie.getPorts() )
+                String expires = null;
+                if ( cookie.getMaxAge() != -1 )
                 {
-                    formatter.format( "%s%s", ( i++ > 0 ? "," : "" ), port );
+                    expires = clock.formatHttpDate( cookie.getMaxAge() * 1000 + clock.currentTimeMillis() );
                 }
-                formatter.format( "\";" );
+                head.cookie( cookie, expires );
             }
 
-            if ( cookie.getMaxAge() != -1 )
+            // separate the head from the body, the connection releases the encoder once the head is written
+            responseBuffers.offer( head.end() );
+            enqueued = true;
+        }
+        finally
+        {
+            if ( !enqueued )
             {
-                Date expirationDate = new Date( cookie.getMaxAge() * 1000 + currentTimeMillis() );
-                String expires = dateFormat.format( expirationDate );
-
-                formatter.format( " Expires=%s;", expires );
+                head.release();
             }
-
-            // secure field ignored since HTTPs is not supported in this version
-
-            emit( formatter.format( " HttpOnly%n" ).toString() );
         }
+
+        // connection can start writing the head
+        responseBuffers.startWriting();
     }
 
     /**
      * Creates the response body, splitted in chunks (body can be also very large)
      * and counts the bytes size, then sets the right Content-Length HTTP header.
      *
+     * @return the body buffers, null if the body exceeded the outbound budget and has been streamed
      * @throws IOException if any error occurs while streaming
      */
     private Queue<ByteBuffer> createBodyBuffer()
@@ -224,21 +432,40 @@ public final class ResponseSerializer
 
         ByteBufferEnqueuerOutputStream target = new ByteBufferEnqueuerOutputStream( bodyBuffers );
 
-        if ( gzipSupported )
+        // only threads that can wait for the connection being writable stream the body
+        ChunkingOutputStream chunkingTarget =
+            new ChunkingOutputStream( target, bodyBuffers,
+                                      awaitWritable && CHUNKING_PROTOCOL_VERSION.equals( response.getProtocolVersion() )
+                                          ? responseBuffers.getHighWatermark() : Long.MAX_VALUE );
+
+        if ( contentEncoding != null && compressionPolicy.isCompressible( response.getBodyWriter().contentType() ) )
         {
-            response.addHeader( CONTENT_ENCODING, GZIP );
-            GZIPOutputStream gzipTarget = new GZIPOutputStream( target );
+            CompressingOutputStream compressingTarget = new CompressingOutputStream( chunkingTarget );
 
-            response.getBodyWriter().write( newChannel( gzipTarget ) );
+            try
+            {
+                response.getBodyWriter().write( newChannel( compressingTarget ) );
 
-            gzipTarget.finish();
+                compressingTarget.finish();
+            }
+            finally
+            {
+                compressingTarget.release();
+            }
         }
         else
         {
-            response.getBodyWriter().write( newChannel( target ) );
+            response.getBodyWriter().write( newChannel( chunkingTarget ) );
         }
 
         target.flush();
+
+        if ( chunkingTarget.isStreaming() )
+        {
+            chunkingTarget.close();
+            return null;
+        }
+
         target.close();
 
         long writtenBytes = target.getWrittenBytes();
@@ -252,16 +479,208 @@ public final class ResponseSerializer
     }
 
     /**
-     * Generic method to emit UTF message and enqueues the resultant chunk in the response queue.
-     *
-     * @param messageTemplate the String message format
-     * @param args the message template placeholders variables
-     * @throws IOException if any error occurs while streaming
+     * Buffers the body bytes until they exceed the threshold, then sends the head
+     * and streams the buffered body bytes as chunks, waiting while the connection is not writable.
      */
-    private void emit( String messageTemplate, Object...args )
-        throws IOException
+    private final class ChunkingOutputStream
+        extends OutputStream
     {
-        responseBuffers.offer( utf8ByteBuffer( format( messageTemplate, args ) ) );
+
+        private final ByteBufferEnqueuerOutputStream target;
+
+        private final Queue<ByteBuffer> bodyBuffers;
+
+        private final long threshold;
+
+        private boolean streaming = false;
+
+        public ChunkingOutputStream( ByteBufferEnqueuerOutputStream target,
+                                     Queue<ByteBuffer> bodyBuffers,
+                                     long threshold )
+        {
+            this.target = target;
+            this.bodyBuffers = bodyBuffers;
+            this.threshold = threshold;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            target.write( b );
+            streamBufferedBytes();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            target.write( b, off, len );
+            streamBufferedBytes();
+        }
+
+        /**
+         * Sends the remaining buffered bytes and the last chunk, completing the response.
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            streamBufferedBytes();
+
+            responseBuffers.awaitWritable();
+            responseBuffers.offer( LAST_CHUNK.duplicate() );
+            responseBuffers.offer( EOM );
+        }
+
+        public boolean isStreaming()
+        {
+            return streaming;
+        }
+
+        private void streamBufferedBytes()
+            throws IOException
+        {
+            if ( !streaming )
+            {
+                if ( target.getWrittenBytes() <= threshold )
+                {
+                    return;
+                }
+
+                streaming = true;
+                response.addHeader( TRANSFER_ENCODING, CHUNKED );
+                emitHead();
+            }
+
+            // the buffers filled so far are sent in a single chunk
+            long chunkSize = 0;
+            for ( ByteBuffer buffer : bodyBuffers )
+            {
+                chunkSize += buffer.remaining();
+            }
+
+            if ( chunkSize == 0 )
+            {
+                return;
+            }
+
+            responseBuffers.awaitWritable();
+            responseBuffers.offer( ByteBuffer.wrap( ( toHexString( chunkSize ) + END_PADDING ).getBytes( US_ASCII ) ) );
+            while ( !bodyBuffers.isEmpty() )
+            {
+                responseBuffers.offer( bodyBuffers.remove() );
+            }
+            responseBuffers.offer( CHUNK_END.duplicate() );
+        }
+
+    }
+
+    /**
+     * Holds the body bytes until they reach the compression minimum size, then compresses them:
+     * smaller bodies are sent as they are, compressing them doesn't pay off.
+     */
+    private final class CompressingOutputStream
+        extends OutputStream
+    {
+
+        private final OutputStream target;
+
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        private Deflater deflater;
+
+        private DeflaterOutputStream compressor;
+
+        public CompressingOutputStream( OutputStream target )
+        {
+            this.target = target;
+        }
+
+        @Override
+        public void write( int b )
+            throws IOException
+        {
+            write( new byte[] { (byte) b }, 0, 1 );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len )
+            throws IOException
+        {
+            if ( compressor != null )
+            {
+                compressor.write( b, off, len );
+                return;
+            }
+
+            pending.write( b, off, len );
+
+            if ( pending.size() > 0 && pending.size() >= compressionPolicy.getMinimumSize() )
+            {
+                startCompressing();
+            }
+        }
+
+        private void startCompressing()
+            throws IOException
+        {
+            // the head is not emitted yet, bytes are held until the compression starts
+            response.addHeader( CONTENT_ENCODING, contentEncoding );
+
+            deflater = compressionPolicy.getDeflaters( contentEncoding ).borrow( compressionLevel );
+
+            if ( CompressionPolicy.GZIP.equals( contentEncoding ) )
+            {
+                compressor = new GzipDeflaterOutputStream( target, deflater, COMPRESSION_BUFFER_SIZE );
+            }
+            else
+            {
+                compressor = new DeflaterOutputStream( target, deflater, COMPRESSION_BUFFER_SIZE );
+            }
+
+            pending.writeTo( compressor );
+            pending = null;
+        }
+
+        /**
+         * Completes the body, without closing the target stream.
+         *
+         * @throws IOException if any error occurs while streaming
+         */
+        public void finish()
+            throws IOException
+        {
+            if ( compressor == null )
+            {
+                // the body is too small to be compressed
+                pending.writeTo( target );
+                return;
+            }
+
+            compressor.finish();
+        }
+
+        /**
+         * Gives back the deflater to the pool, once the body has been completed or failed.
+         */
+        public void release()
+        {
+            if ( deflater != null )
+            {
+                compressionPolicy.getDeflaters( contentEncoding ).release( deflater );
+                deflater = null;
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,219 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.http.Response.Status;
+
+/**
+ * Pre-encoded status lines and bare responses, shared across all the connections.
+ *
+ * Status lines are encoded once per supported protocol version, the first time that version is served;
+ * bare responses are encoded once per status, protocol version and connection persistence, again only
+ * when the date changes, and served as read-only views. Tables are immutable once built, or updated atomically,
+ * this class is thread-safe.
+ */
+public final class ResponseTemplates
+{
+
+    private static final String HTTP = "HTTP";
+
+    private static final String HTTP_10 = "1.0";
+
+    private static final String HTTP_11 = "1.1";
+
+    private static final byte[] CLOSING_HEADERS = ascii( "Connection: close\r\n"
+                                                         + "Content-Length: 0\r\n"
+                                                         + "\r\n" );
+
+    private static final byte[] KEEP_ALIVE_HEADERS = ascii( "Connection: Keep-Alive\r\n"
+                                                            + "Content-Length: 0\r\n"
+                                                            + "\r\n" );
+
+    /**
+     * Hidden constructor, this class cannot be instantiated.
+     */
+    private ResponseTemplates()
+    {
+        // do nothing
+    }
+
+    /**
+     * Returns the pre-encoded status line, i.e. {@code "HTTP/1.1 200 OK\r\n"}; the returned array is shared
+     * and must not be modified.
+     *
+     * @param protocolName the protocol name, i.e. {@code HTTP}
+     * @param protocolVersion the protocol version, i.e. {@code 1.1}
+     * @param status the response status
+     * @return the pre-encoded status line, null if the protocol version is not supported.
+     */
+    static byte[] getStatusLine( String protocolName, String protocolVersion, Status status )
+    {
+        if ( !HTTP.equals( protocolName ) )
+        {
+            return null;
+        }
+
+        if ( HTTP_11.equals( protocolVersion ) )
+        {
+            return Http11Templates.LINES[status.ordinal()];
+        }
+
+        if ( HTTP_10.equals( protocolVersion ) )
+        {
+            return Http10Templates.LINES[status.ordinal()];
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a bodyless response that closes the connection, with the current date.
+     *
+     * The status line carries the version of the request being answered, when known and supported;
+     * otherwise, i.e. when the connection is rejected before its request line has been read, HTTP/1.1 is used:
+     * HTTP/1.0 recipients accept any HTTP/1.x response (RFC 7230, section 2.6) and the response has
+     * no body and closes the connection, both understood by HTTP/1.0 clients.
+     *
+     * @param clock the server clock, whose current {@code Date} header line is already encoded
+     * @param protocolVersion the version of the request being answered, null if not known
+     * @param status the response status
+     * @return a read-only view over the shared pre-encoded response.
+     * @see #bare(CoarseClock, String, Status, boolean)
+     */
+    public static ByteBuffer closingConnection( CoarseClock clock, String protocolVersion, Status status )
+    {
+        return bare( clock, protocolVersion, status, false );
+    }
+
+    /**
+     * Returns a bodyless response with the current date, that keeps the connection alive or closes it;
+     * nothing is encoded unless the date changed since the last time the same response was served.
+     *
+     * @param clock the server clock, whose current {@code Date} header line is already encoded
+     * @param protocolVersion the version of the request being answered, HTTP/1.1 is used if null or not supported
+     * @param status the response status
+     * @param keepAlive true if the connection is kept alive, false if it is closed once the response is written
+     * @return a read-only view over the shared pre-encoded response.
+     */
+    public static ByteBuffer bare( CoarseClock clock, String protocolVersion, Status status, boolean keepAlive )
+    {
+        byte[][] lines;
+        AtomicReferenceArray<BareResponse> responses;
+        if ( HTTP_10.equals( protocolVersion ) )
+        {
+            lines = Http10Templates.LINES;
+            responses = keepAlive ? Http10Templates.KEEPING_ALIVE : Http10Templates.CLOSING;
+        }
+        else
+        {
+            lines = Http11Templates.LINES;
+            responses = keepAlive ? Http11Templates.KEEPING_ALIVE : Http11Templates.CLOSING;
+        }
+
+        byte[] dateHeaderLine = clock.getDateHeaderLine();
+        BareResponse response = responses.get( status.ordinal() );
+        if ( response == null || response.dateHeaderLine != dateHeaderLine )
+        {
+            // the date header line changes once per second, concurrent encodings are equivalent
+            response = new BareResponse( lines[status.ordinal()],
+                                         dateHeaderLine,
+                                         keepAlive ? KEEP_ALIVE_HEADERS : CLOSING_HEADERS );
+            responses.set( status.ordinal(), response );
+        }
+        return response.content.duplicate();
+    }
+
+    private static byte[][] encodeStatusLines( String protocolVersion )
+    {
+        Status[] statuses = Status.values();
+        byte[][] lines = new byte[statuses.length][];
+        for ( Status status : statuses )
+        {
+            lines[status.ordinal()] = ascii( HTTP + '/' + protocolVersion + ' ' + status.getStatusCode() + ' '
+                                             + status.getStatusText() + "\r\n" );
+        }
+        return lines;
+    }
+
+    private static byte[] ascii( String value )
+    {
+        byte[] encoded = new byte[value.length()];
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            encoded[i] = (byte) value.charAt( i );
+        }
+        return encoded;
+    }
+
+    /**
+     * A bare response encoded with the date it has been served first.
+     */
+    private static final class BareResponse
+    {
+
+        private final byte[] dateHeaderLine;
+
+        private final ByteBuffer content;
+
+        public BareResponse( byte[] statusLine, byte[] dateHeaderLine, byte[] headers )
+        {
+            this.dateHeaderLine = dateHeaderLine;
+
+            ByteBuffer encoded = ByteBuffer.allocate( statusLine.length + dateHeaderLine.length + headers.length );
+            encoded.put( statusLine ).put( dateHeaderLine ).put( headers ).flip();
+            this.content = encoded.asReadOnlyBuffer();
+        }
+
+    }
+
+    /**
+     * HTTP/1.1 status lines and bare responses, created when the class is first accessed.
+     */
+    private static final class Http11Templates
+    {
+
+        private static final byte[][] LINES = encodeStatusLines( HTTP_11 );
+
+        private static final AtomicReferenceArray<BareResponse> CLOSING =
+            new AtomicReferenceArray<BareResponse>( LINES.length );
+
+        private static final AtomicReferenceArray<BareResponse> KEEPING_ALIVE =
+            new AtomicReferenceArray<BareResponse>( LINES.length );
+
+    }
+
+    /**
+     * HTTP/1.0 status lines and bare responses, created when the class is first accessed.
+     */
+    private static final class Http10Templates
+    {
+
+        private static final byte[][] LINES = encodeStatusLines( HTTP_10 );
+
+        private static final AtomicReferenceArray<BareResponse> CLOSING =
+            new AtomicReferenceArray<BareResponse>( LINES.length );
+
+        private static final AtomicReferenceArray<BareResponse> KEEPING_ALIVE =
+            new AtomicReferenceArray<BareResponse>( LINES.length );
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.ByteBuffer.allocateDirect;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * A bounded pool of reusable direct {@link ByteBuffer}s of fixed size.
+ *
+ * Buffers are lazily allocated when the pool is empty; released buffers exceeding
+ * the pool capacity are just discarded.
+ *
+ * This class is not thread-safe, it is meant to be owned by a single thread.
+ */
+public final class ByteBufferPool
+{
+
+    private final Queue<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+
+    private final int bufferSize;
+
+    private final int capacity;
+
+    /**
+     * Creates a new pool instance.
+     *
+     * @param bufferSize the size, in bytes, of the pooled buffers
+     * @param capacity the maximum number of buffers kept in the pool
+     */
+    public ByteBufferPool( int bufferSize, int capacity )
+    {
+        checkArgument( bufferSize > 0, "Buffer size must be a positive integer" );
+        checkArgument( capacity > 0, "Pool capacity must be a positive integer" );
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Borrows a cleared buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * @return a cleared buffer
+     */
+    public ByteBuffer borrow()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if ( buffer == null )
+        {
+            buffer = allocateDirect( bufferSize );
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives back a previously borrowed buffer to the pool.
+     *
+     * @param buffer the buffer has to be released
+     */
+    public void release( ByteBuffer buffer )
+    {
+        checkArgument( buffer != null, "Null buffer cannot be released" );
+        checkArgument( buffer.capacity() == bufferSize, "Buffer of %s bytes doesn't belong to this pool", buffer.capacity() );
+
+        if ( buffers.size() < capacity )
+        {
+            buffer.clear();
+            buffers.offer( buffer );
+        }
+    }
+
+    /**
+     * Returns the size, in bytes, of the pooled buffers.
+     *
+     * @return the size, in bytes, of the pooled buffers.
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+}
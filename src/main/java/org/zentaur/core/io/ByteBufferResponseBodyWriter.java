@@ -0,0 +1,141 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Generates a body response from an already encoded {@link ByteBuffer}, that is shared across responses:
+ * its content is never modified, each response writes its own view.
+ */
+public final class ByteBufferResponseBodyWriter
+    implements RangeableResponseBodyWriter
+{
+
+    private final ByteBuffer content;
+
+    private final String contentType;
+
+    private final String entityTag;
+
+    private final long lastModified;
+
+    /**
+     * Creates a new ResponseBodyWriter given the bytes have to be sent as body response.
+     *
+     * @param content the bytes have to be sent as body response, from its position to its limit.
+     * @param contentType the body content type, can be null.
+     */
+    public ByteBufferResponseBodyWriter( ByteBuffer content, String contentType )
+    {
+        this( content, contentType, null, -1 );
+    }
+
+    /**
+     * Creates a new ResponseBodyWriter given the bytes have to be sent as body response and their validators.
+     *
+     * @param content the bytes have to be sent as body response, from its position to its limit.
+     * @param contentType the body content type, can be null.
+     * @param entityTag the quoted strong entity tag of the body, can be null.
+     * @param lastModified the time the body was last modified, -1 if not available.
+     */
+    public ByteBufferResponseBodyWriter( ByteBuffer content, String contentType, String entityTag, long lastModified )
+    {
+        checkArgument( content != null, "Null content not allowed." );
+        this.content = content.asReadOnlyBuffer();
+        this.contentType = contentType;
+        this.entityTag = entityTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns a new read-only view of the body bytes.
+     *
+     * @return a new read-only view of the body bytes.
+     */
+    public ByteBuffer getContent()
+    {
+        return content.duplicate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String contentType()
+    {
+        return contentType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEntityTag()
+    {
+        return entityTag;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLength()
+    {
+        return content.remaining();
+    }
+
+    /**
+     * Creates the body response that sends slices of the shared bytes, without copying them.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteRangesResponseBodyWriter getRanges( List<ByteRange> ranges, long completeLength )
+    {
+        return new ByteRangesResponseBodyWriter( getContent(), contentType, ranges, completeLength );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( WritableByteChannel target )
+        throws IOException
+    {
+        ByteBuffer view = getContent();
+        while ( view.hasRemaining() )
+        {
+            target.write( view );
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.Long.parseLong;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of a body, as requested via the {@code Range} header.
+ */
+public final class ByteRange
+{
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Requests with more ranges are served entirely, too many ranges are more expensive than the whole body.
+     */
+    private static final int MAX_RANGES = 16;
+
+    private final long first;
+
+    private final long last;
+
+    /**
+     * Creates a new byte range.
+     *
+     * @param first the position of the first byte of the range
+     * @param last the position of the last byte of the range, inclusive
+     */
+    public ByteRange( long first, long last )
+    {
+        checkArgument( first >= 0, "Negative range first byte position not allowed." );
+        checkArgument( last >= first, "Range last byte position cannot precede the first one." );
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst()
+    {
+        return first;
+    }
+
+    public long getLast()
+    {
+        return last;
+    }
+
+    /**
+     * Returns the number of the range bytes.
+     *
+     * @return the number of the range bytes.
+     */
+    public long getLength()
+    {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the {@code Content-Range} header value of this range.
+     *
+     * @param completeLength the size of the whole body
+     * @return the {@code Content-Range} header value of this range.
+     */
+    public String toContentRange( long completeLength )
+    {
+        return "bytes " + first + '-' + last + '/' + completeLength;
+    }
+
+    /**
+     * Parses the {@code Range} header value, resolving the requested ranges against the body size.
+     *
+     * @param value the {@code Range} header value, i.e. {@code bytes=0-499,-500}
+     * @param completeLength the size of the whole body
+     * @return the satisfiable ranges, empty if none is satisfiable, null if the value is not valid
+     *         and has to be ignored.
+     */
+    public static List<ByteRange> parse( String value, long completeLength )
+    {
+        if ( value == null || !value.regionMatches( true, 0, BYTES_UNIT, 0, BYTES_UNIT.length() ) )
+        {
+            return null;
+        }
+
+        String[] specs = value.substring( BYTES_UNIT.length() ).split( "," );
+        if ( specs.length > MAX_RANGES )
+        {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<ByteRange>( specs.length );
+
+        try
+        {
+            for ( String spec : specs )
+            {
+                spec = spec.trim();
+                int separator = spec.indexOf( '-' );
+                if ( separator < 0 )
+                {
+                    return null;
+                }
+
+                String first = spec.substring( 0, separator ).trim();
+                String last = spec.substring( separator + 1 ).trim();
+
+                if ( first.isEmpty() )
+                {
+                    // suffix range, the last N bytes
+                    long suffixLength = parseLong( last );
+                    if ( suffixLength < 0 )
+                    {
+                        return null;
+                    }
+                    if ( suffixLength > 0 && completeLength > 0 )
+                    {
+                        ranges.add( new ByteRange( Math.max( 0, completeLength - suffixLength ), completeLength - 1 ) );
+                    }
+                    continue;
+                }
+
+                long firstPosition = parseLong( first );
+                long lastPosition = last.isEmpty() ? completeLength - 1 : parseLong( last );
+                if ( firstPosition < 0 || lastPosition < firstPosition && !last.isEmpty() )
+                {
+                    return null;
+                }
+
+                if ( firstPosition < completeLength )
+                {
+                    ranges.add( new ByteRange( firstPosition, Math.min( lastPosition, completeLength - 1 ) ) );
+                }
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+
+        return ranges;
+    }
+
+}
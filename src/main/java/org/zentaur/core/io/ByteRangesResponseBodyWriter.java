@@ -0,0 +1,311 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+import static org.zentaur.core.io.IOUtils.utf8ByteBuffer;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.zentaur.io.ResponseBodyWriter;
+
+/**
+ * Generates a {@code 206 Partial Content} body response from ranges of a {@link File}, or of already encoded bytes:
+ * a single range is sent as it is, more ranges are sent as a {@code multipart/byteranges} body.
+ */
+public final class ByteRangesResponseBodyWriter
+    implements ResponseBodyWriter
+{
+
+    private static final String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+
+    /**
+     * The file the ranges belong to, null when they belong to the content.
+     */
+    private final File file;
+
+    /**
+     * The bytes the ranges belong to, null when they belong to the file.
+     */
+    private final ByteBuffer content;
+
+    private final String contentType;
+
+    private final List<ByteRange> ranges;
+
+    /**
+     * The head of each part, when there are more ranges.
+     */
+    private final List<ByteBuffer> partHeads = new ArrayList<ByteBuffer>();
+
+    private final ByteBuffer closeDelimiter;
+
+    private final String boundary;
+
+    /**
+     * Creates a new ResponseBodyWriter given the file and its ranges have to be sent as body response.
+     *
+     * @param file the file the ranges belong to
+     * @param contentType the file content type, can be null.
+     * @param ranges the satisfiable ranges have to be sent, in the requested order
+     * @param completeLength the file size the ranges have been resolved against
+     */
+    public ByteRangesResponseBodyWriter( File file, String contentType, List<ByteRange> ranges, long completeLength )
+    {
+        this( file, null, contentType, ranges, completeLength );
+        checkArgument( file != null, "Null file not allowed." );
+    }
+
+    /**
+     * Creates a new ResponseBodyWriter given the bytes and their ranges have to be sent as body response.
+     *
+     * @param content the bytes the ranges belong to, from its position to its limit, never modified.
+     * @param contentType the content type, can be null.
+     * @param ranges the satisfiable ranges have to be sent, in the requested order
+     * @param completeLength the content size the ranges have been resolved against
+     */
+    public ByteRangesResponseBodyWriter( ByteBuffer content,
+                                         String contentType,
+                                         List<ByteRange> ranges,
+                                         long completeLength )
+    {
+        this( null, content, contentType, ranges, completeLength );
+        checkArgument( content != null, "Null content not allowed." );
+        checkArgument( completeLength == content.remaining(), "Ranges must be resolved against the content size." );
+    }
+
+    private ByteRangesResponseBodyWriter( File file,
+                                          ByteBuffer content,
+                                          String contentType,
+                                          List<ByteRange> ranges,
+                                          long completeLength )
+    {
+        checkArgument( ranges != null && !ranges.isEmpty(), "At least one range has to be sent." );
+        this.file = file;
+        this.content = content;
+        this.contentType = contentType;
+        this.ranges = ranges;
+
+        if ( !isMultipart() )
+        {
+            boundary = null;
+            closeDelimiter = null;
+            return;
+        }
+
+        boundary = Long.toHexString( ThreadLocalRandom.current().nextLong() );
+
+        for ( ByteRange range : ranges )
+        {
+            StringBuilder partHead = new StringBuilder( "\r\n--" ).append( boundary ).append( "\r\n" );
+            if ( contentType != null )
+            {
+                partHead.append( "Content-Type: " ).append( contentType ).append( "\r\n" );
+            }
+            partHead.append( "Content-Range: " ).append( range.toContentRange( completeLength ) ).append( "\r\n\r\n" );
+
+            partHeads.add( utf8ByteBuffer( partHead.toString() ).asReadOnlyBuffer() );
+        }
+
+        closeDelimiter = utf8ByteBuffer( "\r\n--" + boundary + "--\r\n" ).asReadOnlyBuffer();
+    }
+
+    /**
+     * Flag to mark more ranges are sent as a {@code multipart/byteranges} body.
+     *
+     * @return true if more ranges are sent as a {@code multipart/byteranges} body, false otherwise.
+     */
+    public boolean isMultipart()
+    {
+        return ranges.size() > 1;
+    }
+
+    public List<ByteRange> getRanges()
+    {
+        return ranges;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String contentType()
+    {
+        return isMultipart() ? MULTIPART_BYTERANGES + boundary : contentType;
+    }
+
+    /**
+     * Returns the body size, including the parts delimiters and heads.
+     *
+     * @return the body size, including the parts delimiters and heads.
+     */
+    public long getContentLength()
+    {
+        long contentLength = isMultipart() ? closeDelimiter.remaining() : 0;
+        for ( int i = 0; i < ranges.size(); i++ )
+        {
+            contentLength += ranges.get( i ).getLength();
+            if ( isMultipart() )
+            {
+                contentLength += partHeads.get( i ).remaining();
+            }
+        }
+        return contentLength;
+    }
+
+    /**
+     * Returns the head of the part the i-th range belongs to.
+     *
+     * @param i the range index
+     * @return the head of the part the i-th range belongs to.
+     */
+    public ByteBuffer getPartHead( int i )
+    {
+        return partHeads.get( i ).duplicate();
+    }
+
+    /**
+     * Returns the delimiter that closes the multipart body.
+     *
+     * @return the delimiter that closes the multipart body.
+     */
+    public ByteBuffer getCloseDelimiter()
+    {
+        return closeDelimiter.duplicate();
+    }
+
+    /**
+     * Flag to mark the ranges belong to a file, they have to be sent via {@link #openRegion(int)},
+     * otherwise via {@link #getRangeContent(int)}.
+     *
+     * @return true if the ranges belong to a file, false if they belong to already encoded bytes.
+     */
+    public boolean isFileBacked()
+    {
+        return file != null;
+    }
+
+    /**
+     * Opens the region of the i-th range, to be transferred directly to the connection.
+     *
+     * @param i the range index
+     * @return the region of the i-th range
+     * @throws IOException if the file cannot be opened
+     */
+    public FileRegion openRegion( int i )
+        throws IOException
+    {
+        checkArgument( isFileBacked(), "Ranges don't belong to a file." );
+        ByteRange range = ranges.get( i );
+        return new FileRegion( new FileInputStream( file ).getChannel(), range.getFirst(), range.getLength() );
+    }
+
+    /**
+     * Returns a read-only view of the bytes of the i-th range, sharing the content.
+     *
+     * @param i the range index
+     * @return a read-only view of the bytes of the i-th range
+     */
+    public ByteBuffer getRangeContent( int i )
+    {
+        checkArgument( !isFileBacked(), "Ranges belong to a file." );
+        ByteRange range = ranges.get( i );
+        ByteBuffer view = content.asReadOnlyBuffer();
+        view.position( view.position() + (int) range.getFirst() );
+        view.limit( view.position() + (int) range.getLength() );
+        return view.slice();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write( WritableByteChannel target )
+        throws IOException
+    {
+        if ( !isFileBacked() )
+        {
+            for ( int i = 0; i < ranges.size(); i++ )
+            {
+                if ( isMultipart() )
+                {
+                    writeFully( getPartHead( i ), target );
+                }
+                writeFully( getRangeContent( i ), target );
+            }
+
+            if ( isMultipart() )
+            {
+                writeFully( getCloseDelimiter(), target );
+            }
+            return;
+        }
+
+        FileChannel channel = new FileInputStream( file ).getChannel();
+        try
+        {
+            for ( int i = 0; i < ranges.size(); i++ )
+            {
+                if ( isMultipart() )
+                {
+                    writeFully( getPartHead( i ), target );
+                }
+
+                ByteRange range = ranges.get( i );
+                long position = range.getFirst();
+                long end = range.getLast() + 1;
+                while ( position < end )
+                {
+                    long transferred = channel.transferTo( position, end - position, target );
+                    if ( transferred == 0 && position >= channel.size() )
+                    {
+                        throw new IOException( "File " + file + " has been truncated while sending its ranges" );
+                    }
+                    position += transferred;
+                }
+            }
+
+            if ( isMultipart() )
+            {
+                writeFully( getCloseDelimiter(), target );
+            }
+        }
+        finally
+        {
+            closeQuietly( channel );
+        }
+    }
+
+    private static void writeFully( ByteBuffer buffer, WritableByteChannel target )
+        throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            target.write( buffer );
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import org.zentaur.io.ResponseBodyWriter;
+
+/**
+ * {@link ResponseBodyWriter} whose body can be validated by clients that already hold a copy of it,
+ * via the {@code If-None-Match} and {@code If-Modified-Since} conditional request headers.
+ */
+public interface CacheableResponseBodyWriter
+    extends ResponseBodyWriter
+{
+
+    /**
+     * Returns the strong entity tag of the current body version, quoted as sent in the {@code ETag} header.
+     *
+     * @return the strong entity tag of the current body version, null if not available.
+     */
+    String getEntityTag();
+
+    /**
+     * Returns the time the body was last modified, in milliseconds since the epoch.
+     *
+     * @return the time the body was last modified, -1 if not available.
+     */
+    long getLastModified();
+
+}
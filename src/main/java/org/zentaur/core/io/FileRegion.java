@@ -0,0 +1,108 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A region of a file pending to be written to a connection, transferred directly from the file
+ * to the socket, without copying its bytes in the Java heap.
+ *
+ * The region owns the file channel, that is closed once the region has been transferred or discarded.
+ */
+public final class FileRegion
+{
+
+    /**
+     * The buffer that takes the region place in the outbound buffers queue.
+     */
+    private final ByteBuffer marker = ByteBuffer.allocate( 0 );
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private long position;
+
+    /**
+     * Creates a new file region.
+     *
+     * @param channel the channel of the file the region belongs to
+     * @param position the position of the first region byte in the file
+     * @param count the number of the region bytes
+     */
+    public FileRegion( FileChannel channel, long position, long count )
+    {
+        checkArgument( channel != null, "Null FileChannel not allowed." );
+        checkArgument( position >= 0, "Negative region position not allowed." );
+        checkArgument( count >= 0, "Negative region size not allowed." );
+        this.channel = channel;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * Returns the number of bytes not yet transferred.
+     *
+     * @return the number of bytes not yet transferred.
+     */
+    public long getRemaining()
+    {
+        return end - position;
+    }
+
+    ByteBuffer getMarker()
+    {
+        return marker;
+    }
+
+    /**
+     * Transfers as many region bytes as the target channel accepts.
+     *
+     * @param target the channel where the region has to be transferred to
+     * @return the number of transferred bytes, 0 if the target channel doesn't accept more bytes.
+     * @throws IOException if any error occurs while transferring or the file has been truncated
+     */
+    long transferTo( WritableByteChannel target )
+        throws IOException
+    {
+        long transferred = channel.transferTo( position, end - position, target );
+        if ( transferred == 0 && position >= channel.size() )
+        {
+            // nothing will ever be transferred, it is not the target channel being full
+            throw new IOException( "File has been truncated at " + channel.size()
+                                   + " bytes while transferring its region up to " + end );
+        }
+        position += transferred;
+        return transferred;
+    }
+
+    /**
+     * Releases the file channel.
+     */
+    public void close()
+    {
+        closeQuietly( channel );
+    }
+
+}
@@ -16,6 +16,7 @@ package org.zentaur.core.io;
  *   limitations under the License.
  */
 
+import static java.lang.Long.toHexString;
 import static org.zentaur.core.io.IOUtils.closeQuietly;
 
 import java.io.File;
@@ -24,15 +25,14 @@ import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import org.zentaur.io.ResponseBodyWriter;
-
 /**
  * Generates a body response from a {@link File}.
  */
 public final class FileResponseBodyWriter
-    implements ResponseBodyWriter
+    implements RangeableResponseBodyWriter
 {
 
     /**
@@ -213,7 +213,28 @@ public final class FileResponseBodyWriter
     private final File toBeTransfered;
 
     /**
-     * Creates a new ResponseBodyWriter given the file has to be transferred to the body response.
+     * The entity tag of the file version being transferred, computed once.
+     */
+    private String entityTag;
+
+    /**
+     * Flag to mark the file size and last modification time have been read.
+     */
+    private boolean stated;
+
+    /**
+     * The size of the file version being transferred, -1 if the file cannot be stat'ed.
+     */
+    private long length = -1;
+
+    /**
+     * The last modification time of the file version being transferred, -1 if the file cannot be stat'ed.
+     */
+    private long lastModified = -1;
+
+    /**
+     * Creates a new ResponseBodyWriter given the file has to be transferred to the body response,
+     * its size and last modification time are read once, when needed.
      *
      * @param toBeTransfered the file has to be transferred to the body response.
      */
@@ -222,17 +243,167 @@ public final class FileResponseBodyWriter
         this.toBeTransfered = toBeTransfered;
     }
 
+    /**
+     * Creates a new ResponseBodyWriter given the file has to be transferred to the body response,
+     * together with its size and last modification time, read when the file was opened.
+     *
+     * @param toBeTransfered the file has to be transferred to the body response.
+     * @param length the file size
+     * @param lastModified the file last modification time, -1 if not available.
+     */
+    public FileResponseBodyWriter( File toBeTransfered, long length, long lastModified )
+    {
+        this.toBeTransfered = toBeTransfered;
+        this.length = length;
+        this.lastModified = lastModified;
+        stated = true;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public String contentType()
     {
-        int extensionSeparator = toBeTransfered.getName().lastIndexOf( '.' );
-        String extension = toBeTransfered.getName().substring( ++extensionSeparator );
+        return getContentType( toBeTransfered.getName() );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEntityTag()
+    {
+        if ( entityTag == null )
+        {
+            stat();
+            entityTag = getEntityTag( lastModified, length );
+        }
+        return entityTag;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified()
+    {
+        stat();
+        return lastModified;
+    }
+
+    /**
+     * Returns the size of the file has to be transferred.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLength()
+    {
+        stat();
+        return length;
+    }
+
+    /**
+     * Reads the file size and last modification time once, together with opening the file,
+     * so the validators and the transferred bytes refer to the same file version.
+     */
+    private void stat()
+    {
+        if ( stated )
+        {
+            return;
+        }
+        stated = true;
+
+        try
+        {
+            FileChannel channel = new FileInputStream( toBeTransfered ).getChannel();
+            try
+            {
+                length = channel.size();
+                lastModified = getLastModified( toBeTransfered );
+            }
+            finally
+            {
+                closeQuietly( channel );
+            }
+        }
+        catch ( IOException e )
+        {
+            // the file cannot be stat'ed, its validators are not available and opening it will fail
+        }
+    }
+
+    /**
+     * Creates the body response that transfers the input ranges of the file only.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteRangesResponseBodyWriter getRanges( List<ByteRange> ranges, long completeLength )
+    {
+        return new ByteRangesResponseBodyWriter( toBeTransfered, contentType(), ranges, completeLength );
+    }
+
+    /**
+     * Returns the strong entity tag of a file version, identified by its last modification time and size.
+     *
+     * @param lastModified the file last modification time, -1 if not available.
+     * @param length the file size
+     * @return the quoted strong entity tag of the file version, null if the last modification time is not available.
+     */
+    public static String getEntityTag( long lastModified, long length )
+    {
+        if ( lastModified < 0 )
+        {
+            return null;
+        }
+        return '"' + toHexString( lastModified ) + '-' + toHexString( length ) + '"';
+    }
+
+    /**
+     * Returns the last modification time of the input file, {@link File#lastModified()} returns 0
+     * when the file doesn't exist or an I/O error occurs, that is not a valid validator.
+     *
+     * @param file the file
+     * @return the last modification time of the input file, -1 if not available.
+     */
+    public static long getLastModified( File file )
+    {
+        long lastModified = file.lastModified();
+        return lastModified > 0 ? lastModified : -1;
+    }
+
+    /**
+     * Returns the content type of the input file name, based on its extension.
+     *
+     * @param fileName the file name
+     * @return the content type of the input file name, null if the extension is unknown.
+     */
+    public static String getContentType( String fileName )
+    {
+        int extensionSeparator = fileName.lastIndexOf( '.' );
+        String extension = fileName.substring( ++extensionSeparator );
         return CONTENT_TYPES.get( extension );
     }
 
+    /**
+     * Opens the region of the whole file, to be transferred directly to the connection.
+     *
+     * The region is as large as the file was when stat'ed, as advertised by its validators.
+     *
+     * @return the region of the whole file
+     * @throws IOException if the file cannot be opened
+     */
+    public FileRegion openRegion()
+        throws IOException
+    {
+        stat();
+        FileChannel channel = new FileInputStream( toBeTransfered ).getChannel();
+        return new FileRegion( channel, 0, length >= 0 ? length : channel.size() );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -240,10 +411,11 @@ public final class FileResponseBodyWriter
     public void write( WritableByteChannel target )
         throws IOException
     {
+        stat();
         FileChannel channel = new FileInputStream( toBeTransfered ).getChannel();
         try
         {
-            channel.transferTo( 0, toBeTransfered.length(), target );
+            channel.transferTo( 0, length >= 0 ? length : channel.size(), target );
         }
         finally
         {
@@ -0,0 +1,508 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.Arrays.fill;
+import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
+import static org.zentaur.lang.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of the buffers pending to be written to a connection, that takes the count of the pending bytes.
+ *
+ * When pending bytes exceed the high watermark the connection is marked as not writable, producers
+ * should stop enqueuing buffers until the pending bytes drop below the low watermark.
+ *
+ * Buffers are enqueued by the response producers threads and written by the reactor thread only;
+ * the producers never touch the connection key, its interest operations are changed by the reactor thread
+ * executing the tasks submitted to it.
+ *
+ * {@link FileRegion}s can be enqueued between the buffers, they are transferred directly from the file
+ * to the connection and don't count as pending bytes, since they don't take any room in the heap.
+ *
+ * {@link PooledBuffer}s are given back to their pool as soon as they have been written, or discarded.
+ */
+public final class OutboundBuffers
+    extends AbstractQueue<ByteBuffer>
+{
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final Queue<FileRegion> regions = new ConcurrentLinkedQueue<FileRegion>();
+
+    private final Queue<PooledBuffer> pooledBuffers = new ConcurrentLinkedQueue<PooledBuffer>();
+
+    private final AtomicLong pendingBytes = new AtomicLong( 0 );
+
+    private final AtomicBoolean writingSuspended = new AtomicBoolean( false );
+
+    private final ReentrantLock writabilityLock = new ReentrantLock();
+
+    private final Condition becameWritable = writabilityLock.newCondition();
+
+    private final SelectionKey key;
+
+    private final Executor keyOwner;
+
+    private final long lowWatermark;
+
+    private final long highWatermark;
+
+    private volatile boolean writable = true;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new outbound buffers queue.
+     *
+     * @param key the selection key that currently holds the client/server connection.
+     * @param keyOwner the executor of the thread that owns the selection key, where interest changes are applied
+     * @param lowWatermark the pending bytes threshold below which the connection becomes writable again
+     * @param highWatermark the pending bytes threshold above which the connection is not writable
+     */
+    public OutboundBuffers( SelectionKey key, Executor keyOwner, long lowWatermark, long highWatermark )
+    {
+        checkArgument( key != null, "Null SelectionKey not allowed." );
+        checkArgument( keyOwner != null, "Null key owner Executor not allowed." );
+        checkArgument( lowWatermark >= 0, "Negative low watermark not allowed." );
+        checkArgument( highWatermark >= lowWatermark, "High watermark must not be less than low watermark." );
+        this.key = key;
+        this.keyOwner = keyOwner;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean offer( ByteBuffer buffer )
+    {
+        checkArgument( buffer != null, "Null buffer cannot be written." );
+
+        buffers.offer( buffer );
+
+        if ( writingSuspended.compareAndSet( true, false ) )
+        {
+            requestWriting();
+        }
+
+        if ( pendingBytes.addAndGet( buffer.remaining() ) > highWatermark && writable )
+        {
+            writable = false;
+
+            // the reactor could have drained the buffers in the meanwhile
+            if ( pendingBytes.get() < lowWatermark )
+            {
+                signalWritable();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Enqueues a file region, after the buffers already enqueued.
+     *
+     * @param region the file region has to be written
+     * @return true
+     */
+    public boolean offer( FileRegion region )
+    {
+        checkArgument( region != null, "Null region cannot be written." );
+
+        // the region has to be enqueued first, the reactor recognizes its marker looking at the regions head
+        regions.offer( region );
+        offer( region.getMarker() );
+
+        if ( closed )
+        {
+            // the connection has been closed in the meanwhile
+            releaseRegions();
+        }
+
+        return true;
+    }
+
+    /**
+     * Enqueues a pooled buffer, it is released once written.
+     *
+     * @param pooledBuffer the pooled buffer has to be written
+     * @return true
+     */
+    public boolean offer( PooledBuffer pooledBuffer )
+    {
+        checkArgument( pooledBuffer != null, "Null buffer cannot be written." );
+
+        ByteBuffer buffer = pooledBuffer.getBuffer();
+
+        // the pooled buffer has to be enqueued first, the reactor recognizes it looking at the pooled buffers head
+        pooledBuffers.offer( pooledBuffer );
+        offer( buffer );
+
+        if ( closed )
+        {
+            // the connection has been closed in the meanwhile
+            releasePooledBuffers();
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer poll()
+    {
+        return buffers.poll();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer peek()
+    {
+        return buffers.peek();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator()
+    {
+        return buffers.iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return buffers.size();
+    }
+
+    /**
+     * Returns the number of bytes enqueued but not yet written.
+     *
+     * @return the number of bytes enqueued but not yet written.
+     */
+    public long getPendingBytes()
+    {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Returns the pending bytes threshold above which the connection is not writable.
+     *
+     * @return the pending bytes threshold above which the connection is not writable.
+     */
+    public long getHighWatermark()
+    {
+        return highWatermark;
+    }
+
+    /**
+     * Verifies the connection can accept more bytes, i.e. pending bytes didn't exceed the high watermark
+     * or dropped below the low watermark since then.
+     *
+     * @return true if the connection can accept more bytes, false otherwise.
+     */
+    public boolean isWritable()
+    {
+        return writable;
+    }
+
+    /**
+     * Blocks the current thread until the connection is writable.
+     *
+     * @throws IOException if the connection has been closed or the current thread has been interrupted while waiting
+     */
+    public void awaitWritable()
+        throws IOException
+    {
+        if ( writable )
+        {
+            return;
+        }
+
+        writabilityLock.lock();
+        try
+        {
+            while ( !writable && !closed )
+            {
+                becameWritable.await();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting the connection becomes writable" );
+        }
+        finally
+        {
+            writabilityLock.unlock();
+        }
+
+        if ( closed )
+        {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Notifies the connection owner that enqueued buffers are ready to be written.
+     */
+    public void startWriting()
+    {
+        requestWriting();
+    }
+
+    /**
+     * Removes the write interest while there are no buffers to be written,
+     * it is restored as soon as the producer enqueues new buffers.
+     *
+     * This method has to be invoked by the thread that owns the connection key.
+     */
+    public void suspendWriting()
+    {
+        setWriteInterest( false );
+        writingSuspended.set( true );
+
+        // the producer could have enqueued buffers in the meanwhile
+        if ( !buffers.isEmpty() && writingSuspended.compareAndSet( true, false ) )
+        {
+            setWriteInterest( true );
+        }
+    }
+
+    /**
+     * Writes as many enqueued buffers as the channel accepts, gathering them in vectored writes.
+     *
+     * Fully written buffers are removed from the queue, the partially written one is left at the head
+     * of the queue, so the next write will restart from its current position.
+     *
+     * @param channel the channel where buffers have to be written to
+     * @param gatheringBuffers the array used to gather the buffers, it is cleared once buffers have been written
+     * @return true if the whole response has been written, i.e. the {@code EOM} has been reached, false otherwise
+     * @throws IOException if any error occurs while writing
+     */
+    public boolean writeTo( GatheringByteChannel channel, ByteBuffer[] gatheringBuffers )
+        throws IOException
+    {
+        while ( true )
+        {
+            int gathered = 0;
+            for ( ByteBuffer buffer : buffers )
+            {
+                if ( EOM == buffer || isRegionMarker( buffer ) || gathered == gatheringBuffers.length )
+                {
+                    break;
+                }
+                gatheringBuffers[gathered++] = buffer;
+            }
+
+            if ( gathered == 0 )
+            {
+                if ( EOM == buffers.peek() )
+                {
+                    buffers.poll();
+                    return true;
+                }
+
+                if ( isRegionMarker( buffers.peek() ) )
+                {
+                    if ( !transferRegion( channel ) )
+                    {
+                        // socket send buffer is full, wait for the next writable event
+                        return false;
+                    }
+                    continue;
+                }
+
+                // the response is still being produced
+                return false;
+            }
+
+            long writtenBytes;
+            try
+            {
+                writtenBytes = channel.write( gatheringBuffers, 0, gathered );
+            }
+            finally
+            {
+                // don't retain references to the written buffers
+                fill( gatheringBuffers, 0, gathered, null );
+            }
+
+            onWritten( writtenBytes );
+
+            int written = 0;
+            while ( written < gathered && !buffers.peek().hasRemaining() )
+            {
+                releaseIfPooled( buffers.poll() );
+                written++;
+            }
+
+            if ( written < gathered )
+            {
+                // socket send buffer is full, wait for the next writable event
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Releases the pending buffers and wakes up the producers waiting for the connection becomes writable.
+     */
+    public void close()
+    {
+        closed = true;
+        buffers.clear();
+        releaseRegions();
+        releasePooledBuffers();
+        pendingBytes.set( 0 );
+        signalWritable();
+    }
+
+    private boolean isRegionMarker( ByteBuffer buffer )
+    {
+        FileRegion region = regions.peek();
+        return region != null && region.getMarker() == buffer;
+    }
+
+    /**
+     * Transfers the region at the head of the queue.
+     *
+     * @param channel the channel where the region has to be transferred to
+     * @return true if the whole region has been transferred, false if the channel doesn't accept more bytes
+     * @throws IOException if any error occurs while transferring or the file has been truncated,
+     *         the connection has to be closed
+     */
+    private boolean transferRegion( GatheringByteChannel channel )
+        throws IOException
+    {
+        FileRegion region = regions.peek();
+
+        while ( region.getRemaining() > 0 )
+        {
+            if ( region.transferTo( channel ) == 0 )
+            {
+                return false;
+            }
+        }
+
+        region.close();
+        regions.poll();
+        buffers.poll();
+        return true;
+    }
+
+    private void releaseRegions()
+    {
+        FileRegion region;
+        while ( ( region = regions.poll() ) != null )
+        {
+            region.close();
+        }
+    }
+
+    private void releaseIfPooled( ByteBuffer buffer )
+    {
+        PooledBuffer pooledBuffer = pooledBuffers.peek();
+        if ( pooledBuffer != null && pooledBuffer.getBuffer() == buffer )
+        {
+            pooledBuffers.poll();
+            pooledBuffer.release();
+        }
+    }
+
+    private void releasePooledBuffers()
+    {
+        PooledBuffer pooledBuffer;
+        while ( ( pooledBuffer = pooledBuffers.poll() ) != null )
+        {
+            pooledBuffer.release();
+        }
+    }
+
+    private void onWritten( long writtenBytes )
+    {
+        if ( pendingBytes.addAndGet( -writtenBytes ) < lowWatermark && !writable )
+        {
+            signalWritable();
+        }
+    }
+
+    private void requestWriting()
+    {
+        keyOwner.execute( new Runnable()
+        {
+
+            public void run()
+            {
+                setWriteInterest( true );
+            }
+
+        } );
+    }
+
+    private void setWriteInterest( boolean enabled )
+    {
+        // the connection could have been closed before the key owner executed the request
+        if ( closed || !key.isValid() )
+        {
+            return;
+        }
+
+        key.interestOps( enabled ? key.interestOps() | OP_WRITE : key.interestOps() & ~OP_WRITE );
+    }
+
+    private void signalWritable()
+    {
+        writabilityLock.lock();
+        try
+        {
+            writable = true;
+            becameWritable.signalAll();
+        }
+        finally
+        {
+            writabilityLock.unlock();
+        }
+    }
+
+}
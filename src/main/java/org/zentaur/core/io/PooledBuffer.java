@@ -0,0 +1,40 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A buffer borrowed from a pool, pending to be written to a connection:
+ * it is given back to its pool once it has been written or discarded, so its bytes can be reused.
+ */
+public interface PooledBuffer
+{
+
+    /**
+     * Returns the buffer has to be written, the same instance until it is released.
+     *
+     * @return the buffer has to be written.
+     */
+    ByteBuffer getBuffer();
+
+    /**
+     * Gives back the buffer to its pool, it must not be used anymore.
+     */
+    void release();
+
+}
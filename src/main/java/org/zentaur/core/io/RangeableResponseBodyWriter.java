@@ -0,0 +1,45 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import java.util.List;
+
+/**
+ * {@link CacheableResponseBodyWriter} whose body size is known upfront, so clients can request
+ * ranges of it via the {@code Range} request header.
+ */
+public interface RangeableResponseBodyWriter
+    extends CacheableResponseBodyWriter
+{
+
+    /**
+     * Returns the body size, in bytes.
+     *
+     * @return the body size, in bytes, -1 if not available.
+     */
+    long getLength();
+
+    /**
+     * Creates the body response that sends the input ranges of the body only.
+     *
+     * @param ranges the satisfiable ranges of the body
+     * @param completeLength the body size the ranges have been resolved against
+     * @return the body response that sends the input ranges of the body only.
+     */
+    ByteRangesResponseBodyWriter getRanges( List<ByteRange> ranges, long completeLength );
+
+}
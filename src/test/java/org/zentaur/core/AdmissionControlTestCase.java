@@ -0,0 +1,209 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.channels.SelectionKey.OP_ACCEPT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.core.io.IOUtils.closeQuietly;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zentaur.core.http.CoarseClock;
+
+public final class AdmissionControlTestCase
+{
+
+    private final List<Closeable> opened = new ArrayList<Closeable>();
+
+    private final CoarseClock clock = new CoarseClock();
+
+    private ServerSocketChannel server;
+
+    @Before
+    public void bind()
+        throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.socket().bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        opened.add( server );
+    }
+
+    @After
+    public void close()
+    {
+        for ( Closeable closeable : opened )
+        {
+            closeQuietly( closeable );
+        }
+    }
+
+    @Test
+    public void connectionsAreAdmittedUpToTheLimit()
+        throws IOException
+    {
+        AdmissionControl admissionControl = new AdmissionControl( 2, Integer.MAX_VALUE, false, clock );
+
+        assertTrue( admissionControl.admit( connect() ) );
+        assertTrue( admissionControl.admit( connect() ) );
+        assertFalse( admissionControl.admit( connect() ) );
+
+        admissionControl.release( server.socket().getInetAddress() );
+
+        assertTrue( admissionControl.admit( connect() ) );
+    }
+
+    @Test
+    public void connectionsAreAdmittedUpToTheClientLimit()
+        throws IOException
+    {
+        AdmissionControl admissionControl = new AdmissionControl( 10, 1, false, clock );
+
+        SocketChannel first = connect();
+        assertTrue( admissionControl.admit( first ) );
+        assertFalse( admissionControl.admit( connect() ) );
+
+        admissionControl.release( first.socket().getInetAddress() );
+
+        assertTrue( admissionControl.admit( connect() ) );
+    }
+
+    @Test
+    public void rejectedConnectionsReceiveServiceUnavailable()
+        throws IOException
+    {
+        SocketChannel client = SocketChannel.open( server.socket().getLocalSocketAddress() );
+        opened.add( client );
+        client.write( ByteBuffer.wrap( "GET / HTTP/1.1\r\n\r\n".getBytes( "US-ASCII" ) ) );
+
+        new AdmissionControl( 0, Integer.MAX_VALUE, false, clock ).reject( accept() );
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate( 256 );
+        while ( client.read( buffer ) != -1 )
+        {
+            received.write( buffer.array(), 0, buffer.position() );
+            buffer.clear();
+        }
+
+        String response = received.toString( "US-ASCII" );
+        assertTrue( response, response.startsWith( "HTTP/1.1 503 Service Unavailable\r\n" ) );
+        assertTrue( response, response.contains( "\r\nDate: " + clock.getHttpDate() + "\r\n" ) );
+        assertTrue( response, response.contains( "\r\nConnection: close\r\n" ) );
+        assertTrue( response, response.endsWith( "\r\nContent-Length: 0\r\n\r\n" ) );
+    }
+
+    @Test
+    public void acceptingIsNotPausedWhenDisabled()
+        throws IOException
+    {
+        AdmissionControl admissionControl = new AdmissionControl( 1, Integer.MAX_VALUE, false, clock );
+        SelectionKey serverKey = register();
+
+        assertTrue( admissionControl.admit( connect() ) );
+
+        assertFalse( admissionControl.pauseAccepting( serverKey, new QueuedExecutor() ) );
+        assertEquals( OP_ACCEPT, serverKey.interestOps() );
+    }
+
+    @Test
+    public void acceptorIsResumedByItsOwnTask()
+        throws IOException
+    {
+        AdmissionControl admissionControl = new AdmissionControl( 1, Integer.MAX_VALUE, true, clock );
+        SelectionKey serverKey = register();
+        QueuedExecutor acceptor = new QueuedExecutor();
+
+        assertFalse( admissionControl.pauseAccepting( serverKey, acceptor ) );
+        assertTrue( admissionControl.admit( connect() ) );
+
+        assertTrue( admissionControl.pauseAccepting( serverKey, acceptor ) );
+        assertEquals( 0, serverKey.interestOps() );
+        assertTrue( acceptor.tasks.isEmpty() );
+
+        admissionControl.release( server.socket().getInetAddress() );
+
+        // the releasing thread doesn't touch the key, the acceptor does
+        assertEquals( 0, serverKey.interestOps() );
+        assertEquals( 1, acceptor.tasks.size() );
+
+        acceptor.tasks.poll().run();
+
+        assertEquals( OP_ACCEPT, serverKey.interestOps() );
+    }
+
+    private SelectionKey register()
+        throws IOException
+    {
+        Selector selector = Selector.open();
+        opened.add( selector );
+
+        server.configureBlocking( false );
+        return server.register( selector, OP_ACCEPT );
+    }
+
+    private SocketChannel connect()
+        throws IOException
+    {
+        opened.add( SocketChannel.open( server.socket().getLocalSocketAddress() ) );
+        return accept();
+    }
+
+    private SocketChannel accept()
+        throws IOException
+    {
+        SocketChannel accepted;
+        // the listening socket is non blocking once registered
+        while ( ( accepted = server.accept() ) == null )
+        {
+            Thread.yield();
+        }
+        opened.add( accepted );
+        return accepted;
+    }
+
+    private static final class QueuedExecutor
+        implements Executor
+    {
+
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        public void execute( Runnable task )
+        {
+            tasks.offer( task );
+        }
+
+    }
+
+}
@@ -0,0 +1,159 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.junit.Test;
+import org.zentaur.http.Request;
+import org.zentaur.http.Response;
+
+public final class AsyncRequestHandlerTestCase
+{
+
+    @Test
+    public void handleWaitsForTheCompletion()
+        throws Exception
+    {
+        CompletingHandler handler = new CompletingHandler( new DeferredResponse( 10, SECONDS ), null );
+
+        handler.handle( null, null );
+
+        assertTrue( handler.completed );
+        assertTrue( handler.deferredResponse.isDone() );
+    }
+
+    @Test
+    public void handleRethrowsTheFailure()
+        throws Exception
+    {
+        IOException failure = new IOException( "downstream service unavailable" );
+        CompletingHandler handler = new CompletingHandler( new DeferredResponse( 10, SECONDS ), failure );
+
+        try
+        {
+            handler.handle( null, null );
+            fail( "The failure must be propagated" );
+        }
+        catch ( IOException e )
+        {
+            assertSame( failure, e );
+        }
+    }
+
+    @Test
+    public void handleExpiresTheResponseAfterTheTimeout()
+        throws Exception
+    {
+        final DeferredResponse deferredResponse = new DeferredResponse( 50, MILLISECONDS );
+
+        try
+        {
+            new AsyncRequestHandler()
+            {
+
+                @Override
+                public DeferredResponse handleAsync( Request request, Response response )
+                {
+                    // never completed
+                    return deferredResponse;
+                }
+
+            }.handle( null, null );
+            fail( "The response has not been completed within the timeout" );
+        }
+        catch ( InterruptedIOException e )
+        {
+            assertTrue( deferredResponse.isExpired() );
+        }
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void nullDeferredResponsesAreRejected()
+        throws Exception
+    {
+        new AsyncRequestHandler()
+        {
+
+            @Override
+            public DeferredResponse handleAsync( Request request, Response response )
+            {
+                return null;
+            }
+
+        }.handle( null, null );
+    }
+
+    private static final class CompletingHandler
+        extends AsyncRequestHandler
+    {
+
+        private final DeferredResponse deferredResponse;
+
+        private final Throwable failure;
+
+        private volatile boolean completed;
+
+        public CompletingHandler( DeferredResponse deferredResponse, Throwable failure )
+        {
+            this.deferredResponse = deferredResponse;
+            this.failure = failure;
+        }
+
+        @Override
+        public DeferredResponse handleAsync( Request request, Response response )
+        {
+            new Thread( new Runnable()
+            {
+
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep( 50 );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    if ( failure != null )
+                    {
+                        deferredResponse.fail( failure );
+                    }
+                    else
+                    {
+                        completed = true;
+                        deferredResponse.complete();
+                    }
+                }
+
+            } ).start();
+
+            return deferredResponse;
+        }
+
+    }
+
+}
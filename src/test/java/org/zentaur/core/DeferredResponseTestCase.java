@@ -0,0 +1,89 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class DeferredResponseTestCase
+{
+
+    private final AtomicInteger notifications = new AtomicInteger( 0 );
+
+    private final Runnable listener = new Runnable()
+    {
+
+        public void run()
+        {
+            notifications.incrementAndGet();
+        }
+
+    };
+
+    private DeferredResponse deferredResponse;
+
+    @Before
+    public void setUp()
+    {
+        notifications.set( 0 );
+        deferredResponse = new DeferredResponse( 1, SECONDS );
+    }
+
+    @Test
+    public void listenerNotifiedOnCompletion()
+    {
+        deferredResponse.onCompletion( listener );
+        assertEquals( 0, notifications.get() );
+
+        assertTrue( deferredResponse.complete() );
+        assertTrue( deferredResponse.isDone() );
+        assertEquals( 1, notifications.get() );
+    }
+
+    @Test
+    public void listenerNotifiedWhenAlreadyCompleted()
+    {
+        assertTrue( deferredResponse.complete() );
+
+        deferredResponse.onCompletion( listener );
+        assertEquals( 1, notifications.get() );
+    }
+
+    @Test
+    public void completedOnlyOnce()
+    {
+        deferredResponse.onCompletion( listener );
+
+        IllegalStateException failure = new IllegalStateException();
+        assertTrue( deferredResponse.fail( failure ) );
+        assertFalse( deferredResponse.complete() );
+        assertFalse( deferredResponse.expire() );
+
+        assertSame( failure, deferredResponse.getFailure() );
+        assertFalse( deferredResponse.isExpired() );
+        assertEquals( 1, notifications.get() );
+    }
+
+}
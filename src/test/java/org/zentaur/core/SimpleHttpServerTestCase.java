@@ -0,0 +1,96 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.zentaur.HttpServer.Status.STOPPED;
+
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.nio.channels.Selector;
+
+import org.junit.Test;
+import org.zentaur.HttpServerConfiguration;
+import org.zentaur.HttpServerConfigurator;
+import org.zentaur.RunException;
+
+public final class SimpleHttpServerTestCase
+{
+
+    @Test
+    public void reactorsAreShutDownWhenListeningFails()
+        throws Exception
+    {
+        final int port = freePort();
+        SimpleHttpServer server = new SimpleHttpServer();
+
+        String threadName = Thread.currentThread().getName();
+        try
+        {
+            server.init( new HttpServerConfiguration()
+            {
+
+                public void configure( HttpServerConfigurator configurator )
+                {
+                    configurator.bindServerToHost( "127.0.0.1" );
+                    configurator.bindServerToPort( port );
+                    configurator.sessionsHaveMagAge( 60 );
+                    configurator.serveRequestsWithThreads( 2 );
+                    ( (SimpleHttpServerConfigurator) configurator ).handleConnectionsWithReactors( 2 );
+                }
+
+            } );
+
+            // the acceptor selector fails as soon as the server starts listening
+            Field selector = SimpleHttpServer.class.getDeclaredField( "selector" );
+            selector.setAccessible( true );
+            ( (Selector) selector.get( server ) ).close();
+
+            server.start();
+            fail( "Listening with a closed selector must fail" );
+        }
+        catch ( RunException e )
+        {
+            assertEquals( STOPPED, server.getStatus() );
+            for ( Thread thread : Thread.getAllStackTraces().keySet() )
+            {
+                assertFalse( thread.getName(), thread.getName().startsWith( "reactor-" ) && thread.isAlive() );
+            }
+        }
+        finally
+        {
+            Thread.currentThread().setName( threadName );
+        }
+    }
+
+    private static int freePort()
+        throws Exception
+    {
+        ServerSocket socket = new ServerSocket( 0 );
+        try
+        {
+            return socket.getLocalPort();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.channels.Channels.newChannel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.http.Request.Method.GET;
+import static org.zentaur.http.Response.Status.NOT_FOUND;
+import static org.zentaur.http.Response.Status.OK;
+import static org.zentaur.http.Response.Status.PARTIAL_CONTENT;
+import static org.zentaur.http.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.MutableRequest;
+import org.zentaur.core.http.ResponseFactory;
+import org.zentaur.core.io.ByteBufferResponseBodyWriter;
+import org.zentaur.core.io.ByteRangesResponseBodyWriter;
+import org.zentaur.core.io.FileResponseBodyWriter;
+import org.zentaur.http.Response;
+import org.zentaur.io.ResponseBodyWriter;
+
+public final class StaticFilesRequestHandlerTestCase
+{
+
+    private File directory;
+
+    private StaticFilesRequestHandler handler;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        directory = File.createTempFile( "static", "" );
+        directory.delete();
+        directory.mkdir();
+
+        // heap up to 64 bytes, 40 bytes at most, mapped up to 1024 bytes
+        handler = new StaticFilesRequestHandler( "/static/", directory, 40, 64, 1024 );
+    }
+
+    @After
+    public void tearDown()
+    {
+        handler.close();
+
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void smallFilesAreHeldInTheHeap()
+        throws IOException
+    {
+        write( "small.txt", 10 );
+
+        ResponseBodyWriter body = serve( "/static/small.txt" );
+
+        assertTrue( body instanceof ByteBufferResponseBodyWriter );
+        assertFalse( ( (ByteBufferResponseBodyWriter) body ).getContent().isDirect() );
+        assertSame( body, serve( "/static/small.txt" ) );
+        assertEquals( content( 10 ), read( body ) );
+    }
+
+    @Test
+    public void largeFilesAreMapped()
+        throws IOException
+    {
+        write( "large.txt", 100 );
+
+        ResponseBodyWriter body = serve( "/static/large.txt" );
+
+        assertTrue( body instanceof ByteBufferResponseBodyWriter );
+        assertTrue( ( (ByteBufferResponseBodyWriter) body ).getContent().isDirect() );
+        assertSame( body, serve( "/static/large.txt" ) );
+        assertEquals( content( 100 ), read( body ) );
+    }
+
+    @Test
+    public void filesTooLargeToBeMappedAreTransferred()
+        throws IOException
+    {
+        write( "huge.txt", 2000 );
+
+        ResponseBodyWriter body = serve( "/static/huge.txt" );
+
+        assertTrue( body instanceof FileResponseBodyWriter );
+        assertNotSame( body, serve( "/static/huge.txt" ) );
+        assertEquals( content( 2000 ), read( body ) );
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvicted()
+        throws IOException
+    {
+        write( "a.txt", 15 );
+        write( "b.txt", 15 );
+        write( "c.txt", 15 );
+
+        ResponseBodyWriter a = serve( "/static/a.txt" );
+        ResponseBodyWriter b = serve( "/static/b.txt" );
+        assertSame( a, serve( "/static/a.txt" ) );
+
+        // exceeds the 40 bytes, b is the least recently used
+        ResponseBodyWriter c = serve( "/static/c.txt" );
+
+        assertSame( a, serve( "/static/a.txt" ) );
+        assertSame( c, serve( "/static/c.txt" ) );
+        assertNotSame( b, serve( "/static/b.txt" ) );
+    }
+
+    @Test
+    public void leastRecentlyUsedMappedFilesAreEvicted()
+        throws IOException
+    {
+        handler.close();
+        // mapped up to 1000 bytes, 2500 bytes at most
+        handler = new StaticFilesRequestHandler( "/static/", directory, 40, 64, 1000, 2500 );
+
+        write( "a.txt", 1000 );
+        write( "b.txt", 1000 );
+        write( "c.txt", 1000 );
+        write( "small.txt", 10 );
+
+        ResponseBodyWriter small = serve( "/static/small.txt" );
+        ResponseBodyWriter a = serve( "/static/a.txt" );
+        ResponseBodyWriter b = serve( "/static/b.txt" );
+        assertSame( a, serve( "/static/a.txt" ) );
+
+        // exceeds the 2500 mapped bytes, b is the least recently used mapped file
+        ResponseBodyWriter c = serve( "/static/c.txt" );
+
+        assertSame( a, serve( "/static/a.txt" ) );
+        assertSame( c, serve( "/static/c.txt" ) );
+        assertNotSame( b, serve( "/static/b.txt" ) );
+        // files held in the heap are bounded on their own
+        assertSame( small, serve( "/static/small.txt" ) );
+    }
+
+    @Test
+    public void changedFilesAreInvalidated()
+        throws Exception
+    {
+        write( "changing.txt", 10 );
+        ResponseBodyWriter body = serve( "/static/changing.txt" );
+        assertSame( body, serve( "/static/changing.txt" ) );
+
+        write( "changing.txt", 20 );
+
+        // changes are notified asynchronously
+        long deadline = System.currentTimeMillis() + 30000;
+        while ( body == serve( "/static/changing.txt" ) && System.currentTimeMillis() < deadline )
+        {
+            Thread.sleep( 50 );
+        }
+
+        assertEquals( content( 20 ), read( serve( "/static/changing.txt" ) ) );
+    }
+
+    @Test
+    public void filesAreNotCachedOnceClosed()
+        throws IOException
+    {
+        write( "small.txt", 10 );
+        handler.close();
+
+        assertNotSame( serve( "/static/small.txt" ), serve( "/static/small.txt" ) );
+    }
+
+    @Test
+    public void filesOutsideTheDirectoryAreNotServed()
+        throws IOException
+    {
+        MutableRequest request = new MutableRequest();
+        request.setPath( "/static/../" + directory.getName() + ".txt" );
+        Response response = ResponseFactory.newResponse();
+
+        handler.handle( request, response );
+
+        assertEquals( NOT_FOUND, response.getStatus() );
+    }
+
+    @Test
+    public void rangesOfCachedFilesAreSliced()
+        throws IOException
+    {
+        write( "digits.txt", "0123456789" );
+
+        Response response = serveRange( "/static/digits.txt", "bytes=2-4" );
+
+        assertEquals( PARTIAL_CONTENT, response.getStatus() );
+        assertEquals( "bytes", response.getHeaders().getFirstValue( "Accept-Ranges" ) );
+        assertEquals( "bytes 2-4/10", response.getHeaders().getFirstValue( "Content-Range" ) );
+        assertTrue( response.getBodyWriter() instanceof ByteRangesResponseBodyWriter );
+        assertFalse( ( (ByteRangesResponseBodyWriter) response.getBodyWriter() ).isFileBacked() );
+        assertEquals( "234", read( response.getBodyWriter() ) );
+
+        // the cached content is shared, not consumed
+        assertEquals( "0123456789", read( serve( "/static/digits.txt" ) ) );
+    }
+
+    @Test
+    public void multipleRangesOfMappedFilesAreSentAsMultipart()
+        throws IOException
+    {
+        write( "mapped.txt", content( 90 ) + "0123456789" );
+
+        Response response = serveRange( "/static/mapped.txt", "bytes=0-1,-3" );
+
+        assertEquals( PARTIAL_CONTENT, response.getStatus() );
+        ByteRangesResponseBodyWriter body = (ByteRangesResponseBodyWriter) response.getBodyWriter();
+        assertTrue( body.contentType().startsWith( "multipart/byteranges; boundary=" ) );
+
+        String multipart = read( body );
+        assertEquals( body.getContentLength(), multipart.length() );
+        assertTrue( multipart, multipart.contains( "Content-Range: bytes 0-1/100\r\n\r\nzz\r\n--" ) );
+        assertTrue( multipart, multipart.contains( "Content-Range: bytes 97-99/100\r\n\r\n789\r\n--" ) );
+    }
+
+    @Test
+    public void rangesOfTransferredFilesAreFileBacked()
+        throws IOException
+    {
+        write( "huge.txt", content( 1990 ) + "0123456789" );
+
+        Response response = serveRange( "/static/huge.txt", "bytes=1995-" );
+
+        assertEquals( PARTIAL_CONTENT, response.getStatus() );
+        assertTrue( ( (ByteRangesResponseBodyWriter) response.getBodyWriter() ).isFileBacked() );
+        assertEquals( "56789", read( response.getBodyWriter() ) );
+    }
+
+    @Test
+    public void unsatisfiableRangesAreRejected()
+        throws IOException
+    {
+        write( "digits.txt", "0123456789" );
+
+        Response response = serveRange( "/static/digits.txt", "bytes=10-" );
+
+        assertEquals( REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus() );
+        assertEquals( "bytes */10", response.getHeaders().getFirstValue( "Content-Range" ) );
+    }
+
+    /**
+     * Serves the request and evaluates its ranges, as the protocol processor does before serializing.
+     */
+    private Response serveRange( String path, String range )
+        throws IOException
+    {
+        MutableRequest request = new MutableRequest();
+        request.setMethod( GET );
+        request.setPath( path );
+        request.addHeader( "Range", range );
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( OK );
+
+        handler.handle( request, response );
+        ProtocolProcessor.evaluateRanges( request, response, new CoarseClock() );
+
+        return response;
+    }
+
+    private ResponseBodyWriter serve( String path )
+        throws IOException
+    {
+        MutableRequest request = new MutableRequest();
+        request.setPath( path );
+        Response response = ResponseFactory.newResponse();
+
+        handler.handle( request, response );
+
+        return response.getBodyWriter();
+    }
+
+    private void write( String name, int size )
+        throws IOException
+    {
+        write( name, content( size ) );
+    }
+
+    private void write( String name, String content )
+        throws IOException
+    {
+        FileOutputStream output = new FileOutputStream( new File( directory, name ) );
+        try
+        {
+            output.write( content.getBytes( "US-ASCII" ) );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private static String content( int size )
+    {
+        char[] content = new char[size];
+        Arrays.fill( content, 'z' );
+        return new String( content );
+    }
+
+    private static String read( ResponseBodyWriter body )
+        throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        body.write( newChannel( output ) );
+        return output.toString( "US-ASCII" );
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TimingWheelTestCase
+{
+
+    private TimingWheel<String> wheel;
+
+    private List<String> expired;
+
+    @Before
+    public void setUp()
+    {
+        wheel = new TimingWheel<String>( 4, 10, 0 );
+        expired = new ArrayList<String>();
+    }
+
+    @Test
+    public void expireAfterDelay()
+    {
+        wheel.schedule( wheel.newTimeout( "a" ), 30 );
+
+        wheel.expire( 29, expired );
+        assertTrue( expired.isEmpty() );
+
+        wheel.expire( 30, expired );
+        assertEquals( 1, expired.size() );
+        assertEquals( "a", expired.get( 0 ) );
+    }
+
+    @Test
+    public void expireAfterMoreRounds()
+    {
+        TimingWheel.Timeout<String> timeout = wheel.newTimeout( "a" );
+        wheel.schedule( timeout, 90 );
+
+        wheel.expire( 89, expired );
+        assertTrue( expired.isEmpty() );
+        assertTrue( timeout.isScheduled() );
+
+        wheel.expire( 90, expired );
+        assertEquals( 1, expired.size() );
+        assertFalse( timeout.isScheduled() );
+    }
+
+    @Test
+    public void cancelledNeverExpire()
+    {
+        TimingWheel.Timeout<String> a = wheel.newTimeout( "a" );
+        TimingWheel.Timeout<String> b = wheel.newTimeout( "b" );
+        wheel.schedule( a, 10 );
+        wheel.schedule( b, 10 );
+        wheel.cancel( a );
+
+        wheel.expire( 100, expired );
+        assertEquals( 1, expired.size() );
+        assertEquals( "b", expired.get( 0 ) );
+    }
+
+    @Test
+    public void rescheduleMovesTheDeadline()
+    {
+        TimingWheel.Timeout<String> timeout = wheel.newTimeout( "a" );
+        wheel.schedule( timeout, 20 );
+
+        wheel.expire( 10, expired );
+        wheel.schedule( timeout, 20 );
+
+        wheel.expire( 20, expired );
+        assertTrue( expired.isEmpty() );
+
+        wheel.expire( 30, expired );
+        assertEquals( 1, expired.size() );
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.zentaur.core;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.zentaur.HttpServer.Status.STOPPED;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+import org.zentaur.HttpServerConfiguration;
+import org.zentaur.HttpServerConfigurator;
+import org.zentaur.InitException;
+
+public final class VirtualThreadsTestCase
+{
+
+    @Test
+    public void platformThreadsAreSelectedByDefault()
+        throws Exception
+    {
+        DefaultHttpServerConfigurator configurator = new DefaultHttpServerConfigurator();
+        configurator.serveRequestsWithThreads( 2 );
+
+        Thread thread = executingThread( configurator );
+
+        assertFalse( isVirtual( thread ) );
+        assertTrue( thread.isDaemon() );
+        assertTrue( thread.getName().startsWith( "protocol-processor-" ) );
+    }
+
+    @Test
+    public void virtualThreadsAreSelectedWhenSupported()
+        throws Exception
+    {
+        if ( !VirtualThreads.isSupported() )
+        {
+            // Java 21 and later only
+            return;
+        }
+
+        DefaultHttpServerConfigurator configurator = new DefaultHttpServerConfigurator();
+        configurator.serveRequestsWithVirtualThreads( true );
+
+        Thread thread = executingThread( configurator );
+
+        assertTrue( isVirtual( thread ) );
+        assertTrue( thread.getName().startsWith( "protocol-processor-" ) );
+    }
+
+    @Test
+    public void initFailsWhenVirtualThreadsAreNotSupported()
+    {
+        if ( VirtualThreads.isSupported() )
+        {
+            return;
+        }
+
+        SimpleHttpServer server = new SimpleHttpServer();
+
+        try
+        {
+            server.init( new HttpServerConfiguration()
+            {
+
+                public void configure( HttpServerConfigurator configurator )
+                {
+                    configurator.bindServerToHost( "127.0.0.1" );
+                    configurator.bindServerToPort( 8080 );
+                    configurator.sessionsHaveMagAge( 60 );
+                    ( (SimpleHttpServerConfigurator) configurator ).serveRequestsWithVirtualThreads( true );
+                }
+
+            } );
+            fail( "Virtual threads are not supported, init must fail" );
+        }
+        catch ( InitException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage().contains( "virtual threads" ) );
+        }
+
+        assertEquals( STOPPED, server.getStatus() );
+    }
+
+    @Test
+    public void messagePoolIsSizedOnThePlatformThreads()
+    {
+        DefaultHttpServerConfigurator configurator = new DefaultHttpServerConfigurator();
+        configurator.handleConnectionsWithReactors( 2 );
+        configurator.processPipelinedRequestsUpTo( 4 );
+        configurator.serveRequestsWithThreads( 10 );
+
+        assertEquals( 2 * 4 + 10, SimpleHttpServer.messagePoolCapacity( configurator ) );
+    }
+
+    @Test
+    public void messagePoolIsBoundedWithVirtualThreads()
+    {
+        DefaultHttpServerConfigurator configurator = new DefaultHttpServerConfigurator();
+        configurator.handleConnectionsWithReactors( 2 );
+        configurator.processPipelinedRequestsUpTo( 4 );
+        configurator.serveRequestsWithVirtualThreads( true );
+
+        assertEquals( 2 * 4 + 256, SimpleHttpServer.messagePoolCapacity( configurator ) );
+
+        configurator.poolMessagesUpTo( 32 );
+
+        assertEquals( 2 * 4 + 32, SimpleHttpServer.messagePoolCapacity( configurator ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void negativePooledMessagesAreRejected()
+    {
+        new DefaultHttpServerConfigurator().poolMessagesUpTo( -1 );
+    }
+
+    private static Thread executingThread( DefaultHttpServerConfigurator configurator )
+        throws Exception
+    {
+        ExecutorService executor = SimpleHttpServer.newRequestsExecutor( configurator );
+
+        try
+        {
+            return executor.submit( new Callable<Thread>()
+            {
+
+                public Thread call()
+                {
+                    return Thread.currentThread();
+                }
+
+            } ).get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean isVirtual( Thread thread )
+        throws Exception
+    {
+        if ( !VirtualThreads.isSupported() )
+        {
+            return false;
+        }
+        return (Boolean) Thread.class.getMethod( "isVirtual" ).invoke( thread );
+    }
+
+}
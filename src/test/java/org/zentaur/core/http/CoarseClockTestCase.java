@@ -0,0 +1,138 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.text.ParseException;
+
+import org.junit.Test;
+
+public final class CoarseClockTestCase
+{
+
+    /**
+     * Sat, 17 Oct 2026 10:00:00 GMT
+     */
+    private static final long SECOND = 1792231200000L;
+
+    @Test
+    public void ticksUpdateTheTime()
+    {
+        CoarseClock clock = new CoarseClock();
+
+        clock.tick( SECOND );
+        assertEquals( SECOND, clock.currentTimeMillis() );
+        assertEquals( "Sat, 17 Oct 2026 10:00:00 GMT", clock.getHttpDate() );
+
+        clock.tick( SECOND + 1100 );
+        assertEquals( SECOND + 1100, clock.currentTimeMillis() );
+        assertEquals( "Sat, 17 Oct 2026 10:00:01 GMT", clock.getHttpDate() );
+    }
+
+    @Test
+    public void dateHeaderLineIsEncodedOncePerSecond()
+        throws Exception
+    {
+        CoarseClock clock = new CoarseClock();
+
+        clock.tick( SECOND );
+        byte[] dateHeaderLine = clock.getDateHeaderLine();
+        assertArrayEquals( "Date: Sat, 17 Oct 2026 10:00:00 GMT\r\n".getBytes( "US-ASCII" ), dateHeaderLine );
+
+        clock.tick( SECOND + 900 );
+        assertSame( dateHeaderLine, clock.getDateHeaderLine() );
+
+        clock.tick( SECOND + 1000 );
+        assertNotSame( dateHeaderLine, clock.getDateHeaderLine() );
+        assertArrayEquals( "Date: Sat, 17 Oct 2026 10:00:01 GMT\r\n".getBytes( "US-ASCII" ), clock.getDateHeaderLine() );
+    }
+
+    @Test
+    public void dateHeaderLineIsSharedForTheCurrentDateOnly()
+    {
+        CoarseClock clock = new CoarseClock();
+        clock.tick( SECOND );
+
+        assertSame( clock.getDateHeaderLine(), clock.getDateHeaderLine( "Sat, 17 Oct 2026 10:00:00 GMT" ) );
+        assertNull( clock.getDateHeaderLine( "Sat, 17 Oct 2026 09:59:59 GMT" ) );
+    }
+
+    @Test
+    public void otherDatesAreFormatted()
+    {
+        CoarseClock clock = new CoarseClock();
+        clock.tick( SECOND );
+
+        assertEquals( "Thu, 01 Jan 1970 00:00:00 GMT", clock.formatHttpDate( 0 ) );
+        assertEquals( "Sat, 17 Oct 2026 11:00:00 GMT", clock.formatHttpDate( SECOND + 3600 * 1000 ) );
+        assertEquals( "Sat, 17 Oct 2026 10:00:00 GMT", clock.formatHttpDate( SECOND + 999 ) );
+    }
+
+    @Test
+    public void datesAreParsed()
+        throws Exception
+    {
+        CoarseClock clock = new CoarseClock();
+        clock.tick( SECOND );
+
+        assertEquals( SECOND, clock.parseHttpDate( "Sat, 17 Oct 2026 10:00:00 GMT" ) );
+        assertEquals( SECOND + 3600 * 1000, clock.parseHttpDate( "Sat, 17 Oct 2026 11:00:00 GMT" ) );
+        assertEquals( SECOND + 3600 * 1000, clock.parseHttpDate( "Sat, 17 Oct 2026 11:00:00 GMT" ) );
+        assertEquals( 0, clock.parseHttpDate( "Thu, 01 Jan 1970 00:00:00 GMT" ) );
+    }
+
+    @Test( expected = ParseException.class )
+    public void invalidDatesAreNotParsed()
+        throws Exception
+    {
+        new CoarseClock().parseHttpDate( "yesterday" );
+    }
+
+    @Test
+    public void clockTicksUntilStopped()
+        throws Exception
+    {
+        CoarseClock clock = new CoarseClock();
+        clock.tick( 0 );
+
+        clock.start();
+        try
+        {
+            long deadline = System.currentTimeMillis() + 5000;
+            while ( clock.currentTimeMillis() == 0 && System.currentTimeMillis() < deadline )
+            {
+                Thread.sleep( 10 );
+            }
+            assertTrue( clock.currentTimeMillis() > 0 );
+        }
+        finally
+        {
+            clock.stop();
+        }
+
+        long stopped = clock.currentTimeMillis();
+        Thread.sleep( 300 );
+        assertEquals( stopped, clock.currentTimeMillis() );
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class DefaultSessionTestCase
+{
+
+    /**
+     * Sat, 17 Oct 2026 10:00:00 GMT
+     */
+    private static final long SECOND = 1792231200000L;
+
+    @Test
+    public void accessTimesAreReadFromTheClock()
+    {
+        CoarseClock clock = new CoarseClock();
+        clock.tick( SECOND );
+
+        DefaultSession session = new DefaultSession( clock );
+
+        assertTrue( session.isNew() );
+        assertEquals( SECOND, session.getCreationTime().getTime() );
+        assertEquals( SECOND, session.getLastAccessedTime().getTime() );
+
+        clock.tick( SECOND + 1500 );
+        session.updateLastAccessedTime();
+
+        assertFalse( session.isNew() );
+        assertEquals( SECOND, session.getCreationTime().getTime() );
+        assertEquals( SECOND + 1500, session.getLastAccessedTime().getTime() );
+    }
+
+}
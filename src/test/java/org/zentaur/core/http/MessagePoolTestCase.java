@@ -0,0 +1,109 @@
+package org.zentaur.core.http;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.zentaur.http.Request.Method.GET;
+import static org.zentaur.http.Response.Status.OK;
+
+import org.junit.Test;
+import org.zentaur.http.Request;
+import org.zentaur.http.Response;
+
+public final class MessagePoolTestCase
+{
+
+    @Test
+    public void releasedMessagesAreRecycled()
+    {
+        MessagePool pool = new MessagePool( 1, false );
+
+        MutableRequest request = pool.borrowRequest();
+        request.setMethod( GET );
+        request.addHeader( "Host", "localhost" );
+        pool.release( request );
+
+        Response response = pool.borrowResponse();
+        response.setStatus( OK );
+        response.addHeader( "Server", "test" );
+        pool.release( response );
+
+        MutableRequest recycledRequest = pool.borrowRequest();
+        assertSame( request, recycledRequest );
+        assertNull( recycledRequest.getMethod() );
+        assertFalse( recycledRequest.getHeaders().contains( "Host" ) );
+
+        Response recycledResponse = pool.borrowResponse();
+        assertSame( response, recycledResponse );
+        assertNull( recycledResponse.getStatus() );
+        assertFalse( recycledResponse.getHeaders().contains( "Server" ) );
+    }
+
+    @Test
+    public void poolDoesNotGrowAboveCapacity()
+    {
+        MessagePool pool = new MessagePool( 1, false );
+
+        MutableRequest first = pool.borrowRequest();
+        MutableRequest second = pool.borrowRequest();
+        pool.release( first );
+        pool.release( second );
+
+        assertSame( first, pool.borrowRequest() );
+        assertNotSame( second, pool.borrowRequest() );
+    }
+
+    @Test
+    public void guardsAreTransparentBeforeRelease()
+    {
+        MessagePool pool = new MessagePool( 1, true );
+
+        MutableRequest request = pool.borrowRequest();
+        request.setPath( "/index.html" );
+
+        assertEquals( "/index.html", pool.guard( request ).getPath() );
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void retainedRequestIsDetected()
+    {
+        MessagePool pool = new MessagePool( 1, true );
+
+        MutableRequest request = pool.borrowRequest();
+        Request retained = pool.guard( request );
+        pool.release( request );
+
+        retained.getPath();
+    }
+
+    @Test( expected = IllegalStateException.class )
+    public void retainedResponseIsDetected()
+    {
+        MessagePool pool = new MessagePool( 1, true );
+
+        Response response = pool.borrowResponse();
+        Response retained = pool.guard( response );
+        pool.release( response );
+
+        retained.setStatus( OK );
+    }
+
+}
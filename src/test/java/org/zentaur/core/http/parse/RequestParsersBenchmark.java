@@ -0,0 +1,175 @@
+package org.zentaur.core.http.parse;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.String.format;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.zentaur.core.http.MutableRequest;
+import org.zentaur.core.http.RequestParseException;
+
+/**
+ * Compares the {@link RequestStreamingParser} and the {@link TableDrivenRequestParser}
+ * on header-heavy requests, parsed from direct buffers as the reactors read them.
+ *
+ * It is not a test, it has to be launched from the test classpath:
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:$DEPENDENCIES org.zentaur.core.http.parse.RequestParsersBenchmark
+ * </pre>
+ */
+public final class RequestParsersBenchmark
+{
+
+    private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+
+    private static final int ROUNDS = 5;
+
+    private static final long ROUND_NANOS = 1000L * 1000L * 1000L;
+
+    /**
+     * Prevents the JIT from discarding the parsed requests.
+     */
+    private static int sink;
+
+    private RequestParsersBenchmark()
+    {
+        // do nothing
+    }
+
+    public static void main( String[] args )
+        throws Exception
+    {
+        String[][] requests =
+        {
+            { "browser", browserRequest() },
+            { "api", apiRequest() },
+            { "minimal", "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n" }
+        };
+
+        for ( String[] request : requests )
+        {
+            ByteBuffer buffer = directBuffer( request[1] );
+
+            RequestParser legacy = new RequestStreamingParser( "localhost", "localhost", 8080 );
+            RequestParser tableDriven = new TableDrivenRequestParser( "localhost", "localhost", 8080,
+                                                                      new MutableRequest() );
+
+            // warm up
+            measure( legacy, buffer );
+            measure( tableDriven, buffer );
+
+            for ( int round = 1; round <= ROUNDS; round++ )
+            {
+                report( request[0], "RequestStreamingParser", round, buffer, measure( legacy, buffer ) );
+                report( request[0], "TableDrivenRequestParser", round, buffer, measure( tableDriven, buffer ) );
+            }
+        }
+
+        System.out.println( sink == 42 ? "" : "done" );
+    }
+
+    /**
+     * Parses the request repeatedly for a round, returning the average nanoseconds per request.
+     */
+    private static double measure( RequestParser parser, ByteBuffer buffer )
+        throws RequestParseException
+    {
+        long parsed = 0;
+        long start = System.nanoTime();
+        long elapsed;
+
+        do
+        {
+            for ( int i = 0; i < 1000; i++ )
+            {
+                parser.reset( new MutableRequest() );
+                parser.onRequestPartRead( buffer.duplicate() );
+
+                if ( !parser.isRequestMessageComplete() )
+                {
+                    throw new IllegalStateException( "Request not parsed by " + parser.getClass().getSimpleName() );
+                }
+                sink += parser.getParsedRequest().getHeaders().getAllKeys().size();
+            }
+            parsed += 1000;
+            elapsed = System.nanoTime() - start;
+        }
+        while ( elapsed < ROUND_NANOS );
+
+        return (double) elapsed / parsed;
+    }
+
+    private static void report( String request, String parser, int round, ByteBuffer buffer, double nanos )
+    {
+        System.out.println( format( "%-8s %-25s round %s: %,10.0f ns/request %,8.1f MB/s",
+                                    request, parser, round, nanos, buffer.remaining() * 1000D / nanos ) );
+    }
+
+    private static ByteBuffer directBuffer( String request )
+    {
+        byte[] bytes = request.getBytes( US_ASCII );
+        ByteBuffer buffer = ByteBuffer.allocateDirect( bytes.length );
+        buffer.put( bytes ).flip();
+        return buffer;
+    }
+
+    private static String browserRequest()
+    {
+        return "GET /catalog/search.html?q=zentaur&page=2 HTTP/1.1\r\n"
+               + "Host: www.example.com\r\n"
+               + "Connection: keep-alive\r\n"
+               + "Cache-Control: max-age=0\r\n"
+               + "Upgrade-Insecure-Requests: 1\r\n"
+               + "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 "
+               + "(KHTML, like Gecko) Chrome/118.0.0.0 Safari/537.36\r\n"
+               + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,"
+               + "image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+               + "Referer: https://www.example.com/catalog/index.html\r\n"
+               + "Accept-Encoding: gzip, deflate, br\r\n"
+               + "Accept-Language: en-US,en;q=0.9,it;q=0.8\r\n"
+               + "Cookie: _ga=GA1.2.1234567890.1697000000; _gid=GA1.2.987654321.1697000000; "
+               + "session=" + repeat( '7', 256 ) + "; prefs=" + repeat( 'p', 512 ) + "; "
+               + "consent=" + repeat( 'c', 600 ) + "\r\n"
+               + "\r\n";
+    }
+
+    private static String apiRequest()
+    {
+        return "GET /api/v2/orders?status=open HTTP/1.1\r\n"
+               + "Host: api.example.com\r\n"
+               + "Accept: application/json\r\n"
+               + "Authorization: Bearer " + repeat( 'j', 2048 ) + "\r\n"
+               + "User-Agent: okhttp/4.11.0\r\n"
+               + "X-Request-Id: 4b1c3f9e-8f2a-4c7e-9d3b-2a6f5e1c0d7a\r\n"
+               + "X-Forwarded-For: 203.0.113.195, 70.41.3.18, 150.172.238.178\r\n"
+               + "Accept-Encoding: gzip\r\n"
+               + "\r\n";
+    }
+
+    private static String repeat( char c, int times )
+    {
+        char[] chars = new char[times];
+        Arrays.fill( chars, c );
+        return new String( chars );
+    }
+
+}
@@ -19,11 +19,17 @@ package org.zentaur.core.http.parse;
 import static org.zentaur.http.Headers.*;
 import static org.zentaur.core.io.IOUtils.utf8ByteBuffer;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.zentaur.http.Request.Method.GET;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 import org.zentaur.core.http.CookieBuilder;
+import org.zentaur.core.http.MutableRequest;
 import org.zentaur.http.Cookie;
 import org.zentaur.http.Request;
 
@@ -170,6 +176,94 @@ public final class RequestStreamingParserTestCase
         assertEquals( expected, actual );
     }
 
+    @Test
+    public void pipelinedRequestsBytesAreLeftInTheBuffer()
+        throws Exception
+    {
+        String pipelinedRequests = "POST /upload HTTP/1.1\n"
+                                   + "Content-Length: 5\n"
+                                   + "\n"
+                                   + "hello"
+                                   + "GET /index.html HTTP/1.1\n\n";
+        ByteBuffer buffer = utf8ByteBuffer( pipelinedRequests );
+
+        RequestStreamingParser first = new RequestStreamingParser( "localhost", "localhost", 123 );
+        first.onRequestPartRead( buffer );
+
+        assertTrue( first.isRequestMessageComplete() );
+        assertEquals( "hello", first.getParsedRequest().readRequestBody( new ToStringRequestBodyReader() ) );
+        assertTrue( buffer.hasRemaining() );
+
+        RequestStreamingParser second = new RequestStreamingParser( "localhost", "localhost", 123 );
+        second.onRequestPartRead( buffer );
+
+        assertTrue( second.isRequestMessageComplete() );
+        assertEquals( GET, second.getParsedRequest().getMethod() );
+        assertEquals( "/index.html", second.getParsedRequest().getPath() );
+        assertFalse( buffer.hasRemaining() );
+    }
+
+    @Test
+    public void pipelinedRequestsFollowingMalformedBytesAreLeftInTheBuffer()
+        throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write( "GET /first HTTP/1.1\nX-Malformed: ".getBytes( "US-ASCII" ) );
+        // an invalid byte and a truncated 3 bytes sequence, each decoded as a single replacement char
+        bytes.write( new byte[] { (byte) 0xFF, (byte) 0xE2, (byte) 0x82 } );
+        bytes.write( "\n\nGET /second HTTP/1.1\n\n".getBytes( "US-ASCII" ) );
+        ByteBuffer buffer = ByteBuffer.wrap( bytes.toByteArray() );
+
+        RequestStreamingParser first = new RequestStreamingParser( "localhost", "localhost", 123 );
+        first.onRequestPartRead( buffer );
+
+        assertTrue( first.isRequestMessageComplete() );
+        assertEquals( "/first", first.getParsedRequest().getPath() );
+
+        RequestStreamingParser second = new RequestStreamingParser( "localhost", "localhost", 123 );
+        second.onRequestPartRead( buffer );
+
+        assertTrue( second.isRequestMessageComplete() );
+        assertEquals( "/second", second.getParsedRequest().getPath() );
+        assertFalse( buffer.hasRemaining() );
+    }
+
+    @Test
+    public void resetParserPopulatesTheNextRequest()
+        throws Exception
+    {
+        ByteBuffer buffer = utf8ByteBuffer( "POST /upload HTTP/1.1\n"
+                                            + "Content-Length: 5\n"
+                                            + "\n"
+                                            + "hello"
+                                            + "GET /index.html?foo=bar HTTP/1.0\n\n" );
+
+        RequestStreamingParser parser = new RequestStreamingParser( "localhost", "localhost", 123 );
+        parser.onRequestPartRead( buffer );
+
+        Request first = parser.getParsedRequest();
+        assertTrue( parser.isRequestMessageComplete() );
+
+        MutableRequest recycled = new MutableRequest();
+        parser.reset( recycled );
+        assertFalse( parser.isRequestMessageComplete() );
+
+        parser.onRequestPartRead( buffer );
+
+        assertTrue( parser.isRequestMessageComplete() );
+        assertSame( recycled, parser.getParsedRequest() );
+        assertEquals( GET, recycled.getMethod() );
+        assertEquals( "/index.html", recycled.getPath() );
+        assertEquals( "1.0", recycled.getProtocolVersion() );
+        assertEquals( "bar", recycled.getQueryStringParameters().getFirstValue( "foo" ) );
+        assertEquals( "localhost", recycled.getClientHost() );
+        assertEquals( -1, recycled.getContentLength() );
+
+        // the previous request is left untouched
+        assertEquals( "/upload", first.getPath() );
+        assertEquals( "hello", first.readRequestBody( new ToStringRequestBodyReader() ) );
+    }
+
     private Request parse( String mockRequestString )
         throws Exception
     {
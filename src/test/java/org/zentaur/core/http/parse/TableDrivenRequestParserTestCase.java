@@ -0,0 +1,351 @@
+package org.zentaur.core.http.parse;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.zentaur.http.Headers.*;
+import static org.zentaur.core.io.IOUtils.utf8ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.http.Request.Method.GET;
+import static org.zentaur.http.Request.Method.POST;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.zentaur.core.http.CookieBuilder;
+import org.zentaur.core.http.MutableRequest;
+import org.zentaur.core.http.RequestParseException;
+import org.zentaur.http.Cookie;
+import org.zentaur.http.Request;
+
+public final class TableDrivenRequestParserTestCase
+{
+
+    @Test
+    public void parseRequestLine()
+        throws Exception
+    {
+        Request request = parse( "GET /index%%20page.html HTTP/1.1\r\n\r\n" );
+
+        assertEquals( GET, request.getMethod() );
+        assertEquals( "/index page.html", request.getPath() );
+        assertEquals( "HTTP", request.getProtocolName() );
+        assertEquals( "1.1", request.getProtocolVersion() );
+        assertEquals( "localhost", request.getClientHost() );
+        assertEquals( 123, request.getServerPort() );
+    }
+
+    @Test
+    public void queryStringParameters()
+        throws Exception
+    {
+        Request request = parse( "GET /index.php?foo=xy&foo=z%%C3%%A8&bar=a+b&flag HTTP/1.1\n\n" );
+
+        assertEquals( "/index.php", request.getPath() );
+        assertTrue( request.getQueryStringParameters().getValues( "foo" ).contains( "xy" ) );
+        assertTrue( request.getQueryStringParameters().getValues( "foo" ).contains( "z\u00e8" ) );
+        assertEquals( "a b", request.getQueryStringParameters().getFirstValue( "bar" ) );
+        assertEquals( "", request.getQueryStringParameters().getFirstValue( "flag" ) );
+        assertEquals( "1.1", request.getProtocolVersion() );
+    }
+
+    @Test
+    public void headerValuesAreSplitOnCommas()
+        throws Exception
+    {
+        Request request = parse( "GET /index.html HTTP/1.1\r\n"
+                                 + "Host: www.google.nl\r\n"
+                                 + "Accept: text/html;q=0.9, */*;q=0.5 \r\n"
+                                 + "Referer: http://www.google.nl/search?q=a&b=c\r\n"
+                                 + "User-Agent: Mozilla/5.0 (KHTML, like Gecko)\r\n"
+                                 + "\r\n" );
+
+        assertEquals( "www.google.nl", request.getHeaders().getFirstValue( "Host" ) );
+        assertEquals( 2, request.getHeaders().getValues( ACCEPT ).size() );
+        assertTrue( request.getHeaders().getValues( ACCEPT ).contains( "text/html;q=0.9" ) );
+        assertTrue( request.getHeaders().getValues( ACCEPT ).contains( "*/*;q=0.5" ) );
+        assertEquals( "http://www.google.nl/search?q=a&b=c", request.getHeaders().getFirstValue( REFERER ) );
+        assertEquals( "Mozilla/5.0 (KHTML, like Gecko)", request.getHeaders().getFirstValue( USER_AGENT ) );
+    }
+
+    @Test
+    public void wellKnownHeaderNamesAreCanonicalized()
+        throws Exception
+    {
+        Request request = parse( "POST /upload HTTP/1.1\n"
+                                 + "content-length: 5\n"
+                                 + "X-Custom: value\n"
+                                 + "\n"
+                                 + "hello" );
+
+        assertEquals( "5", request.getHeaders().getFirstValue( CONTENT_LENGTH ) );
+        assertEquals( "value", request.getHeaders().getFirstValue( "X-Custom" ) );
+        assertEquals( "hello", request.readRequestBody( new ToStringRequestBodyReader() ) );
+    }
+
+    @Test
+    public void verifyCookiesHeader()
+        throws Exception
+    {
+        Cookie expected1 = new CookieBuilder().setName( "name" ).setValue( "value" ).build();
+        Cookie expected2 = new CookieBuilder().setName( "name2" ).setValue( "value2" ).build();
+
+        Request request = parse( "GET /index.html HTTP/1.1\n"
+                                 + "Cookie: name=value; name2=value2\n\n" );
+
+        assertEquals( 2, request.getCookies().size() );
+        assertTrue( request.getCookies().contains( expected1 ) );
+        assertTrue( request.getCookies().contains( expected2 ) );
+        assertFalse( request.getHeaders().contains( COOKIE ) );
+    }
+
+    @Test
+    public void parametersSentViaPostMethods()
+        throws Exception
+    {
+        Request request = parse( "POST /demo.html HTTP/1.1\n"
+                                 + "Content-Length: 29\n"
+                                 + "Content-Type: application/x-www-form-urlencoded\n\n"
+                                 + "param1=value1&param2=value%%32" );
+
+        assertEquals( POST, request.getMethod() );
+        assertEquals( "value1", request.getParameters().getFirstValue( "param1" ) );
+        assertEquals( "value2", request.getParameters().getFirstValue( "param2" ) );
+    }
+
+    @Test
+    public void textSentViaPostMethods()
+        throws Exception
+    {
+        Request request = parse( "POST /demo.html HTTP/1.1\n"
+                                 + "Content-Length: 33\n"
+                                 + "Content-Type: text/plain\n\n"
+                                 + "supercalifragilistichespiralidoso" );
+
+        assertEquals( "supercalifragilistichespiralidoso", request.readRequestBody( new ToStringRequestBodyReader() ) );
+    }
+
+    @Test
+    public void pipelinedRequestsBytesAreLeftInTheBuffer()
+        throws Exception
+    {
+        ByteBuffer buffer = utf8ByteBuffer( "POST /upload HTTP/1.1\r\n"
+                                            + "Content-Length: 5\r\n"
+                                            + "\r\n"
+                                            + "hello"
+                                            + "GET /index.html HTTP/1.1\r\n\r\n" );
+
+        TableDrivenRequestParser parser = newParser();
+        parser.onRequestPartRead( buffer );
+
+        assertTrue( parser.isRequestMessageComplete() );
+        assertEquals( "hello", parser.getParsedRequest().readRequestBody( new ToStringRequestBodyReader() ) );
+        assertTrue( buffer.hasRemaining() );
+
+        parser.reset( new MutableRequest() );
+        parser.onRequestPartRead( buffer );
+
+        assertTrue( parser.isRequestMessageComplete() );
+        assertEquals( GET, parser.getParsedRequest().getMethod() );
+        assertEquals( "/index.html", parser.getParsedRequest().getPath() );
+        assertFalse( buffer.hasRemaining() );
+    }
+
+    @Test
+    public void delimitersAreFoundAtAnyWordOffset()
+        throws Exception
+    {
+        for ( int offset = 0; offset < 24; offset++ )
+        {
+            String first = repeat( 'a', offset );
+            String second = repeat( 'b', 24 - offset );
+            String head = "GET /index.html HTTP/1.1\r\n"
+                          + "X-List: " + first + "," + second + "\r\n"
+                          + "Cookie: n=" + first + ";m=" + second + "\r\n"
+                          + "\r\n";
+
+            for ( ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN } )
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect( head.length() ).order( order );
+                buffer.put( head.getBytes( "US-ASCII" ) ).flip();
+
+                TableDrivenRequestParser parser = newParser();
+                parser.onRequestPartRead( buffer );
+
+                assertTrue( parser.isRequestMessageComplete() );
+                Request request = parser.getParsedRequest();
+                assertEquals( offset > 0 ? Arrays.asList( first, second ) : Arrays.asList( second ),
+                              request.getHeaders().getValues( "X-List" ) );
+                assertTrue( request.getCookies().contains( new CookieBuilder().setName( "m" ).setValue( second ).build() ) );
+            }
+        }
+    }
+
+    @Test
+    public void longValuesAreCopiedAcrossChunks()
+        throws Exception
+    {
+        String bearer = "Bearer " + repeat( 'x', 3000 );
+        String session = repeat( 's', 2000 );
+        ByteBuffer bytes = utf8ByteBuffer( "GET /index.html HTTP/1.1\r\n"
+                                           + "Authorization: %s\r\n"
+                                           + "User-Agent: Mozilla/5.0 (X11, Linux) caf\u00e8/1.0 %s\r\n"
+                                           + "Cookie: session=%s\r\n"
+                                           + "\r\n", bearer, session, session );
+
+        TableDrivenRequestParser parser = newParser();
+        while ( bytes.hasRemaining() )
+        {
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit( Math.min( chunk.position() + 1000, chunk.limit() ) );
+            parser.onRequestPartRead( chunk );
+            bytes.position( chunk.position() );
+        }
+
+        assertTrue( parser.isRequestMessageComplete() );
+        Request request = parser.getParsedRequest();
+        assertEquals( bearer, request.getHeaders().getFirstValue( "Authorization" ) );
+        assertEquals( "Mozilla/5.0 (X11, Linux) caf\u00e8/1.0 " + session,
+                      request.getHeaders().getFirstValue( USER_AGENT ) );
+        assertTrue( request.getCookies().contains( new CookieBuilder().setName( "session" ).setValue( session ).build() ) );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void unsupportedMethodIsRejected()
+        throws Exception
+    {
+        parse( "BREW /pot HTTP/1.1\n\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void nonNumericContentLengthIsRejected()
+        throws Exception
+    {
+        parse( "POST /upload HTTP/1.1\nContent-Length: five\n\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void malformedEscapeIsRejected()
+        throws Exception
+    {
+        parse( "GET /index.php?foo=bar%%2 HTTP/1.1\n\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void headerWithoutSeparatorIsRejected()
+        throws Exception
+    {
+        parse( "GET /index.html HTTP/1.1\nGARBAGE\n\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void bareCarriageReturnIsRejected()
+        throws Exception
+    {
+        parse( "GET /index.html HTTP/1.1\r\nX-Smuggled: a\rTransfer-Encoding: chunked\r\n\r\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void bareCarriageReturnInLongValueIsRejected()
+        throws Exception
+    {
+        newParser().onRequestPartRead( utf8ByteBuffer( "GET /index.html HTTP/1.1\r\n"
+                                                       + "X-Smuggled: " + repeat( 'a', 20 ) + "\r"
+                                                       + repeat( 'b', 20 ) + "\r\n\r\n" ) );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void carriageReturnEndingTheHeadIsRejected()
+        throws Exception
+    {
+        newParser().onRequestPartRead( utf8ByteBuffer( "GET /index.html HTTP/1.1\r\n\r\r\n" ) );
+    }
+
+    @Test
+    public void headersAreAcceptedUpToTheLimit()
+        throws Exception
+    {
+        Request request = parse( "GET /index.html HTTP/1.1\r\n" + headers( 100, 10 ) + "\r\n" );
+
+        assertEquals( 100, request.getHeaders().getAllKeys().size() );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void tooManyHeadersAreRejected()
+        throws Exception
+    {
+        parse( "GET /index.html HTTP/1.1\r\n" + headers( 101, 10 ) + "\r\n" );
+    }
+
+    @Test( expected = RequestParseException.class )
+    public void tooLongHeadsAreRejected()
+        throws Exception
+    {
+        // every header is far shorter than the tokens limit
+        newParser().onRequestPartRead( utf8ByteBuffer( "GET /index.html HTTP/1.1\r\n" + headers( 20, 4000 ) + "\r\n" ) );
+    }
+
+    private static TableDrivenRequestParser newParser()
+    {
+        return new TableDrivenRequestParser( "localhost", "localhost", 123, new MutableRequest() );
+    }
+
+    private static String headers( int count, int valueLength )
+    {
+        StringBuilder headers = new StringBuilder();
+        for ( int i = 0; i < count; i++ )
+        {
+            headers.append( "X-Header-" ).append( i ).append( ": " ).append( repeat( 'v', valueLength ) ).append( "\r\n" );
+        }
+        return headers.toString();
+    }
+
+    private static String repeat( char c, int times )
+    {
+        char[] chars = new char[times];
+        Arrays.fill( chars, c );
+        return new String( chars );
+    }
+
+    /**
+     * Feeds the parser one byte at a time, the worst fragmentation.
+     */
+    private static Request parse( String mockRequestString )
+        throws Exception
+    {
+        TableDrivenRequestParser parser = newParser();
+        ByteBuffer bytes = utf8ByteBuffer( mockRequestString );
+
+        while ( bytes.hasRemaining() )
+        {
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit( chunk.position() + 1 );
+            parser.onRequestPartRead( chunk );
+
+            assertFalse( chunk.hasRemaining() );
+            bytes.position( chunk.position() );
+        }
+
+        assertTrue( parser.isRequestMessageComplete() );
+
+        return parser.getParsedRequest();
+    }
+
+}
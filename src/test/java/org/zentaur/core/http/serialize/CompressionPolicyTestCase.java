@@ -0,0 +1,90 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.core.http.serialize.CompressionPolicy.DEFLATE;
+import static org.zentaur.core.http.serialize.CompressionPolicy.GZIP;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CompressionPolicyTestCase
+{
+
+    private CompressionPolicy policy;
+
+    @Before
+    public void setUp()
+    {
+        policy = new CompressionPolicy();
+    }
+
+    @Test
+    public void gzipPreferredOnSameQuality()
+    {
+        assertEquals( GZIP, policy.negotiate( asList( "deflate", "gzip" ) ) );
+        assertEquals( GZIP, policy.negotiate( asList( "*" ) ) );
+    }
+
+    @Test
+    public void higherQualityWins()
+    {
+        assertEquals( DEFLATE, policy.negotiate( asList( "gzip;q=0.5", "deflate;q=0.8" ) ) );
+        assertEquals( DEFLATE, policy.negotiate( asList( "gzip;q=0, deflate" ) ) );
+    }
+
+    @Test
+    public void refusedCodingsNeverNegotiated()
+    {
+        assertNull( policy.negotiate( asList( "gzip;q=0" ) ) );
+        assertNull( policy.negotiate( asList( "*;q=0" ) ) );
+        assertNull( policy.negotiate( asList( "identity" ) ) );
+    }
+
+    @Test
+    public void compressionDisabledByLevel()
+    {
+        policy.setLevel( 0 );
+        assertNull( policy.negotiate( asList( "gzip" ) ) );
+    }
+
+    @Test
+    public void alreadyCompressedTypesSkipped()
+    {
+        assertFalse( policy.isCompressible( "image/jpeg" ) );
+        assertFalse( policy.isCompressible( "video/mp4" ) );
+        assertTrue( policy.isCompressible( "text/html; charset=UTF-8" ) );
+        assertTrue( policy.isCompressible( "image/svg+xml" ) );
+    }
+
+    @Test
+    public void allowListWins()
+    {
+        policy.setCompressedContentTypes( asList( "text/*", "application/json" ) );
+
+        assertTrue( policy.isCompressible( "text/css" ) );
+        assertTrue( policy.isCompressible( "application/json" ) );
+        assertFalse( policy.isCompressible( "application/xml" ) );
+        assertFalse( policy.isCompressible( null ) );
+    }
+
+}
@@ -0,0 +1,223 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.zentaur.http.Response.Status.NOT_FOUND;
+import static org.zentaur.http.Response.Status.OK;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.CookieBuilder;
+import org.zentaur.core.http.ResponseFactory;
+import org.zentaur.http.Cookie;
+import org.zentaur.http.Response;
+import org.zentaur.http.Response.Status;
+
+public final class HeadEncoderTestCase
+{
+
+    private static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+    private static final String EXPIRES = "Sun, 18 Oct 2026 10:00:00 GMT";
+
+    private final CoarseClock clock = new CoarseClock();
+
+    @Test
+    public void headIsEncodedAsThePreviousSerializerDid()
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( OK );
+        response.addHeader( "Server", "Simple HttpServer" );
+        response.addHeader( "Date", clock.getHttpDate() );
+        response.addHeader( "Content-Type", "text/html; charset=UTF-8" );
+        response.addHeader( "Content-Length", "1024" );
+        response.addHeader( "Vary", "Accept-Encoding" );
+        response.addHeader( "Vary", "Cookie" );
+        response.addHeader( "X-Greeting", "caf\u00e8 \u00e0 la carte" );
+        response.addCookie( new CookieBuilder().setName( "SHSSESSIONID" )
+                                               .setValue( "bb73e908-dfac-4ac7-b3cf-1c179496a0c3" )
+                                               .setPath( "/" )
+                                               .setDomain( "localhost" )
+                                               .addPort( 8080 )
+                                               .addPort( 8443 )
+                                               .setMaxAge( 3600 )
+                                               .build() );
+        response.addCookie( new CookieBuilder().setName( "theme" )
+                                               .setValue( "dark" )
+                                               .setPath( "/app" )
+                                               .setDomain( "example.com" )
+                                               .build() );
+
+        assertArrayEquals( previousSerializerHead( response ), encode( response ) );
+    }
+
+    @Test
+    public void unknownProtocolVersionsAreEncodedAsThePreviousSerializerDid()
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( NOT_FOUND );
+        response.setProtocolVersion( "2.5" );
+        response.addHeader( "Date", "Sat, 17 Oct 2026 00:00:00 GMT" );
+
+        assertArrayEquals( previousSerializerHead( response ), encode( response ) );
+    }
+
+    @Test
+    public void releasedEncodersAreReusedWithTheirArray()
+    {
+        HeadEncoder encoder = HeadEncoder.borrow( clock );
+        ByteBuffer first = encoder.statusLine( "HTTP", "1.1", OK ).header( "X-Id", asList( "first" ) ).end()
+                                  .getBuffer();
+        byte[] array = first.array();
+        assertEquals( "HTTP/1.1 200 OK\r\nX-Id: first\r\n\r\n", new String( toArray( first ), UTF_8 ) );
+        encoder.release();
+
+        // the pool is shared, other encoders could have been released before
+        List<HeadEncoder> borrowed = new ArrayList<HeadEncoder>();
+        HeadEncoder reused;
+        do
+        {
+            reused = HeadEncoder.borrow( clock );
+            borrowed.add( reused );
+        }
+        while ( reused != encoder && borrowed.size() < 1024 );
+
+        try
+        {
+            assertSame( encoder, reused );
+
+            ByteBuffer second = reused.statusLine( "HTTP", "1.1", OK ).header( "X-Id", asList( "second" ) ).end()
+                                      .getBuffer();
+            assertSame( array, second.array() );
+            assertEquals( "HTTP/1.1 200 OK\r\nX-Id: second\r\n\r\n", new String( toArray( second ), UTF_8 ) );
+        }
+        finally
+        {
+            for ( HeadEncoder released : borrowed )
+            {
+                released.release();
+            }
+        }
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void nullHeaderValuesAreRejected()
+    {
+        HeadEncoder encoder = HeadEncoder.borrow( clock );
+        try
+        {
+            encoder.header( "X-Null", asList( "value", null ) );
+        }
+        finally
+        {
+            encoder.release();
+        }
+    }
+
+    private byte[] encode( Response response )
+    {
+        HeadEncoder head = HeadEncoder.borrow( clock );
+        try
+        {
+            head.statusLine( response.getProtocolName(), response.getProtocolVersion(), response.getStatus() );
+            for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+            {
+                head.header( header.getKey(), header.getValue() );
+            }
+            for ( Cookie cookie : response.getCookies() )
+            {
+                head.cookie( cookie, cookie.getMaxAge() != -1 ? EXPIRES : null );
+            }
+            return toArray( head.end().getBuffer() );
+        }
+        finally
+        {
+            head.release();
+        }
+    }
+
+    /**
+     * The head as the Formatter based serializer encoded it, lines terminated by CRLF rather than the platform %n.
+     */
+    private static byte[] previousSerializerHead( Response response )
+    {
+        StringBuilder head = new StringBuilder();
+        Status status = response.getStatus();
+
+        head.append( String.format( "%s/%s %s %s\r\n", response.getProtocolName(), response.getProtocolVersion(),
+                                    status.getStatusCode(), status.getStatusText() ) );
+
+        for ( Entry<String, List<String>> header : response.getHeaders().getAllEntries() )
+        {
+            Formatter formatter = new Formatter().format( "%s: ", header.getKey() );
+
+            int counter = 0;
+            for ( String headerValue : header.getValue() )
+            {
+                formatter.format( "%s%s", ( counter++ > 0 ? ", " : "" ), headerValue );
+            }
+
+            head.append( formatter.format( "\r\n" ) );
+        }
+
+        for ( Cookie cookie : response.getCookies() )
+        {
+            Formatter formatter = new Formatter()
+                                     .format( "Set-Cookie: %s=%s; Path=%s; Domain=%s;",
+                                              cookie.getName(), cookie.getValue(), cookie.getPath(), cookie.getDomain() );
+
+            if ( !cookie.getPorts().isEmpty() )
+            {
+                formatter.format( " Port=\"" );
+                int i = 0;
+                for ( Integer port : cookie.getPorts() )
+                {
+                    formatter.format( "%s%s", ( i++ > 0 ? "," : "" ), port );
+                }
+                formatter.format( "\";" );
+            }
+
+            if ( cookie.getMaxAge() != -1 )
+            {
+                formatter.format( " Expires=%s;", EXPIRES );
+            }
+
+            head.append( formatter.format( " HttpOnly\r\n" ) );
+        }
+
+        return head.append( "\r\n" ).toString().getBytes( UTF_8 );
+    }
+
+    private static byte[] toArray( ByteBuffer buffer )
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+
+}
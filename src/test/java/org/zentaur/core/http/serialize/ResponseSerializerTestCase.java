@@ -0,0 +1,331 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.http.Response.Status.NOT_FOUND;
+import static org.zentaur.http.Response.Status.OK;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.core.http.ResponseFactory;
+import org.zentaur.core.io.OutboundBuffers;
+import org.zentaur.http.Response;
+import org.zentaur.io.ResponseBodyWriter;
+
+public final class ResponseSerializerTestCase
+{
+
+    private static final int HIGH_WATERMARK = 2048;
+
+    private static final int BODY_SIZE = 5000;
+
+    private Selector selector;
+
+    private Pipe pipe;
+
+    private OutboundBuffers outbound;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        selector = Selector.open();
+        pipe = Pipe.open();
+        pipe.sink().configureBlocking( false );
+        pipe.source().configureBlocking( false );
+        outbound = new OutboundBuffers( pipe.sink().register( selector, 0 ), new Executor()
+        {
+
+            public void execute( Runnable task )
+            {
+                // the drainer writes regardless of the key interest
+            }
+
+        }, HIGH_WATERMARK / 2, HIGH_WATERMARK );
+    }
+
+    @After
+    public void tearDown()
+        throws Exception
+    {
+        pipe.sink().close();
+        pipe.source().close();
+        selector.close();
+    }
+
+    @Test
+    public void largeBodiesAreChunked()
+        throws Exception
+    {
+        String received = serialize( newResponse( "1.1" ), true );
+
+        String head = received.substring( 0, received.indexOf( "\r\n\r\n" ) + 4 );
+        assertTrue( head, head.startsWith( "HTTP/1.1 200 OK\r\n" ) );
+        assertTrue( head, head.contains( "\r\nTransfer-Encoding: chunked\r\n" ) );
+        assertFalse( head, head.contains( "Content-Length" ) );
+        assertTrue( received.endsWith( "\r\n0\r\n\r\n" ) );
+
+        // decode the chunk-size framing
+        StringBuilder body = new StringBuilder();
+        int chunks = 0;
+        int index = head.length();
+        while ( true )
+        {
+            int sizeEnd = received.indexOf( "\r\n", index );
+            int chunkSize = Integer.parseInt( received.substring( index, sizeEnd ), 16 );
+            index = sizeEnd + 2;
+
+            if ( chunkSize == 0 )
+            {
+                assertEquals( "\r\n", received.substring( index ) );
+                break;
+            }
+
+            body.append( received, index, index + chunkSize );
+            index += chunkSize;
+            assertEquals( "\r\n", received.substring( index, index + 2 ) );
+            index += 2;
+            chunks++;
+        }
+
+        assertTrue( "Body sent in " + chunks + " chunks", chunks > 1 );
+        assertEquals( body(), body.toString() );
+    }
+
+    @Test
+    public void smallBodiesAreNotChunked()
+        throws Exception
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( OK );
+        response.setBody( new PiecewiseResponseBodyWriter( 100 ) );
+
+        assertBuffered( serialize( response, true ), "1.1", 100 );
+    }
+
+    @Test
+    public void http10BodiesAreBuffered()
+        throws Exception
+    {
+        assertBuffered( serialize( newResponse( "1.0" ), true ), "1.0", BODY_SIZE );
+    }
+
+    @Test
+    public void nonBlockingBodiesAreBuffered()
+        throws Exception
+    {
+        // the reactor thread can't wait for the connection being writable
+        assertBuffered( serialize( newResponse( "1.1" ), false ), "1.1", BODY_SIZE );
+    }
+
+    @Test
+    public void bareBodiesAreServedAsTheirTemplate()
+        throws Exception
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( NOT_FOUND );
+        response.setProtocolVersion( "1.0" );
+        response.addHeader( "Connection", "Keep-Alive" );
+        response.addHeader( "X-Custom", "value" );
+        response.setBody( BareResponseBodyWriter.BARE );
+
+        String received = serialize( response, true );
+
+        assertTrue( received, received.startsWith( "HTTP/1.0 404 Not Found\r\nDate: " ) );
+        assertTrue( received, received.endsWith( "\r\nConnection: Keep-Alive\r\nContent-Length: 0\r\n\r\n" ) );
+        assertFalse( received, received.contains( "X-Custom" ) );
+    }
+
+    @Test
+    public void uncompressedNegotiatedBodiesVaryOnAcceptEncoding()
+        throws Exception
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( OK );
+        response.setBody( new PiecewiseResponseBodyWriter( 100 ) );
+
+        String received = serialize( response, new CompressionPolicy(), null );
+
+        assertBuffered( received, "1.1", 100 );
+        assertTrue( received, received.contains( "\r\nVary: Accept-Encoding\r\n" ) );
+        assertFalse( received, received.contains( "Content-Encoding" ) );
+    }
+
+    @Test
+    public void compressedBodiesVaryOnAcceptEncodingOnce()
+        throws Exception
+    {
+        Response response = newResponse( "1.1" );
+        response.addHeader( "Vary", "Accept-Encoding" );
+
+        String received = serialize( response, new CompressionPolicy(), "gzip" );
+
+        String head = received.substring( 0, received.indexOf( "\r\n\r\n" ) + 4 );
+        assertTrue( head, head.contains( "\r\nContent-Encoding: gzip\r\n" ) );
+        assertEquals( head, head.indexOf( "Vary: " ), head.lastIndexOf( "Vary: " ) );
+    }
+
+    @Test
+    public void bodiesDontVaryWhenCompressionIsDisabled()
+        throws Exception
+    {
+        CompressionPolicy compressionPolicy = new CompressionPolicy();
+        compressionPolicy.setLevel( Deflater.NO_COMPRESSION );
+
+        String received = serialize( newResponse( "1.0" ), compressionPolicy, null );
+
+        assertBuffered( received, "1.0", BODY_SIZE );
+        assertFalse( received, received.contains( "Vary" ) );
+    }
+
+    private static void assertBuffered( String received, String protocolVersion, int bodySize )
+    {
+        String head = received.substring( 0, received.indexOf( "\r\n\r\n" ) + 4 );
+        assertTrue( head, head.startsWith( "HTTP/" + protocolVersion + " 200 OK\r\n" ) );
+        assertTrue( head, head.contains( "\r\nContent-Length: " + bodySize + "\r\n" ) );
+        assertFalse( head, head.contains( "Transfer-Encoding" ) );
+        assertEquals( body().substring( 0, bodySize ), received.substring( head.length() ) );
+    }
+
+    private static Response newResponse( String protocolVersion )
+    {
+        Response response = ResponseFactory.newResponse();
+        response.setStatus( OK );
+        response.setProtocolVersion( protocolVersion );
+        response.setBody( new PiecewiseResponseBodyWriter( BODY_SIZE ) );
+        return response;
+    }
+
+    private static String body()
+    {
+        StringBuilder body = new StringBuilder( BODY_SIZE );
+        for ( int i = 0; i < BODY_SIZE; i++ )
+        {
+            body.append( (char) ( 'a' + i % 26 ) );
+        }
+        return body.toString();
+    }
+
+    /**
+     * Serializes the response while draining the outbound buffers from another thread, as the reactor does.
+     */
+    private String serialize( Response response, boolean awaitWritable )
+        throws Exception
+    {
+        return serialize( response, new ResponseSerializer( outbound, null, null, 0, awaitWritable, new CoarseClock() ) );
+    }
+
+    private String serialize( Response response, CompressionPolicy compressionPolicy, String contentEncoding )
+        throws Exception
+    {
+        return serialize( response, new ResponseSerializer( outbound, compressionPolicy, contentEncoding,
+                                                            compressionPolicy.getLevel(), true, new CoarseClock() ) );
+    }
+
+    private String serialize( Response response, ResponseSerializer serializer )
+        throws Exception
+    {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final IOException[] failure = new IOException[1];
+
+        Thread drainer = new Thread( new Runnable()
+        {
+
+            public void run()
+            {
+                ByteBuffer[] gatheringBuffers = new ByteBuffer[16];
+                ByteBuffer readBuffer = ByteBuffer.allocate( 1024 );
+                try
+                {
+                    boolean completed = false;
+                    while ( !completed || pipe.source().read( readBuffer ) > 0 )
+                    {
+                        completed = completed || outbound.writeTo( pipe.sink(), gatheringBuffers );
+                        pipe.source().read( readBuffer );
+                        received.write( readBuffer.array(), 0, readBuffer.position() );
+                        readBuffer.clear();
+                        Thread.yield();
+                    }
+                    received.write( readBuffer.array(), 0, readBuffer.position() );
+                }
+                catch ( IOException e )
+                {
+                    failure[0] = e;
+                }
+            }
+
+        } );
+        drainer.start();
+
+        serializer.serialize( response );
+
+        drainer.join( 10000 );
+        assertFalse( "Response not completed", drainer.isAlive() );
+        if ( failure[0] != null )
+        {
+            throw failure[0];
+        }
+
+        return received.toString( "US-ASCII" );
+    }
+
+    /**
+     * Writes the body in small pieces, like handlers usually do.
+     */
+    private static final class PiecewiseResponseBodyWriter
+        implements ResponseBodyWriter
+    {
+
+        private final int size;
+
+        public PiecewiseResponseBodyWriter( int size )
+        {
+            this.size = size;
+        }
+
+        public String contentType()
+        {
+            return null;
+        }
+
+        public void write( WritableByteChannel output )
+            throws IOException
+        {
+            byte[] body = body().substring( 0, size ).getBytes( "US-ASCII" );
+            for ( int offset = 0; offset < size; offset += 100 )
+            {
+                output.write( ByteBuffer.wrap( body, offset, Math.min( 100, size - offset ) ) );
+            }
+        }
+
+    }
+
+}
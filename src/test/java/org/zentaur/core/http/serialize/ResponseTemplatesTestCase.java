@@ -0,0 +1,148 @@
+package org.zentaur.core.http.serialize;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.http.Response.Status.BAD_REQUEST;
+import static org.zentaur.http.Response.Status.NOT_FOUND;
+import static org.zentaur.http.Response.Status.SERVICE_UNAVAILABLE;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.zentaur.core.http.CoarseClock;
+import org.zentaur.http.Response.Status;
+
+public final class ResponseTemplatesTestCase
+{
+
+    private static final Charset US_ASCII = Charset.forName( "US-ASCII" );
+
+    private final CoarseClock clock = new CoarseClock();
+
+    @Test
+    public void closingResponsesAreEncodedAsTheHeadEncoderDoes()
+    {
+        for ( String protocolVersion : new String[] { "1.0", "1.1" } )
+        {
+            for ( Status status : Status.values() )
+            {
+                assertArrayEquals( encode( protocolVersion, status ),
+                                   toArray( ResponseTemplates.closingConnection( clock, protocolVersion, status ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void closingResponsesAreEncodedAsPlainText()
+    {
+        for ( String protocolVersion : new String[] { "1.0", "1.1" } )
+        {
+            for ( Status status : Status.values() )
+            {
+                assertArrayEquals( plainText( protocolVersion, status ),
+                                   toArray( ResponseTemplates.closingConnection( clock, protocolVersion, status ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void keepAliveResponsesAreEncodedAsPlainText()
+    {
+        for ( String protocolVersion : new String[] { "1.0", "1.1" } )
+        {
+            assertArrayEquals( format( "HTTP/%s 404 Not Found\r\nDate: %s\r\nConnection: Keep-Alive\r\n"
+                                       + "Content-Length: 0\r\n\r\n", protocolVersion, clock.getHttpDate() )
+                               .getBytes( US_ASCII ),
+                               toArray( ResponseTemplates.bare( clock, protocolVersion, NOT_FOUND, true ) ) );
+        }
+    }
+
+    @Test
+    public void templatesAreServedAsIndependentReadOnlyViews()
+    {
+        ByteBuffer first = ResponseTemplates.bare( clock, "1.1", NOT_FOUND, true );
+        ByteBuffer second = ResponseTemplates.bare( clock, "1.1", NOT_FOUND, true );
+
+        assertTrue( first.isReadOnly() );
+        assertArrayEquals( toArray( first ), toArray( second ) );
+        assertFalse( first.hasRemaining() );
+        assertTrue( ResponseTemplates.bare( clock, "1.1", NOT_FOUND, true ).hasRemaining() );
+    }
+
+    @Test
+    public void http10RequestsReceiveHttp10Responses()
+    {
+        assertArrayEquals( plainText( "1.0", BAD_REQUEST ),
+                           toArray( ResponseTemplates.closingConnection( clock, "1.0", BAD_REQUEST ) ) );
+    }
+
+    @Test
+    public void unknownVersionsFallBackToHttp11()
+    {
+        assertArrayEquals( plainText( "1.1", SERVICE_UNAVAILABLE ),
+                           toArray( ResponseTemplates.closingConnection( clock, null, SERVICE_UNAVAILABLE ) ) );
+        assertArrayEquals( plainText( "1.1", BAD_REQUEST ),
+                           toArray( ResponseTemplates.closingConnection( clock, "2.5", BAD_REQUEST ) ) );
+    }
+
+    /**
+     * The same response, encoded by the dynamic serializer encoder.
+     */
+    private byte[] encode( String protocolVersion, Status status )
+    {
+        HeadEncoder head = HeadEncoder.borrow( clock );
+        try
+        {
+            head.statusLine( "HTTP", protocolVersion, status )
+                .header( "Date", asList( clock.getHttpDate() ) )
+                .header( "Connection", asList( "close" ) )
+                .header( "Content-Length", asList( "0" ) );
+            return toArray( head.end().getBuffer() );
+        }
+        finally
+        {
+            head.release();
+        }
+    }
+
+    private byte[] plainText( String protocolVersion, Status status )
+    {
+        return format( "HTTP/%s %s %s\r\nDate: %s\r\nConnection: close\r\nContent-Length: 0\r\n\r\n",
+                       protocolVersion, status.getStatusCode(), status.getStatusText(), clock.getHttpDate() )
+               .getBytes( US_ASCII );
+    }
+
+    private static byte[] toArray( ByteBuffer... buffers )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for ( ByteBuffer buffer : buffers )
+        {
+            byte[] array = new byte[buffer.remaining()];
+            buffer.get( array );
+            bytes.write( array, 0, array.length );
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public final class ByteBufferPoolTestCase
+{
+
+    @Test
+    public void borrowedBuffersAreDirectAndSized()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 128, 2 );
+
+        ByteBuffer buffer = pool.borrow();
+
+        assertTrue( buffer.isDirect() );
+        assertEquals( 128, buffer.capacity() );
+        assertEquals( 0, buffer.position() );
+        assertEquals( 128, buffer.limit() );
+    }
+
+    @Test
+    public void releasedBuffersAreReused()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 128, 2 );
+
+        ByteBuffer buffer = pool.borrow();
+        pool.release( buffer );
+
+        assertSame( buffer, pool.borrow() );
+        assertNotSame( buffer, pool.borrow() );
+    }
+
+    @Test
+    public void releasedBuffersAreCleared()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 128, 2 );
+
+        ByteBuffer buffer = pool.borrow();
+        buffer.put( new byte[] { 1, 2, 3 } ).flip();
+        pool.release( buffer );
+
+        ByteBuffer reused = pool.borrow();
+        assertSame( buffer, reused );
+        assertEquals( 0, reused.position() );
+        assertEquals( 128, reused.limit() );
+    }
+
+    @Test
+    public void poolDoesNotGrowAboveCapacity()
+    {
+        ByteBufferPool pool = new ByteBufferPool( 128, 1 );
+
+        ByteBuffer first = pool.borrow();
+        ByteBuffer second = pool.borrow();
+        pool.release( first );
+        pool.release( second );
+
+        assertSame( first, pool.borrow() );
+        ByteBuffer allocated = pool.borrow();
+        assertNotSame( first, allocated );
+        assertNotSame( second, allocated );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void buffersOfOtherSizesAreRejected()
+    {
+        new ByteBufferPool( 128, 1 ).release( ByteBuffer.allocateDirect( 64 ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void nullBuffersAreRejected()
+    {
+        new ByteBufferPool( 128, 1 ).release( null );
+    }
+
+}
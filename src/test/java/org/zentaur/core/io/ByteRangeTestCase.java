@@ -0,0 +1,67 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public final class ByteRangeTestCase
+{
+
+    @Test
+    public void boundedAndOpenRanges()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=0-499, 9500-", 10000 );
+
+        assertEquals( 2, ranges.size() );
+        assertEquals( 0, ranges.get( 0 ).getFirst() );
+        assertEquals( 500, ranges.get( 0 ).getLength() );
+        assertEquals( 9500, ranges.get( 1 ).getFirst() );
+        assertEquals( 9999, ranges.get( 1 ).getLast() );
+    }
+
+    @Test
+    public void suffixRangeClampedToLength()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=-20000", 10000 );
+
+        assertEquals( 1, ranges.size() );
+        assertEquals( "bytes 0-9999/10000", ranges.get( 0 ).toContentRange( 10000 ) );
+    }
+
+    @Test
+    public void unsatisfiableRangesDropped()
+    {
+        assertTrue( ByteRange.parse( "bytes=10000-", 10000 ).isEmpty() );
+        assertEquals( 1, ByteRange.parse( "bytes=10000-, 0-0", 10000 ).size() );
+    }
+
+    @Test
+    public void invalidRangesIgnored()
+    {
+        assertNull( ByteRange.parse( "items=0-1", 10000 ) );
+        assertNull( ByteRange.parse( "bytes=5-1", 10000 ) );
+        assertNull( ByteRange.parse( "bytes=a-b", 10000 ) );
+        assertNull( ByteRange.parse( "bytes=1", 10000 ) );
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class FileResponseBodyWriterTestCase
+{
+
+    private File file;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        file = File.createTempFile( "zentaur", ".txt" );
+        write( false, 10 );
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void missingFilesHaveNoValidators()
+    {
+        file.delete();
+        FileResponseBodyWriter body = new FileResponseBodyWriter( file );
+
+        assertNull( body.getEntityTag() );
+        assertEquals( -1, body.getLastModified() );
+        assertEquals( -1, body.getLength() );
+    }
+
+    @Test
+    public void regionsAreAsLargeAsTheStatedFile()
+        throws Exception
+    {
+        FileResponseBodyWriter body = new FileResponseBodyWriter( file );
+        String entityTag = body.getEntityTag();
+        assertNotNull( entityTag );
+
+        write( true, 5 );
+
+        assertEquals( entityTag, body.getEntityTag() );
+        assertEquals( 10, body.getLength() );
+
+        FileRegion region = body.openRegion();
+        try
+        {
+            assertEquals( 10, region.getRemaining() );
+        }
+        finally
+        {
+            region.close();
+        }
+    }
+
+    private void write( boolean append, int size )
+        throws IOException
+    {
+        FileOutputStream output = new FileOutputStream( file, append );
+        try
+        {
+            output.write( new byte[size] );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+package org.zentaur.core.io;
+
+/*
+ *   Copyright 2012 The Zentaur Server Project
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+import static java.nio.ByteBuffer.wrap;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zentaur.core.io.ByteBufferEnqueuerOutputStream.EOM;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.Selector;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class OutboundBuffersTestCase
+{
+
+    private Selector selector;
+
+    private Pipe pipe;
+
+    private final Queue<Runnable> keyOwnerTasks = new LinkedList<Runnable>();
+
+    private OutboundBuffers outbound;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        selector = Selector.open();
+        pipe = Pipe.open();
+        pipe.sink().configureBlocking( false );
+        outbound = new OutboundBuffers( pipe.sink().register( selector, 0 ), new Executor()
+        {
+
+            public void execute( Runnable task )
+            {
+                keyOwnerTasks.offer( task );
+            }
+
+        }, 4, 8 );
+    }
+
+    @After
+    public void tearDown()
+        throws Exception
+    {
+        pipe.sink().close();
+        pipe.source().close();
+        selector.close();
+        outbound = null;
+        keyOwnerTasks.clear();
+    }
+
+    @Test
+    public void notWritableAboveHighWatermark()
+    {
+        outbound.offer( wrap( "12345".getBytes() ) );
+        assertTrue( outbound.isWritable() );
+
+        outbound.offer( wrap( "6789".getBytes() ) );
+        assertFalse( outbound.isWritable() );
+        assertEquals( 9, outbound.getPendingBytes() );
+    }
+
+    @Test
+    public void writableAgainBelowLowWatermark()
+        throws Exception
+    {
+        outbound.offer( wrap( "123456789".getBytes() ) );
+        assertFalse( outbound.isWritable() );
+
+        assertFalse( outbound.writeTo( pipe.sink(), new ByteBuffer[4] ) );
+
+        assertTrue( outbound.isWritable() );
+        assertEquals( 0, outbound.getPendingBytes() );
+        assertTrue( outbound.isEmpty() );
+    }
+
+    @Test
+    public void responseCompletedOnEOM()
+        throws Exception
+    {
+        outbound.offer( wrap( "HTTP/1.1 200 OK\r\n".getBytes() ) );
+        outbound.offer( wrap( "\r\n".getBytes() ) );
+        outbound.offer( EOM );
+
+        // gathering array smaller than the enqueued buffers
+        assertTrue( outbound.writeTo( pipe.sink(), new ByteBuffer[1] ) );
+        assertTrue( outbound.isEmpty() );
+
+        ByteBuffer received = ByteBuffer.allocate( 32 );
+        pipe.source().read( received );
+        assertEquals( 19, received.position() );
+    }
+
+    @Test
+    public void fileRegionTransferredBetweenBuffers()
+        throws Exception
+    {
+        File file = File.createTempFile( "region", ".txt" );
+        file.deleteOnExit();
+        FileOutputStream fileOutput = new FileOutputStream( file );
+        fileOutput.write( "0123456789".getBytes() );
+        fileOutput.close();
+
+        outbound.offer( wrap( "head".getBytes() ) );
+        outbound.offer( new FileRegion( new FileInputStream( file ).getChannel(), 2, 5 ) );
+        outbound.offer( wrap( "tail".getBytes() ) );
+        outbound.offer( EOM );
+
+        // regions don't take room in the heap
+        assertEquals( 8, outbound.getPendingBytes() );
+
+        assertTrue( outbound.writeTo( pipe.sink(), new ByteBuffer[4] ) );
+        assertTrue( outbound.isEmpty() );
+
+        ByteBuffer received = ByteBuffer.allocate( 32 );
+        pipe.source().read( received );
+        assertEquals( "head23456tail", new String( received.array(), 0, received.position() ) );
+    }
+
+    @Test( expected = IOException.class )
+    public void truncatedFileRegionFails()
+        throws Exception
+    {
+        File file = File.createTempFile( "region", ".txt" );
+        file.deleteOnExit();
+        FileOutputStream fileOutput = new FileOutputStream( file );
+        fileOutput.write( "0123456789".getBytes() );
+        fileOutput.close();
+
+        outbound.offer( new FileRegion( new FileInputStream( file ).getChannel(), 2, 5 ) );
+        outbound.offer( EOM );
+
+        // truncated after the region has been opened
+        RandomAccessFile truncating = new RandomAccessFile( file, "rw" );
+        truncating.setLength( 3 );
+        truncating.close();
+
+        outbound.writeTo( pipe.sink(), new ByteBuffer[4] );
+    }
+
+    @Test
+    public void pooledBuffersReleasedOnceWritten()
+        throws Exception
+    {
+        CountingPooledBuffer head = new CountingPooledBuffer( "HTTP/1.1 200 OK\r\n\r\n" );
+
+        outbound.offer( head );
+        outbound.offer( wrap( "body".getBytes() ) );
+        outbound.offer( EOM );
+
+        assertTrue( outbound.writeTo( pipe.sink(), new ByteBuffer[4] ) );
+        assertEquals( 1, head.released );
+
+        ByteBuffer received = ByteBuffer.allocate( 32 );
+        pipe.source().read( received );
+        assertEquals( "HTTP/1.1 200 OK\r\n\r\nbody", new String( received.array(), 0, received.position() ) );
+    }
+
+    @Test
+    public void partiallyWrittenPooledBuffersNotReleased()
+        throws Exception
+    {
+        // larger than the pipe buffer
+        CountingPooledBuffer large = new CountingPooledBuffer( new String( new char[1024 * 1024] ) );
+
+        outbound.offer( wrap( "head".getBytes() ) );
+        outbound.offer( large );
+        outbound.offer( EOM );
+
+        assertFalse( outbound.writeTo( pipe.sink(), new ByteBuffer[4] ) );
+        assertTrue( large.getBuffer().hasRemaining() );
+        assertEquals( 0, large.released );
+
+        outbound.close();
+        assertEquals( 1, large.released );
+    }
+
+    @Test
+    public void pooledBuffersReleasedOnClose()
+    {
+        CountingPooledBuffer head = new CountingPooledBuffer( "HTTP/1.1 200 OK\r\n\r\n" );
+
+        outbound.offer( head );
+        outbound.close();
+        assertEquals( 1, head.released );
+
+        // enqueued after the connection has been closed
+        CountingPooledBuffer late = new CountingPooledBuffer( "HTTP/1.1 200 OK\r\n\r\n" );
+        outbound.offer( late );
+        assertEquals( 1, late.released );
+    }
+
+    @Test
+    public void startWritingSetsWriteInterest()
+    {
+        outbound.startWriting();
+        // interest changes are applied by the key owner only
+        assertEquals( 0, pipe.sink().keyFor( selector ).interestOps() );
+
+        runKeyOwnerTasks();
+        assertEquals( OP_WRITE, pipe.sink().keyFor( selector ).interestOps() );
+    }
+
+    @Test
+    public void suspendedWritingResumedOnOffer()
+    {
+        outbound.startWriting();
+        runKeyOwnerTasks();
+        outbound.suspendWriting();
+        assertEquals( 0, pipe.sink().keyFor( selector ).interestOps() );
+
+        outbound.offer( wrap( "\r\n".getBytes() ) );
+        runKeyOwnerTasks();
+        assertEquals( OP_WRITE, pipe.sink().keyFor( selector ).interestOps() );
+    }
+
+    @Test
+    public void closedIgnoresPendingInterestChanges()
+    {
+        outbound.startWriting();
+        outbound.close();
+
+        runKeyOwnerTasks();
+        assertEquals( 0, pipe.sink().keyFor( selector ).interestOps() );
+    }
+
+    private void runKeyOwnerTasks()
+    {
+        Runnable task;
+        while ( ( task = keyOwnerTasks.poll() ) != null )
+        {
+            task.run();
+        }
+    }
+
+    private static final class CountingPooledBuffer
+        implements PooledBuffer
+    {
+
+        private final ByteBuffer buffer;
+
+        private int released = 0;
+
+        public CountingPooledBuffer( String content )
+        {
+            buffer = wrap( content.getBytes() );
+        }
+
+        public ByteBuffer getBuffer()
+        {
+            return buffer;
+        }
+
+        public void release()
+        {
+            released++;
+        }
+
+    }
+
+}